@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measures MultithreadedPoller.getNextPoller with several threads accepting
+ * connections at the same time
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultithreadedPollerBenchmark {
+    private MultithreadedPoller poller;
+
+    @Setup
+    public void setup() {
+        poller = new MultithreadedPoller(8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        poller.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Poller uncontended() throws IOException {
+        return poller.getNextPoller();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Poller contended() throws IOException {
+        return poller.getNextPoller();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Compares the JDK's selector against the EpollSelector an EpollPoller uses. 64 connected
+ * channels are registered for OP_WRITE, so each of them is ready on every select:
+ * selectNow hands them to Poller's dispatch-callback, interestCycle empties all interest-sets,
+ * selects, sets OP_WRITE again and selects again (two epoll_ctl per channel and cycle).
+ *
+ * The epoll-variant needs the JVM-options listed by NativeEpoll (the jmh-task of build.gradle
+ * passes them), without them it's skipped. The JDK's selector boxes the descriptors above 127,
+ * hence AutoBoxCacheMax (see PollerDispatchBenchmark).
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.freecs.nio.interfaces.IOHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:AutoBoxCacheMax=65536")
+public class NativePollerBenchmark {
+    private static final int CHANNELS = 64;
+
+    @Param({ "jdk", "epoll" })
+    public String selector;
+
+    private Selector sel;
+    private Poller poller;
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+    private final List<SelectionKey> keys = new ArrayList<SelectionKey>();
+    private final IOHandler handler = new IOHandler() {
+        public void accept(SocketChannel sc) { return; }
+        public void connect() { return; }
+        public void read() { return; }
+        public void write() { writes++; }
+        public void cleanup() { return; }
+        public void setSelectionKey(SelectionKey sk) { return; }
+        public int getInterestSet() { return SelectionKey.OP_WRITE; }
+    };
+    private long writes = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        if ("epoll".equals(selector) && !EpollPoller.isAvailable())
+            throw new IllegalStateException("epoll unavailable: " + EpollPoller.getUnavailabilityCause());
+        EpollSelector es = "epoll".equals(selector) ? new EpollSelector() : null;
+        sel = es != null ? es : Selector.open();
+        poller = new Poller();
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        for (int i = 0; i < CHANNELS; i++) {
+            SocketChannel sc = SocketChannel.open(ssc.getLocalAddress());
+            channels.add(sc);
+            channels.add(ssc.accept());
+            sc.configureBlocking(false);
+            keys.add(es != null ? es.register(sc, SelectionKey.OP_WRITE, handler) : sc.register(sel, SelectionKey.OP_WRITE, handler));
+        }
+        ssc.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sel.close();
+        for (Iterator<SocketChannel> i = channels.iterator(); i.hasNext(); ) {
+            i.next().close();
+        }
+    }
+
+    @Benchmark
+    public long selectNow() throws IOException {
+        sel.selectNow(poller.dispatcher);
+        return writes;
+    }
+
+    @Benchmark
+    public long interestCycle() throws IOException {
+        for (int i = 0; i < CHANNELS; i++) {
+            keys.get(i).interestOps(0);
+        }
+        sel.selectNow(poller.dispatcher);
+        for (int i = 0; i < CHANNELS; i++) {
+            keys.get(i).interestOps(SelectionKey.OP_WRITE);
+        }
+        sel.selectNow(poller.dispatcher);
+        return writes;
+    }
+}
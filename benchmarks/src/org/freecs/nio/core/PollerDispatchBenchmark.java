@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measures handing the selected keys of one wakeup to their IOHandlers: iterating the
+ * selector's selected-key set the way Poller used to against Poller's select-callback.
+ * 64 connected channels registered for OP_WRITE are ready on every select. The
+ * gc-profiler's alloc.rate.norm shows the bytes allocated per wakeup.
+ *
+ * The JDK's epoll-selector looks the keys up by their file-descriptor boxed as Integer, so
+ * descriptors above 127 allocate unless the Integer-cache covers them (AutoBoxCacheMax).
+ * selectedKeySet and selectCallback run with -XX:AutoBoxCacheMax=65536,
+ * selectCallbackDefaultFlags runs the select-callback with the JVM's defaults to show
+ * what the boxing costs.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.freecs.nio.interfaces.IOHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollerDispatchBenchmark {
+    private static final int CHANNELS = 64;
+
+    private Selector sel;
+    private Poller poller;
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+    private final IOHandler handler = new IOHandler() {
+        public void accept(SocketChannel sc) { return; }
+        public void connect() { return; }
+        public void read() { return; }
+        public void write() { writes++; }
+        public void cleanup() { return; }
+        public void setSelectionKey(SelectionKey sk) { return; }
+        public int getInterestSet() { return SelectionKey.OP_WRITE; }
+    };
+    private long writes = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        sel = Selector.open();
+        poller = new Poller();
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        for (int i = 0; i < CHANNELS; i++) {
+            SocketChannel sc = SocketChannel.open(ssc.getLocalAddress());
+            channels.add(sc);
+            channels.add(ssc.accept());
+            sc.configureBlocking(false);
+            sc.register(sel, SelectionKey.OP_WRITE, handler);
+        }
+        ssc.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sel.close();
+        for (Iterator<SocketChannel> i = channels.iterator(); i.hasNext(); ) {
+            i.next().close();
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-XX:AutoBoxCacheMax=65536")
+    public long selectedKeySet() throws IOException {
+        sel.selectNow();
+        for (Iterator<SelectionKey> i = sel.selectedKeys().iterator(); i.hasNext(); ) {
+            SelectionKey sk = i.next();
+            IOHandler ioh = (IOHandler) sk.attachment();
+            if (sk.isValid() && !sk.isAcceptable() && !sk.isConnectable()) {
+                if (sk.isReadable())
+                    ioh.read();
+                if (sk.isWritable())
+                    ioh.write();
+            }
+            i.remove();
+        }
+        return writes;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-XX:AutoBoxCacheMax=65536")
+    public long selectCallback() throws IOException {
+        sel.selectNow(poller.dispatcher);
+        return writes;
+    }
+
+    @Benchmark
+    public long selectCallbackDefaultFlags() throws IOException {
+        sel.selectNow(poller.dispatcher);
+        return writes;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measures HttpRequestParser.parseNewData for complete requests of different shapes
+ * sitting within the connection's buffer.
+ */
+package org.freecs.nio.httpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+    static final String CURL = "GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: curl/7.88.1\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n";
+
+    static final String BROWSER = "GET /static/js/app.js?v=1234 HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: de-DE,de;q=0.9,en-US;q=0.8,en;q=0.7\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Referer: https://www.example.com/\r\n"
+            + "Cookie: session=4f2a9c1e8b7d6a5f4e3d2c1b0a9f8e7d; theme=dark; _ga=GA1.2.1234567890.1234567890\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "\r\n";
+
+    static final String POST_BODY = "{\"to\":\"someone\",\"text\":\"Hello there, this is a test message!!\"}";
+
+    static final String POST = "POST /api/messages HTTP/1.1\r\n"
+            + "Host: api.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Content-Length: " + POST_BODY.getBytes(StandardCharsets.US_ASCII).length + "\r\n"
+            + "\r\n"
+            + POST_BODY;
+
+    @Param({ "curl", "browser", "post" })
+    public String request;
+
+    private ByteBuffer template;
+    private ByteBuffer buff;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setup() throws HttpError {
+        String req = "curl".equals(request) ? CURL : "browser".equals(request) ? BROWSER : POST;
+        template = ByteBuffer.wrap(req.getBytes(StandardCharsets.US_ASCII));
+        buff = ByteBuffer.allocateDirect(10240);
+        parser = new HttpRequestParser(null, buff);
+        // one parse has to return exactly the request within the buffer, else the fixture is broken
+        byte[] body = req == POST ? POST_BODY.getBytes(StandardCharsets.US_ASCII) : null;
+        for (int i = 0; i < 2; i++) {
+            HttpRequest hr = parse();
+            if (hr == null)
+                throw new IllegalStateException("No request parsed from the " + request + "-fixture");
+            if (body != null && !Arrays.equals(body, hr.getData()))
+                throw new IllegalStateException("Unexpected body parsed from the " + request + "-fixture");
+            if (buff.hasRemaining())
+                throw new IllegalStateException(buff.remaining() + " bytes left over by the " + request + "-fixture");
+        }
+    }
+
+    @Benchmark
+    public HttpRequest parse() throws HttpError {
+        buff.clear();
+        buff.put(template.duplicate());
+        buff.flip();
+        return parser.parseNewData();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measures the construction of HttpResponses for a parsed request and for errors
+ */
+package org.freecs.nio.httpServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResponseBenchmark {
+    private HttpRequest request;
+
+    @Setup
+    public void setup() throws HttpError {
+        ByteBuffer buff = ByteBuffer.wrap(HttpRequestParserBenchmark.BROWSER.getBytes());
+        request = new HttpRequestParser(null, buff).parseNewData();
+    }
+
+    @Benchmark
+    public HttpResponse response() {
+        return new HttpResponse(request);
+    }
+
+    @Benchmark
+    public HttpResponse metricsResponse() {
+        return new HttpResponse(request, "text/plain", HttpMetrics.instance.toText().getBytes());
+    }
+
+    @Benchmark
+    public HttpResponse error() {
+        return new HttpResponse(414);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * BlockingHttpHandler is the http-server of the load-generator's blocking mode written as
+ * sequential code on top of a BlockingListener: like the reference-server it answers every
+ * request with the header-fields the client sent. The responses of all requests which
+ * arrived together (pipelined) get written with one call.
+ */
+package org.freecs.nio.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.freecs.nio.interfaces.IBlockingHandler;
+
+class BlockingHttpHandler implements IBlockingHandler {
+    private static final byte[] STATUS = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: ".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[16384];
+        byte[] response = new byte[65536];
+        int filled = 0;
+        for (;;) {
+            int n = in.read(buf, filled, buf.length - filled);
+            if (n < 0)
+                return;
+            filled += n;
+            int start = 0, len = 0;
+            for (int end = headerEnd(buf, start, filled); end > 0; end = headerEnd(buf, start, filled)) {
+                len = append(response, len, buf, start, end);
+                start = end;
+            }
+            if (len > 0)
+                out.write(response, 0, len);
+            if (start == 0 && filled == buf.length)
+                throw new IOException("Request-header too big");
+            System.arraycopy(buf, start, buf, 0, filled - start);
+            filled -= start;
+        }
+    }
+
+    /**
+     * Returns the index after the blank line ending the header starting at start, -1 if it's incomplete
+     */
+    private static int headerEnd(byte[] buf, int start, int filled) {
+        for (int i = start + 3; i < filled; i++) {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Append the response to the request buf[start..end) echoing it's header-fields
+     */
+    private static int append(byte[] response, int len, byte[] buf, int start, int end) {
+        int lineEnd = start;
+        while (buf[lineEnd] != '\n')
+            lineEnd++;
+        int bodyStart = lineEnd + 1, bodyLen = end - 2 - bodyStart;
+        byte[] contentLength = Integer.toString(bodyLen).getBytes();
+        System.arraycopy(STATUS, 0, response, len, STATUS.length);
+        len += STATUS.length;
+        System.arraycopy(contentLength, 0, response, len, contentLength.length);
+        len += contentLength.length;
+        System.arraycopy(CRLF, 0, response, len, 2);
+        System.arraycopy(CRLF, 0, response, len + 2, 2);
+        len += 4;
+        System.arraycopy(buf, bodyStart, response, len, bodyLen);
+        return len + bodyLen;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * FrameClientHandler is one subscriber-connection of the fan-out scenario.
+ * It decodes the messaging-frames and reads the intended publish-time
+ * (nanoseconds since the start of the run as decimal digits) the load-generator put in front
+ * of every message.
+ */
+package org.freecs.nio.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.freecs.nio.interfaces.ITransportHandler;
+import org.freecs.nio.messagingServer.FrameCodec;
+
+public class FrameClientHandler implements ITransportHandler {
+    private final LoadGenerator lg;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+    private SelectionKey sk;
+    private ByteChannel channel = null;
+    private boolean closed = false;
+
+    FrameClientHandler(LoadGenerator lg) {
+        this.lg = lg;
+    }
+
+    public void accept(SocketChannel sc) { return; } // clients don't accept
+
+    public void connect() {
+        try {
+            ((SocketChannel) sk.channel()).finishConnect();
+            sk.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            e.printStackTrace();
+            cleanup();
+        }
+    }
+
+    public void read() {
+        try {
+            if (channel.read(in) == -1) {
+                cleanup();
+                return;
+            }
+            in.flip();
+            long now = System.nanoTime();
+            while (in.hasRemaining()) {
+                int pos = in.position();
+                long header = FrameCodec.readHeader(in, pos);
+                if (header < 0)
+                    break;
+                int start = pos + (int) (header >>> 32), len = (int) header;
+                if (in.limit() - start < len)
+                    break;
+                // DATA and PUBLISH-frames start with the publish-time alike
+                int body = start;
+                if (in.get(pos + 1) == FrameCodec.PUBLISH)
+                    body += 2 + (in.getShort(body) & 0xFFFF);
+                long intended = 0;
+                for (int i = body; i < start + len; i++) {
+                    byte b = in.get(i);
+                    if (b < '0' || b > '9')
+                        break;
+                    intended = intended * 10 + (b - '0');
+                }
+                lg.completed(lg.epoch + intended, now);
+                in.position(start + len);
+            }
+            in.compact();
+        } catch (IOException e) {
+            cleanup();
+        }
+    }
+
+    public void write() { return; } // subscribers only listen
+
+    public void cleanup() {
+        if (sk == null || closed)
+            return;
+        closed = true;
+        sk.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore.. the load-generator will report the lost messages
+        }
+        lg.disconnected();
+    }
+
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+        if (channel == null)
+            channel = (SocketChannel) sk.channel();
+    }
+
+    public void setChannel(ByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public int getInterestSet() {
+        return SelectionKey.OP_CONNECT;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * HttpClientHandler is one keep-alive client-connection of the load-generator.
+ * The pacer hands it the intended send-time of every request. Requests get written
+ * as soon as possible (pipelined) or once the previous response arrived (keep-alive).
+ * Latency is measured from the intended send-time so a stalled server can't hide
+ * behind requests which haven't been sent (coordinated omission).
+ */
+package org.freecs.nio.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.freecs.nio.interfaces.ITransportHandler;
+
+public class HttpClientHandler implements ITransportHandler {
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+    private static final int MAX_IN_FLIGHT = 1 << 16;
+
+    private final LoadGenerator lg;
+    private final byte[] request;
+    private final boolean pipeline;
+    private final LongRing scheduled = new LongRing(1 << 16);
+    private final LongRing inFlight = new LongRing(MAX_IN_FLIGHT);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 16);
+    private volatile SelectionKey sk;
+    private ByteChannel channel = null;
+    private volatile boolean connected = false;
+    private boolean closed = false;
+
+    HttpClientHandler(LoadGenerator lg, String host, boolean pipeline) {
+        this.lg = lg;
+        this.pipeline = pipeline;
+        this.request = ("GET /load HTTP/1.1\r\nHost: " + host + "\r\nConnection: keep-alive\r\n\r\n").getBytes();
+        out.flip();
+    }
+
+    /**
+     * Called by the pacer: a request should have been sent at intended
+     * @param intended the System.nanoTime() the request is due
+     */
+    void schedule(long intended) {
+        if (!scheduled.offer(intended)) {
+            lg.dropped();
+            return;
+        }
+        SelectionKey k = sk;
+        if (connected && k != null) {
+            k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            k.selector().wakeup();
+        }
+    }
+
+    public void accept(SocketChannel sc) { return; } // clients don't accept
+
+    public void connect() {
+        try {
+            ((SocketChannel) sk.channel()).finishConnect();
+            connected = true;
+            sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            cleanup();
+        }
+    }
+
+    public void read() {
+        try {
+            if (channel.read(in) == -1) {
+                cleanup();
+                return;
+            }
+            in.flip();
+            long now = System.nanoTime();
+            while (in.hasRemaining() && parseResponse()) {
+                lg.completed(inFlight.poll(), now);
+            }
+            in.compact();
+            if (!pipeline && inFlight.isEmpty() && !scheduled.isEmpty()) {
+                sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            cleanup();
+        }
+    }
+
+    public void write() {
+        try {
+            while (!scheduled.isEmpty() && (pipeline || inFlight.isEmpty())
+                    && inFlight.size() < MAX_IN_FLIGHT && out.capacity() - out.limit() >= request.length) {
+                inFlight.offer(scheduled.poll());
+                out.mark();
+                out.position(out.limit()).limit(out.limit() + request.length);
+                out.put(request);
+                out.reset();
+            }
+            channel.write(out);
+            if (out.hasRemaining())
+                return;
+            out.clear().flip();
+            sk.interestOps(SelectionKey.OP_READ);
+            // the pacer may have added something while we cleared OP_WRITE
+            if (!scheduled.isEmpty() && (pipeline || inFlight.isEmpty()))
+                sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            cleanup();
+        }
+    }
+
+    /**
+     * Consume one response if it arrived fully
+     * @return true if a response has been consumed
+     */
+    private boolean parseResponse() {
+        int start = in.position(), lim = in.limit();
+        int contentLength = 0;
+        int lineStart = start;
+        for (int i = start; i + 1 < lim; i++) {
+            if (in.get(i) != '\r' || in.get(i + 1) != '\n')
+                continue;
+            if (i == lineStart) {
+                int end = i + 2 + contentLength;
+                if (end > lim)
+                    return false;
+                in.position(end);
+                return true;
+            }
+            if (startsWithIgnoreCase(lineStart, i, CONTENT_LENGTH))
+                contentLength = parseInt(lineStart + CONTENT_LENGTH.length, i);
+            lineStart = i + 2;
+            i++;
+        }
+        return false;
+    }
+
+    private boolean startsWithIgnoreCase(int from, int to, byte[] lower) {
+        if (to - from < lower.length)
+            return false;
+        for (int i = 0; i < lower.length; i++) {
+            int b = in.get(from + i);
+            if (b >= 'A' && b <= 'Z')
+                b += 32;
+            if (b != lower[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int parseInt(int from, int to) {
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            byte b = in.get(i);
+            if (b >= '0' && b <= '9')
+                v = v * 10 + (b - '0');
+        }
+        return v;
+    }
+
+    public void cleanup() {
+        if (sk == null || closed)
+            return;
+        closed = true;
+        sk.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore.. the load-generator will report the lost requests
+        }
+        lg.disconnected();
+    }
+
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+        if (channel == null)
+            channel = (SocketChannel) sk.channel();
+    }
+
+    public void setChannel(ByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public int getInterestSet() {
+        return SelectionKey.OP_CONNECT;
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LoadGenerator drives the whole stack (accept, register, select, parse, respond, keep-alive)
+ * over localhost using the project's own Poller in client mode.
+ *
+ * The load is open-loop: requests (or messages) are due at a fixed rate no matter how fast
+ * the server answers and every latency is measured from the time the request was due, not
+ * from the time it actually went out. A server stalling for a second therefore shows up as
+ * a second of latency for every request due in that second (coordinated omission corrected).
+ *
+ * Scenarios:
+ *   http     keep-alive connections, one request in flight per connection
+ *   pipeline keep-alive connections sending every request as soon as it is due
+ *   fanout   one publisher broadcasting through a MessagingListener to all connections
+ *   rpc      requests through MessagingListener.request, answered by an echoing messaging-node
+ *   pipeline-echo messages through Pipelines (LengthFieldCodec, DeflateCodec) echoed by a PipelineListener
+ *   shm      messages through a SharedMemoryTransport, echoed back by a transport attached to it's rings
+ *
+ * Without -target the http-server, a messaging-node or the echoing PipelineListener is started within this JVM on a
+ * loopback-port, wired exactly the way the Server-classes do it. With -tlsKeyStore all
+ * connections speak TLS (the keystore being the truststore too), so running the same
+ * scenario with and without shows what TLS costs.
+ */
+package org.freecs.nio.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.LockSupport;
+
+import org.freecs.nio.core.LatencyHistogram;
+import org.freecs.nio.core.LatencyRecorder;
+import org.freecs.nio.core.BlockingListener;
+import org.freecs.nio.core.EpollPoller;
+import org.freecs.nio.core.MultithreadedPoller;
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
+import org.freecs.nio.core.WaitStrategy;
+import org.freecs.nio.httpServer.HttpKeepAliveTracker;
+import org.freecs.nio.httpServer.HttpRequestListener;
+import org.freecs.nio.interfaces.ITransportHandler;
+import org.freecs.nio.messagingServer.IBinaryMessageReceiver;
+import org.freecs.nio.messagingServer.IRequestReceiver;
+import org.freecs.nio.messagingServer.MessagingHandler;
+import org.freecs.nio.messagingServer.MessagingListener;
+import org.freecs.nio.messagingServer.SharedMemoryTransport;
+import org.freecs.nio.pipeline.DeflateCodec;
+import org.freecs.nio.pipeline.IPipelineFactory;
+import org.freecs.nio.pipeline.IPipelineReceiver;
+import org.freecs.nio.pipeline.LengthFieldCodec;
+import org.freecs.nio.pipeline.Pipeline;
+import org.freecs.nio.pipeline.PipelineListener;
+
+public class LoadGenerator {
+    // pipeline-echo messages of at least this size get deflated
+    private static final int ECHO_COMPRESS_THRESHOLD = 1024;
+
+    final long epoch = System.nanoTime();
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final LongAdder arrived = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    private String scenario = "http";
+    private int connections = 100;
+    private int rate = 10000;
+    private int duration = 30;
+    private int warmup = 5;
+    private int clientPollers = 2;
+    private int serverPollers = 4;
+    private int messageSize = 64;
+    private int batchSize = 0;
+    private long batchDelay = 1;
+    private SocketAddress target = null;
+    private String unixSocket = null;
+    private String tlsKeyStore = null;
+    private String tlsKeyStorePassword = "";
+    private TlsContext tls = null;
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private boolean blocking = false;
+    private boolean nativePoller = false;
+
+    private HttpClientHandler[] httpClients;
+    private Pipeline[] echoClients;
+    private MultithreadedPoller server;
+    private MessagingListener node;
+    private Poller nodePoller;
+    private File shmDirectory;
+    private volatile SharedMemoryTransport shmEcho;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator lg = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("-") || eq < 0) {
+                usage("Unknown argument " + arg);
+            }
+            String key = arg.substring(1, eq), val = arg.substring(eq + 1);
+            if ("scenario".equals(key)) {
+                lg.scenario = val;
+            } else if ("connections".equals(key)) {
+                lg.connections = Integer.parseInt(val);
+            } else if ("rate".equals(key)) {
+                lg.rate = Integer.parseInt(val);
+            } else if ("duration".equals(key)) {
+                lg.duration = Integer.parseInt(val);
+            } else if ("warmup".equals(key)) {
+                lg.warmup = Integer.parseInt(val);
+            } else if ("clientPollers".equals(key)) {
+                lg.clientPollers = Integer.parseInt(val);
+            } else if ("serverPollers".equals(key)) {
+                lg.serverPollers = Integer.parseInt(val);
+            } else if ("messageSize".equals(key)) {
+                lg.messageSize = Integer.parseInt(val);
+            } else if ("batchSize".equals(key)) {
+                lg.batchSize = Integer.parseInt(val);
+            } else if ("batchDelay".equals(key)) {
+                lg.batchDelay = Long.parseLong(val);
+            } else if ("target".equals(key)) {
+                lg.target = ServerConfig.parseAddress(val);
+            } else if ("unixSocket".equals(key)) {
+                lg.unixSocket = val;
+            } else if ("tlsKeyStore".equals(key)) {
+                lg.tlsKeyStore = val;
+            } else if ("tlsKeyStorePassword".equals(key)) {
+                lg.tlsKeyStorePassword = val;
+            } else if ("blocking".equals(key)) {
+                lg.blocking = Boolean.parseBoolean(val);
+            } else if ("nativePoller".equals(key)) {
+                lg.nativePoller = Boolean.parseBoolean(val);
+            } else if ("waitStrategy".equals(key)) {
+                lg.waitStrategy = ServerConfig.builder(0).set(key, val).build().getWaitStrategy();
+            } else {
+                usage("Unknown argument " + arg);
+            }
+        }
+        if (!Arrays.asList("http", "pipeline", "fanout", "rpc", "shm", "pipeline-echo").contains(lg.scenario))
+            usage("Unknown scenario " + lg.scenario);
+        if (lg.blocking && (lg.tlsKeyStore != null || !Arrays.asList("http", "pipeline").contains(lg.scenario)))
+            usage("-blocking is supported by the http and pipeline scenarios without TLS");
+        if ("fanout".equals(lg.scenario) && lg.target != null)
+            usage("fanout publishes through the embedded messaging-node, -target isn't supported");
+        if ("shm".equals(lg.scenario) && (lg.target != null || lg.tlsKeyStore != null))
+            usage("shm connects two transports within this JVM, -target and TLS aren't supported");
+        lg.run();
+        System.exit(0);
+    }
+
+    private static void usage(String error) {
+        System.out.println(error);
+        System.out.println("Arguments:");
+        System.out.println("-scenario=http|pipeline|fanout|rpc|shm|pipeline-echo (default http)");
+        System.out.println("-connections=n (client connections, default 100)");
+        System.out.println("-rate=n (requests or published messages per second, default 10000)");
+        System.out.println("-duration=s (seconds measured, default 30)");
+        System.out.println("-warmup=s (seconds not measured, default 5)");
+        System.out.println("-clientPollers=n / -serverPollers=n (default 2 / 4)");
+        System.out.println("-messageSize=n (fanout / shm / pipeline-echo message or rpc request size, default 64)");
+        System.out.println("-batchSize=n / -batchDelay=ms (fanout batching of the messaging-node, default off / 1)");
+        System.out.println("-target=ip:port|unix:/path (an external http-server instead of the embedded one)");
+        System.out.println("-unixSocket=path (the embedded server listens on a unix-domain socket instead of tcp)");
+        System.out.println("-tlsKeyStore=file / -tlsKeyStorePassword=pw (speak TLS, default off)");
+        System.out.println("-blocking=true (the embedded http-server serves every connection on a (virtual) thread, default false)");
+        System.out.println("-waitStrategy=blocking|busy_spin|hybrid (of the embedded server's pollers, default blocking)");
+        System.out.println("-nativePoller=true (the embedded server's pollers call epoll directly, see EpollPoller, default false)");
+        System.exit(1);
+    }
+
+    /**
+     * A response (or message) arrived
+     * @param intended the time it was due to be sent
+     * @param now the time it arrived
+     */
+    void completed(long intended, long now) {
+        arrived.increment();
+        if (intended < measureFrom)
+            return;
+        completed.increment();
+        latency.record(now - intended);
+    }
+
+    /**
+     * An echo arrived: it has to be the intended send-time followed by padding '.'
+     * exactly as sent, anything else counts as dropped
+     * @param msg the echo (the bytes between position and limit)
+     * @param padding the number of '.' sent after the send-time
+     * @param now the time it arrived
+     */
+    void echoed(ByteBuffer msg, int padding, long now) {
+        long intended = 0;
+        int i = msg.position(), digits = 0;
+        for (; i < msg.limit() && msg.get(i) >= '0' && msg.get(i) <= '9'; i++, digits++) {
+            intended = intended * 10 + (msg.get(i) - '0');
+        }
+        boolean intact = digits > 0 && msg.limit() - i == padding;
+        for (; intact && i < msg.limit(); i++) {
+            intact = msg.get(i) == '.';
+        }
+        if (intact)
+            completed(epoch + intended, now);
+        else
+            dropped();
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    void disconnected() {
+        disconnects.increment();
+    }
+
+    private void run() throws Exception {
+        tls = TlsContext.load(ServerConfig.builder(0).tlsKeyStore(tlsKeyStore).tlsKeyStorePassword(tlsKeyStorePassword).build());
+        MultithreadedPoller clients = new MultithreadedPoller(clientPollers);
+        clients.startPoller();
+        final boolean fanout = "fanout".equals(scenario);
+        final boolean rpc = "rpc".equals(scenario);
+        final boolean shm = "shm".equals(scenario);
+        final boolean echo = "pipeline-echo".equals(scenario);
+        SocketAddress addr = target;
+        SharedMemoryTransport shmLink = null;
+        if (addr == null && !shm) {
+            if (nativePoller)
+                System.out.println(EpollPoller.isAvailable() ? "embedded server polls epoll directly"
+                        : "epoll unavailable, the embedded server uses the JDK's selector: " + EpollPoller.getUnavailabilityCause());
+            addr = fanout || rpc ? startMessagingNode() : echo ? startEchoServer() : startHttpServer();
+        }
+        MessagingListener rpcClient = null;
+        MessagingHandler[] rpcConnections = null;
+        if (shm) {
+            shmLink = startSharedMemoryLink();
+        } else if (rpc) {
+            rpcClient = new MessagingListener(clients, new EchoReceiver(), ServerConfig.builder(0).build());
+            rpcClient.setTlsContext(tls);
+            rpcConnections = new MessagingHandler[connections];
+            for (int i = 0; i < connections; i++) {
+                rpcConnections[i] = rpcClient.connect(addr);
+            }
+        } else if (echo) {
+            int maxSize = ServerConfig.builder(0).build().getMaxFrameSize();
+            echoClients = new Pipeline[connections];
+            for (int i = 0; i < connections; i++) {
+                echoClients[i] = new Pipeline(16384, maxSize, new PipelineClientReceiver(this, Math.max(0, messageSize - 20)),
+                        new LengthFieldCodec(maxSize), new DeflateCodec(ECHO_COMPRESS_THRESHOLD, maxSize));
+                echoClients[i].connect(clients, addr, tls);
+            }
+        } else if (fanout) {
+            for (int i = 0; i < connections; i++) {
+                connect(clients, new FrameClientHandler(this), addr);
+            }
+        } else {
+            httpClients = new HttpClientHandler[connections];
+            for (int i = 0; i < connections; i++) {
+                httpClients[i] = new HttpClientHandler(this, "localhost", "pipeline".equals(scenario));
+                connect(clients, httpClients[i], addr);
+            }
+        }
+        Thread.sleep(1000);
+        System.out.println(scenario + ": " + (shm ? "rings within " + shmDirectory
+                : connections + (tls != null ? " TLS" : "") + " connections to " + addr) + ", " + rate + "/s for " + warmup + "s warmup + " + duration + "s");
+
+        byte[] padding = new byte[Math.max(0, rpc ? messageSize : messageSize - 20)];
+        Arrays.fill(padding, (byte) '.');
+        String pad = new String(padding);
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        measureFrom = start + warmup * 1000000000L;
+        long end = measureFrom + duration * 1000000000L;
+        long nextReport = start + 1000000000L, lastCompleted = 0;
+        for (long k = 0; ; k++) {
+            long intended = start + (long) (k * interval);
+            if (intended >= end)
+                break;
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                if (intended - now > 100000)
+                    LockSupport.parkNanos(intended - now - 50000);
+                else
+                    Thread.onSpinWait();
+            }
+            if (fanout) {
+                node.sendMessage((intended - epoch) + pad);
+            } else if (shm) {
+                if (!shmLink.sendMessage(((intended - epoch) + pad).getBytes()))
+                    dropped();
+            } else if (echo) {
+                if (!echoClients[(int) (k % connections)].send(((intended - epoch) + pad).getBytes()))
+                    dropped();
+            } else if (rpc) {
+                final long due = intended;
+                rpcClient.request(rpcConnections[(int) (k % connections)], ByteBuffer.wrap(padding))
+                        .whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+                            public void accept(ByteBuffer reply, Throwable error) {
+                                if (error != null)
+                                    dropped();
+                                else
+                                    completed(due, System.nanoTime());
+                            }
+                        });
+            } else {
+                httpClients[(int) (k % connections)].schedule(intended);
+            }
+            if (now >= nextReport) {
+                long c = arrived.sum();
+                System.out.println((now < measureFrom ? "warmup " : "") + (c - lastCompleted) + "/s");
+                lastCompleted = c;
+                nextReport += 1000000000L;
+            }
+        }
+        Thread.sleep(1000); // let the last responses arrive
+        report();
+        clients.shutdown();
+        if (server != null)
+            server.shutdown();
+        if (shmLink != null)
+            stopSharedMemoryLink(shmLink);
+    }
+
+    private void connect(MultithreadedPoller clients, ITransportHandler ioh, SocketAddress addr) throws IOException {
+        SocketChannel sc = ServerConfig.openChannel(addr);
+        sc.connect(addr);
+        clients.addHandler(tls != null ? tls.client(ioh, addr) : ioh, sc);
+    }
+
+    private void report() {
+        LatencyHistogram h = latency.snapshot();
+        long cnt = completed.sum();
+        System.out.println("completed:   " + cnt + " (" + (cnt / Math.max(1, duration)) + "/s)");
+        System.out.println("dropped:     " + dropped.sum());
+        System.out.println("disconnects: " + disconnects.sum());
+        double[] percentiles = { 50, 90, 99, 99.9, 99.99, 100 };
+        for (int i = 0; i < percentiles.length; i++) {
+            System.out.println("p" + percentiles[i] + ":\t" + h.getValueAtPercentile(percentiles[i]) / 1000 + "us");
+        }
+        if (server != null)
+            System.out.println("server pollers: " + server.getMetrics());
+        if (nodePoller != null)
+            System.out.println("node poller: " + nodePoller.getMetrics());
+    }
+
+    private SocketAddress startHttpServer() throws Exception {
+        server = new MultithreadedPoller(serverPollers, nativePoller);
+        server.setWaitStrategy(waitStrategy, 10000);
+        ServerSocketChannel ssc = openServerChannel();
+        if (blocking) {
+            System.out.println("blocking http-server on " + (BlockingListener.hasVirtualThreads() ? "virtual" : "platform") + " threads");
+            server.addListeningHandler(new BlockingListener(server, new BlockingHttpHandler(), ServerConfig.builder(0).build()), ssc);
+        } else {
+            HttpRequestListener listener = new HttpRequestListener(server);
+            listener.setTlsContext(tls);
+            server.addListeningHandler(listener, ssc);
+        }
+        HttpKeepAliveTracker.hkatThread.setDaemon(true);
+        HttpKeepAliveTracker.hkatThread.start();
+        server.startPoller();
+        return ssc.getLocalAddress();
+    }
+
+    /**
+     * Bind the embedded server to a loopback-port (or the unix-domain socket given)
+     */
+    private ServerSocketChannel openServerChannel() throws IOException {
+        ServerConfig.Builder b = ServerConfig.builder(0);
+        b.bind(unixSocket != null ? UnixDomainSocketAddress.of(unixSocket) : new InetSocketAddress("127.0.0.1", 0));
+        return b.build().openServerChannels().get(0);
+    }
+
+    /**
+     * Ignores messages (subscribers don't talk back) and answers requests with their content
+     */
+    private static class EchoReceiver implements IBinaryMessageReceiver, IRequestReceiver {
+        public void receive(ByteBuffer msg) {
+            return;
+        }
+
+        public void request(MessagingHandler from, long correlationId, ByteBuffer msg) {
+            from.reply(correlationId, msg);
+        }
+    }
+
+    /**
+     * Echoes every message (copied, since it's only valid during the call)
+     */
+    private static class PipelineEchoReceiver implements IPipelineReceiver {
+        public void connected(Pipeline p) { return; } // accepted connections are established already
+
+        public void received(Pipeline p, ByteBuffer msg) {
+            byte[] copy = new byte[msg.remaining()];
+            msg.duplicate().get(copy);
+            p.send(copy);
+        }
+
+        public void closed(Pipeline p) { return; } // the client reports it
+    }
+
+    private SocketAddress startEchoServer() throws Exception {
+        server = new MultithreadedPoller(serverPollers, nativePoller);
+        server.setWaitStrategy(waitStrategy, 10000);
+        ServerSocketChannel ssc = openServerChannel();
+        final ServerConfig cfg = ServerConfig.builder(0).build();
+        final PipelineEchoReceiver echo = new PipelineEchoReceiver();
+        PipelineListener listener = new PipelineListener(server, new IPipelineFactory() {
+            public Pipeline create() {
+                return new Pipeline(cfg.getBufferSize(), cfg.getMaxFrameSize(), echo,
+                        new LengthFieldCodec(cfg.getMaxFrameSize()), new DeflateCodec(ECHO_COMPRESS_THRESHOLD, cfg.getMaxFrameSize()));
+            }
+        }, cfg);
+        listener.setTlsContext(tls);
+        server.addListeningHandler(listener, ssc);
+        server.startPoller();
+        return ssc.getLocalAddress();
+    }
+
+    private SocketAddress startMessagingNode() throws Exception {
+        Poller p = nativePoller ? EpollPoller.open() : new Poller();
+        p.setWaitStrategy(waitStrategy, 10000);
+        nodePoller = p;
+        ServerSocketChannel ssc = openServerChannel();
+        ServerConfig cfg = ServerConfig.builder(0).batchSize(batchSize).batchDelay(batchDelay).build();
+        node = new MessagingListener(p, new EchoReceiver(), cfg);
+        node.setTlsContext(tls);
+        p.addListeningHandler(node, ssc);
+        p.startPoller();
+        return ssc.getLocalAddress();
+    }
+
+    /**
+     * Create a transport within a new directory (below /dev/shm if there is one) and attach
+     * an echoing one to it's rings
+     */
+    private SharedMemoryTransport startSharedMemoryLink() throws IOException {
+        File shmRoot = new File("/dev/shm");
+        shmDirectory = (shmRoot.isDirectory() ? Files.createTempDirectory(shmRoot.toPath(), "loadgen-")
+                : Files.createTempDirectory("loadgen-")).toFile();
+        final int padding = Math.max(0, messageSize - 20);
+        SharedMemoryTransport link = SharedMemoryTransport.create(shmDirectory, 1 << 20, new IBinaryMessageReceiver() {
+            public void receive(ByteBuffer msg) {
+                echoed(msg, padding, System.nanoTime());
+            }
+        });
+        shmEcho = SharedMemoryTransport.attach(shmDirectory, new IBinaryMessageReceiver() {
+            public void receive(ByteBuffer msg) {
+                if (!shmEcho.sendMessage(msg))
+                    dropped();
+            }
+        }, 1000);
+        return link;
+    }
+
+    private void stopSharedMemoryLink(SharedMemoryTransport link) {
+        link.close();
+        shmEcho.close();
+        File[] files = shmDirectory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        shmDirectory.delete();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LongRing is a bounded single-producer/single-consumer queue of primitive longs.
+ * The load-generator uses it to hand intended send-times from the pacer
+ * to the poller-threads without boxing.
+ */
+package org.freecs.nio.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LongRing {
+    private final long[] values;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity the capacity, rounded up to the next power of two
+     */
+    public LongRing(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        values = new long[cap];
+        mask = cap - 1;
+    }
+
+    /**
+     * Append a value (producer only)
+     * @return false if the ring is full
+     */
+    public boolean offer(long v) {
+        long t = tail.get();
+        if (t - head.get() >= values.length)
+            return false;
+        values[(int) t & mask] = v;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest value (consumer only). Check isEmpty first.
+     */
+    public long poll() {
+        long h = head.get();
+        long v = values[(int) h & mask];
+        head.lazySet(h + 1);
+        return v;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PipelineClientReceiver is one connection of the pipeline-echo scenario. Every message is the
+ * intended send-time (nanoseconds since the start of the run as decimal digits) followed by
+ * padding; an echo not arriving exactly as it was sent counts as dropped.
+ */
+package org.freecs.nio.loadgen;
+
+import java.nio.ByteBuffer;
+
+import org.freecs.nio.pipeline.IPipelineReceiver;
+import org.freecs.nio.pipeline.Pipeline;
+
+public class PipelineClientReceiver implements IPipelineReceiver {
+    private final LoadGenerator lg;
+    private final int padding;
+    /**
+     * @param lg the load-generator getting the latencies
+     * @param padding the number of '.' following the send-time within every message
+     */
+    PipelineClientReceiver(LoadGenerator lg, int padding) {
+        this.lg = lg;
+        this.padding = padding;
+    }
+
+    public void connected(Pipeline p) { return; } // messages sent meanwhile are queued
+
+    public void received(Pipeline p, ByteBuffer msg) {
+        lg.echoed(msg, padding, System.nanoTime());
+    }
+
+    public void closed(Pipeline p) {
+        lg.disconnected();
+    }
+}
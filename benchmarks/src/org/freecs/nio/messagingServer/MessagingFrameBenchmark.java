@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measures MessagingHandler's frame decoding for a read delivering a batch of frames
+ */
+package org.freecs.nio.messagingServer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagingFrameBenchmark {
+    static final int FRAMES = 16;
+
+    @Param({ "32", "1024" })
+    public int messageSize;
+
+    @Param({ "string", "binary" })
+    public String receiver;
+
+    private ByteBuffer template;
+    private MessagingHandler handler;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        byte[] msg = new byte[messageSize];
+        for (int i = 0; i < msg.length; i++)
+            msg[i] = (byte) ('a' + i % 26);
+        ByteBuffer header = FrameCodec.header(FrameCodec.DATA, msg.length);
+        template = ByteBuffer.allocate(FRAMES * (messageSize + header.remaining()));
+        for (int i = 0; i < FRAMES; i++)
+            template.put(header.duplicate()).put(msg);
+        template.flip();
+        if ("string".equals(receiver)) {
+            handler = new MessagingHandler(template.capacity(), new IMessageReceiver() {
+                public void receive(String strg) {
+                    bh.consume(strg);
+                }
+            }, SelectionKey.OP_READ);
+        } else {
+            handler = new MessagingHandler(template.capacity(), new IBinaryMessageReceiver() {
+                public void receive(ByteBuffer msg) {
+                    bh.consume(msg.get(msg.position()));
+                }
+            }, SelectionKey.OP_READ);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode() {
+        ByteBuffer buff = handler.buffer();
+        buff.clear();
+        buff.put(template.duplicate());
+        handler.decode();
+    }
+}
@@ -22,37 +22,49 @@
 package org.freecs.nio;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
 import java.nio.channels.ServerSocketChannel;
-import java.util.Enumeration;
+import java.util.Iterator;
 
+import org.freecs.nio.core.HandlerWatchdog;
 import org.freecs.nio.core.MultithreadedPoller;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
 import org.freecs.nio.httpServer.HttpKeepAliveTracker;
+import org.freecs.nio.httpServer.HttpMetrics;
 import org.freecs.nio.httpServer.HttpRequestListener;
-import org.freecs.nio.interfaces.IPoller;
 
 public class Server {
+    /**
+     * Arguments: -config=file and/or -key=value for every key known to ServerConfig
+     * (e.g. -bind=127.0.0.1:8080 -pollerThreads=4). A single number is taken as
+     * the number of pollers.
+     */
     public static void main(String args[]) {
         try {
-            IPoller p;
-            if (args.length > 0)
-                p = new MultithreadedPoller(Integer.parseInt(args[0]));
-            else
-                p = new MultithreadedPoller(8);
-            // IPoller p = new Poller();
-            for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements(); ) {
-                NetworkInterface ni = e.nextElement();
-                for (Enumeration<InetAddress> ee = ni.getInetAddresses(); ee.hasMoreElements(); ) {
-                    ServerSocketChannel ssc = ServerSocketChannel.open();
-                    ssc.configureBlocking(false);
-                    ssc.socket().bind(new InetSocketAddress(ee.nextElement(), 80));
-                    p.addListeningHandler(new HttpRequestListener(p), ssc);
-                }
+            ServerConfig.Builder b = ServerConfig.builder(80);
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].matches("[0-9]+"))
+                    b.pollerThreads(Integer.parseInt(args[i]));
+                else
+                    b.arg(args[i]);
             }
+            ServerConfig cfg = b.build();
+            MultithreadedPoller p = new MultithreadedPoller(cfg);
+            HttpRequestListener listener = new HttpRequestListener(p, cfg);
+            listener.setTlsContext(TlsContext.load(cfg));
+            for (Iterator<ServerSocketChannel> i = cfg.openServerChannels().iterator(); i.hasNext(); ) {
+                p.addListeningHandler(listener, i.next());
+            }
+            HttpKeepAliveTracker.instance.setKeepAliveTimeout(cfg.getKeepAliveTimeout());
             HttpKeepAliveTracker.hkatThread.start();
+            HttpMetrics.instance.register();
             p.startPoller();
+            HandlerWatchdog hw = new HandlerWatchdog(100);
+            p.watch(hw);
+            hw.start();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -70,4 +82,4 @@ public class Server {
             }
         }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * BlockingConnection is the IOHandler registered for a connection served by an IBlockingHandler.
+ * It starts the connection's thread once registered and hands it the blocking streams. A read or
+ * write the socket can't serve right away adds OP_READ or OP_WRITE to the key's interest-set and
+ * parks the thread; the poller's readiness-event removes it again and unparks the thread, which
+ * retries. So the thread only ever waits for the one event it needs, the poller never blocks.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.freecs.nio.interfaces.IBlockingHandler;
+import org.freecs.nio.interfaces.IOHandler;
+
+class BlockingConnection implements IOHandler, Runnable {
+    private final IBlockingHandler handler;
+    private final ThreadFactory threads;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private SocketChannel sc = null;
+    private SelectionKey sk = null;
+    private volatile Thread thread = null;
+    private volatile boolean readable = false;
+    private volatile boolean writable = false;
+
+    private final InputStream in = new InputStream() {
+        private final byte[] single = new byte[1];
+
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+            for (;;) {
+                int n = sc.read(bb);
+                if (n != 0)
+                    return n;
+                await(SelectionKey.OP_READ);
+            }
+        }
+
+        public void close() {
+            cleanup();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        private final byte[] single = new byte[1];
+
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+            while (bb.hasRemaining()) {
+                if (sc.write(bb) == 0)
+                    await(SelectionKey.OP_WRITE);
+            }
+        }
+
+        public void close() {
+            cleanup();
+        }
+    };
+
+    /**
+     * @param handler the handler serving the connection
+     * @param threads the factory creating the connection's thread
+     */
+    BlockingConnection(IBlockingHandler handler, ThreadFactory threads) {
+        this.handler = handler;
+        this.threads = threads;
+    }
+
+    /**
+     * Serve the connection (on it's own thread)
+     */
+    public void run() {
+        try {
+            handler.serve(in, out);
+        } catch (IOException e) {
+            // the connection is gone, nothing left to serve
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * Park the connection's thread until the poller reports the socket ready for op
+     * @param op OP_READ or OP_WRITE
+     * @throws ClosedChannelException if the connection got closed meanwhile
+     */
+    private void await(int op) throws ClosedChannelException {
+        if (op == SelectionKey.OP_READ)
+            readable = false;
+        else
+            writable = false;
+        try {
+            sk.interestOpsOr(op);
+        } catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+        sk.selector().wakeup();
+        while (!(op == SelectionKey.OP_READ ? readable : writable)) {
+            if (closed.get())
+                throw new ClosedChannelException();
+            LockSupport.park(this);
+        }
+    }
+
+    public void accept(SocketChannel sc) { return; } // nothing to accept (it's an already established connection)
+    public void connect() { return; } // accepted connections are connected already
+
+    /**
+     * The socket has become readable: wake the thread waiting for it
+     */
+    public void read() {
+        sk.interestOpsAnd(~SelectionKey.OP_READ);
+        readable = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * The socket has become writable: wake the thread waiting for it
+     */
+    public void write() {
+        sk.interestOpsAnd(~SelectionKey.OP_WRITE);
+        writable = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Close the connection (from any thread), a thread waiting for it gets a ClosedChannelException
+     */
+    public void cleanup() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        if (sk != null)
+            sk.cancel();
+        try {
+            sc.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Thread t = thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     * Registered with the poller: start serving the connection
+     */
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+        this.sc = (SocketChannel) sk.channel();
+        Thread t = threads.newThread(this);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Nothing until the connection's thread waits for something
+     */
+    public int getInterestSet() {
+        return 0;
+    }
+}
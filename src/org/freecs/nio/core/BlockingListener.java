@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * BlockingListener accepts connections served by an IBlockingHandler: each connection gets
+ * registered with the IPoller as BlockingConnection and served on a thread of it's own.
+ *
+ * These threads are virtual threads if the JVM has them (Java 21 and later, looked up at
+ * runtime so the code still runs on older JVMs), then parking a connection's thread is cheap
+ * and hundreds of thousands of connections may wait at the same time. Otherwise they're
+ * platform-threads, which serve the same way but cost a stack each.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freecs.nio.interfaces.IBlockingHandler;
+import org.freecs.nio.interfaces.IOHandler;
+import org.freecs.nio.interfaces.IPoller;
+
+public class BlockingListener implements IOHandler {
+    private static final ThreadFactory virtualThreads = lookupVirtualThreads();
+
+    private final IPoller poller;
+    private final IBlockingHandler handler;
+    private final ServerConfig cfg;
+    private final ThreadFactory threads;
+    private SelectionKey sk = null;
+
+    /**
+     * Serve connections on virtual threads (platform-threads if the JVM has none)
+     * @param poller the IPoller new connections get registered with
+     * @param handler the handler serving every connection
+     * @param cfg the ServerConfig providing the socket-options for new connections
+     */
+    public BlockingListener(IPoller poller, IBlockingHandler handler, ServerConfig cfg) {
+        this(poller, handler, cfg, threadFactory());
+    }
+
+    /**
+     * @param poller the IPoller new connections get registered with
+     * @param handler the handler serving every connection
+     * @param cfg the ServerConfig providing the socket-options for new connections
+     * @param threads the factory creating each connection's thread
+     */
+    public BlockingListener(IPoller poller, IBlockingHandler handler, ServerConfig cfg, ThreadFactory threads) {
+        this.poller = poller;
+        this.handler = handler;
+        this.cfg = cfg;
+        this.threads = threads;
+    }
+
+    /**
+     * Returns a factory of virtual threads if the JVM has them, of daemon platform-threads otherwise
+     */
+    public static ThreadFactory threadFactory() {
+        if (virtualThreads != null)
+            return virtualThreads;
+        return new ThreadFactory() {
+            private final AtomicInteger cnt = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "blocking-" + cnt.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns true if connections get served on virtual threads
+     */
+    public static boolean hasVirtualThreads() {
+        return virtualThreads != null;
+    }
+
+    /**
+     * Thread.ofVirtual().name("virtual-", 0).factory(), if there is such a method
+     */
+    private static ThreadFactory lookupVirtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "virtual-", Long.valueOf(0));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null; // before Java 21
+        }
+    }
+
+    /**
+     * Register the given SocketChannel with the IPoller, it gets served once registered
+     */
+    public void accept(SocketChannel sc) {
+        try {
+            cfg.configure(sc);
+            poller.addHandler(new BlockingConnection(handler, threads), sc);
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                sc.close(); // never registered, nobody else would close it
+            } catch (IOException ce) {
+                // ignore.. it's gone anyway
+            }
+        }
+    }
+
+    public void connect() { return; } // connect is only used by clients wanting to connect to a server
+    public void read() { return; } // listeners don't read
+    public void write() { return; } // listeners don't write
+
+    /**
+     * Cancel the SelectionKey, and close the Channel
+     */
+    public void cleanup() {
+        sk.cancel();
+        try {
+            sk.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+    }
+
+    public int getInterestSet() {
+        return SelectionKey.OP_ACCEPT;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * BufferPool keeps released direct ByteBuffers for reuse so hot paths don't pay
+ * for allocating (and later freeing) native memory again and again.
+ * Buffers are pooled in power-of-two size-classes; requests bigger than the largest
+ * class get a plain direct buffer which is left to the garbage-collector on release.
+ */
+package org.freecs.nio.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPool {
+    public static final BufferPool instance = new BufferPool(6, 20, 256);
+
+    private final int minShift;
+    private final int maxShift;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] pooled;
+
+    /**
+     * @param minShift the smallest size-class is 2^minShift bytes
+     * @param maxShift the largest size-class is 2^maxShift bytes
+     * @param maxPooled the number of free buffers kept per size-class
+     */
+    public BufferPool(int minShift, int maxShift, int maxPooled) {
+        this.minShift = minShift;
+        this.maxShift = maxShift;
+        this.maxPooled = maxPooled;
+        free = newQueues(maxShift - minShift + 1);
+        pooled = new AtomicInteger[free.length];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues(int n) {
+        return (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[n];
+    }
+
+    /**
+     * Take a buffer able to hold at least size bytes from the pool (or allocate one)
+     * @param size the number of bytes needed
+     * @return a cleared direct buffer having it's limit set to size
+     */
+    public ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+        if (cls < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer b = free[cls].poll();
+        if (b == null) {
+            b = ByteBuffer.allocateDirect(1 << (cls + minShift));
+        } else {
+            pooled[cls].decrementAndGet();
+        }
+        b.clear().limit(size);
+        return b;
+    }
+
+    /**
+     * Hand a buffer obtained by acquire back to the pool. The buffer (and every view of it)
+     * must not be used afterwards.
+     * @param b the buffer to release
+     */
+    public void release(ByteBuffer b) {
+        int cap = b.capacity();
+        if (!b.isDirect() || Integer.bitCount(cap) != 1)
+            return;
+        int cls = Integer.numberOfTrailingZeros(cap) - minShift;
+        if (cls < 0 || cls >= free.length)
+            return;
+        if (pooled[cls].incrementAndGet() > maxPooled) {
+            pooled[cls].decrementAndGet();
+            return;
+        }
+        free[cls].offer(b);
+    }
+
+    /**
+     * Returns the index of the smallest size-class holding size bytes or -1 if
+     * size exceeds the largest size-class
+     */
+    private int sizeClass(int size) {
+        if (size > 1 << maxShift)
+            return -1;
+        int shift = size <= 1 << minShift ? minShift : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - minShift;
+    }
+}
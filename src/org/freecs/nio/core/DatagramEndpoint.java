@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * DatagramEndpoint is the IOHandler a Poller registers for a DatagramChannel. On every
+ * readiness-event it drains up to maxDatagrams datagrams, each one received into the same
+ * pooled buffer and handed to the IDatagramHandler as read-only view before the next one
+ * is received. So a burst of datagrams costs one wakeup instead of one per datagram, while
+ * a flood can't keep the poller from serving it's other channels.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.freecs.nio.interfaces.IDatagramHandler;
+import org.freecs.nio.interfaces.IOHandler;
+
+class DatagramEndpoint implements IOHandler {
+    /** the largest payload an UDP-datagram may carry */
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final IDatagramHandler handler;
+    private final DatagramChannel dc;
+    private final int maxDatagrams;
+    private ByteBuffer buff;
+    private ByteBuffer view;
+    private SelectionKey sk = null;
+
+    /**
+     * @param handler the handler getting the datagrams
+     * @param dc the (bound or connected) channel
+     * @param maxDatagrams the number of datagrams received per readiness-event at most
+     */
+    DatagramEndpoint(IDatagramHandler handler, DatagramChannel dc, int maxDatagrams) {
+        this.handler = handler;
+        this.dc = dc;
+        this.maxDatagrams = Math.max(1, maxDatagrams);
+        buff = BufferPool.instance.acquire(MAX_DATAGRAM_SIZE);
+        view = buff.asReadOnlyBuffer();
+    }
+
+    public void accept(SocketChannel sc) { return; } // datagram-channels don't accept
+    public void connect() { return; } // datagram-channels don't connect
+    public void write() { return; } // datagrams are sent by the handler right away
+
+    /**
+     * Receive and hand over the datagrams waiting, up to maxDatagrams
+     */
+    public void read() {
+        for (int n = 0; n < maxDatagrams; n++) {
+            SocketAddress sender;
+            try {
+                buff.clear();
+                sender = dc.receive(buff);
+            } catch (PortUnreachableException pue) {
+                continue; // the peer of a connected channel isn't listening (yet), not our problem
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.cleanup();
+                return;
+            }
+            if (sender == null)
+                return;
+            view.clear();
+            view.limit(buff.position());
+            handler.receive(view, sender);
+        }
+    }
+
+    /**
+     * Close the channel, give the receive-buffer back to the pool and tell the handler
+     */
+    public void cleanup() {
+        if (buff == null)
+            return;
+        if (sk != null)
+            sk.cancel();
+        try {
+            dc.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        BufferPool.instance.release(buff);
+        buff = null;
+        view = null;
+        handler.cleanup();
+    }
+
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+        handler.setChannel(dc);
+    }
+
+    public int getInterestSet() {
+        return SelectionKey.OP_READ;
+    }
+}
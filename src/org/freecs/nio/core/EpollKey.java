@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * EpollKey is the SelectionKey of a channel registered with an EpollSelector. IOHandlers use it
+ * just like the keys of the JDK's selectors: changing the interest-set (from any thread) queues
+ * the key for the next select, which updates the epoll-registration of it's file-descriptor.
+ * Cancelling it queues it as well, the next select removes the registration.
+ */
+package org.freecs.nio.core;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+final class EpollKey extends SelectionKey {
+    private final EpollSelector selector;
+    private final SelectableChannel channel;
+    final int fd;
+    private volatile int interest = 0;
+    private volatile boolean valid = true;
+    int ready = 0;
+    // the epoll-events registered for fd, touched by the selecting thread only
+    int registered = 0;
+    // true while queued for the next select, guarded by the selector's update-lock
+    boolean queued = false;
+
+    EpollKey(EpollSelector selector, SelectableChannel channel, int fd) {
+        this.selector = selector;
+        this.channel = channel;
+        this.fd = fd;
+    }
+
+    public SelectableChannel channel() {
+        return channel;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void cancel() {
+        if (!valid)
+            return;
+        valid = false;
+        selector.updated(this);
+    }
+
+    public int interestOps() {
+        ensureValid();
+        return interest;
+    }
+
+    public SelectionKey interestOps(int ops) {
+        ensureValid();
+        if ((ops & ~channel.validOps()) != 0)
+            throw new IllegalArgumentException("Invalid interest-set: " + ops);
+        if (ops != interest) {
+            interest = ops;
+            selector.updated(this);
+        }
+        return this;
+    }
+
+    public int readyOps() {
+        ensureValid();
+        return ready;
+    }
+
+    /**
+     * Returns the epoll-events to register for the current interest-set
+     */
+    int events() {
+        int ops = interest;
+        int events = 0;
+        if ((ops & (OP_READ | OP_ACCEPT)) != 0)
+            events |= NativeEpoll.EPOLLIN;
+        if ((ops & (OP_WRITE | OP_CONNECT)) != 0)
+            events |= NativeEpoll.EPOLLOUT;
+        return events;
+    }
+
+    /**
+     * Returns the operations of the interest-set the given epoll-events made ready.
+     * An error or hang-up makes all of them ready (like the JDK's selectors do), so the
+     * handler runs into it and cleans up.
+     */
+    int translate(int events) {
+        int ops = interest;
+        if ((events & (NativeEpoll.EPOLLERR | NativeEpoll.EPOLLHUP)) != 0)
+            return ops;
+        int ready = 0;
+        if ((events & NativeEpoll.EPOLLIN) != 0)
+            ready |= ops & (OP_READ | OP_ACCEPT);
+        if ((events & NativeEpoll.EPOLLOUT) != 0)
+            ready |= ops & (OP_WRITE | OP_CONNECT);
+        return ready;
+    }
+
+    private void ensureValid() {
+        if (!valid)
+            throw new CancelledKeyException();
+    }
+}
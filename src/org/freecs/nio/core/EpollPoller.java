@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * EpollPoller is a Poller selecting with an EpollSelector, calling Linux' epoll through the
+ * Foreign Function & Memory API instead of the JDK's selector (see NativeEpoll for the JVM
+ * options it needs). Everything else (tasks, timers, wait-strategies, metrics and the
+ * dispatching to the IOHandlers) is the Poller's, so any IOHandler runs on it unchanged.
+ *
+ * Use open to get an EpollPoller where epoll is available and a Poller everywhere else.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+
+import org.freecs.nio.interfaces.IOHandler;
+
+public class EpollPoller extends Poller {
+    private final EpollSelector es;
+
+    /**
+     * @throws IOException if epoll is unavailable (see getUnavailabilityCause)
+     */
+    public EpollPoller() throws IOException {
+        this(new EpollSelector());
+    }
+
+    private EpollPoller(EpollSelector es) {
+        super(es);
+        this.es = es;
+    }
+
+    /**
+     * Returns an EpollPoller if epoll is available, a Poller using the JDK's selector otherwise
+     * @return the new poller (not started yet)
+     * @throws IOException if the poller's selector can't be opened
+     */
+    public static Poller open() throws IOException {
+        if (isAvailable())
+            return new EpollPoller();
+        return new Poller();
+    }
+
+    /**
+     * Returns true if epoll can be used on this platform and JVM
+     */
+    public static boolean isAvailable() {
+        return NativeEpoll.isAvailable();
+    }
+
+    /**
+     * Returns the reason epoll can't be used or null if it can
+     */
+    public static Throwable getUnavailabilityCause() {
+        return NativeEpoll.getUnavailabilityCause();
+    }
+
+    /**
+     * The EpollSelector's keys are touched by the poller's thread only, so the
+     * ServerSocketChannel gets registered by a task
+     */
+    void listen(final IOHandler ioh, final ServerSocketChannel ssc) throws IOException {
+        if (ssc.isBlocking())
+            throw new IllegalBlockingModeException();
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    es.register(ssc, SelectionKey.OP_ACCEPT, ioh);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    SelectionKey register(SelectableChannel sc, int ops, IOHandler ioh) throws IOException {
+        return es.register(sc, ops, ioh);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * EpollSelector is a Selector calling epoll directly (see NativeEpoll) instead of going
+ * through the JDK's SelectorProvider. It supports what a Poller uses: registering channels
+ * (from the selecting thread), selecting with an action (select(Consumer, long) and
+ * selectNow(Consumer)), wakeup from any thread, keys and close. Selecting into a
+ * selected-key set isn't supported.
+ *
+ * Keys are found by the file-descriptor epoll reports, within an array indexed by it, so
+ * neither registering interest nor dispatching an event boxes anything or looks up a map.
+ * The events are received into one direct buffer, the wakeup is an eventfd registered along
+ * with the channels.
+ *
+ * The channels are registered level-triggered: IOHandlers read once per event and rely on
+ * getting called again while there is data left, as with the JDK's selectors.
+ * Edge-triggered events would require every handler to read until the socket is drained.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+final class EpollSelector extends Selector {
+    /** the number of events received per select at most */
+    private static final int MAX_EVENTS = 1024;
+
+    private final int epfd;
+    private final int wakeupFd;
+    private final ByteBuffer events;
+    private final long eventsAddress;
+    private final ByteBuffer ctl;
+    private final long ctlAddress;
+    private final ByteBuffer counter;
+    private final long counterAddress;
+    private final ByteBuffer one;
+    private final long oneAddress;
+    private EpollKey[] byFd = new EpollKey[1024];
+    private final Set<SelectionKey> keys = new HashSet<SelectionKey>();
+    private final Set<SelectionKey> publicKeys = Collections.unmodifiableSet(keys);
+    private final Object updateLock = new Object();
+    private ArrayList<EpollKey> updates = new ArrayList<EpollKey>();
+    private ArrayList<EpollKey> processing = new ArrayList<EpollKey>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Object closeLock = new Object();
+    private volatile boolean open = true;
+
+    /**
+     * @throws IOException if epoll is unavailable or the descriptors can't be created
+     */
+    EpollSelector() throws IOException {
+        if (!NativeEpoll.isAvailable())
+            throw new IOException("epoll is unavailable", NativeEpoll.getUnavailabilityCause());
+        events = direct(MAX_EVENTS * NativeEpoll.EVENT_SIZE);
+        ctl = direct(NativeEpoll.EVENT_SIZE);
+        counter = direct(8);
+        one = direct(8);
+        one.putLong(0, 1);
+        eventsAddress = NativeEpoll.address(events);
+        ctlAddress = NativeEpoll.address(ctl);
+        counterAddress = NativeEpoll.address(counter);
+        oneAddress = NativeEpoll.address(one);
+        epfd = NativeEpoll.epollCreate();
+        if (epfd < 0)
+            throw new IOException("epoll_create1 failed");
+        wakeupFd = NativeEpoll.eventfd();
+        if (wakeupFd < 0 || ctl(NativeEpoll.EPOLL_CTL_ADD, wakeupFd, NativeEpoll.EPOLLIN) < 0) {
+            if (wakeupFd >= 0)
+                NativeEpoll.close(wakeupFd);
+            NativeEpoll.close(epfd);
+            throw new IOException("eventfd failed");
+        }
+    }
+
+    private static ByteBuffer direct(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Register a channel opened by the JDK's SelectorProvider. Must be called by the
+     * selecting thread.
+     * @param ch the channel (in non-blocking mode)
+     * @param ops the interest-set
+     * @param att the attachment of the key
+     * @return the key of the channel
+     * @throws ClosedChannelException if the channel has been closed
+     */
+    SelectionKey register(SelectableChannel ch, int ops, Object att) throws ClosedChannelException {
+        ensureOpen();
+        if (!ch.isOpen())
+            throw new ClosedChannelException();
+        if (ch.isBlocking())
+            throw new IllegalBlockingModeException();
+        int fd = NativeEpoll.fdVal(ch);
+        if (fd >= byFd.length)
+            byFd = Arrays.copyOf(byFd, Math.max(fd + 1, byFd.length * 2));
+        EpollKey sk = new EpollKey(this, ch, fd);
+        sk.attach(att);
+        sk.interestOps(ops);
+        byFd[fd] = sk;
+        keys.add(sk);
+        return sk;
+    }
+
+    /**
+     * Queue a key changed or cancelled for the next select
+     */
+    void updated(EpollKey sk) {
+        synchronized (updateLock) {
+            if (sk.queued)
+                return;
+            sk.queued = true;
+            updates.add(sk);
+        }
+    }
+
+    /**
+     * Bring the epoll-registrations up to date with the keys queued
+     */
+    private void processUpdates() {
+        synchronized (updateLock) {
+            if (updates.isEmpty())
+                return;
+            ArrayList<EpollKey> swap = processing;
+            processing = updates;
+            updates = swap;
+            for (int i = 0; i < processing.size(); i++) {
+                processing.get(i).queued = false;
+            }
+        }
+        for (int i = 0; i < processing.size(); i++) {
+            EpollKey sk = processing.get(i);
+            if (!sk.isValid()) {
+                // a closed channel's descriptor has left the epoll-set (and may belong to another channel by now)
+                if (sk.registered != 0 && sk.channel().isOpen())
+                    ctl(NativeEpoll.EPOLL_CTL_DEL, sk.fd, 0);
+                sk.registered = 0;
+                if (byFd[sk.fd] == sk)
+                    byFd[sk.fd] = null;
+                keys.remove(sk);
+                continue;
+            }
+            int ev = sk.events();
+            if (ev == sk.registered)
+                continue;
+            // an empty interest-set gets unregistered, epoll would report hang-ups anyway
+            int op = ev == 0 ? NativeEpoll.EPOLL_CTL_DEL : sk.registered == 0 ? NativeEpoll.EPOLL_CTL_ADD : NativeEpoll.EPOLL_CTL_MOD;
+            if (ctl(op, sk.fd, ev) == 0 || ev == 0)
+                sk.registered = ev;
+        }
+        processing.clear();
+    }
+
+    private int ctl(int op, int fd, int ev) {
+        ctl.putInt(0, ev);
+        ctl.putLong(NativeEpoll.DATA_OFFSET, fd);
+        return NativeEpoll.epollCtl(epfd, op, fd, ctlAddress);
+    }
+
+    /**
+     * Wait for events and hand the keys they made ready to action
+     * @param timeout milliseconds to wait at most, -1 to wait until something happens, 0 not to wait
+     * @return the number of keys handed to action
+     */
+    private int doSelect(Consumer<SelectionKey> action, int timeout) {
+        ensureOpen();
+        processUpdates();
+        int n = NativeEpoll.epollWait(epfd, eventsAddress, MAX_EVENTS, timeout);
+        int selected = 0;
+        for (int i = 0; i < n; i++) {
+            int base = i * NativeEpoll.EVENT_SIZE;
+            int fd = (int) events.getLong(base + NativeEpoll.DATA_OFFSET);
+            if (fd == wakeupFd) {
+                wakeupPending.set(false);
+                NativeEpoll.read(wakeupFd, counterAddress, 8);
+                continue;
+            }
+            EpollKey sk = fd < byFd.length ? byFd[fd] : null;
+            if (sk == null || !sk.isValid())
+                continue;
+            int ready = sk.translate(events.getInt(base));
+            if (ready == 0)
+                continue;
+            sk.ready = ready;
+            selected++;
+            action.accept(sk);
+        }
+        return selected;
+    }
+
+    public int select(Consumer<SelectionKey> action, long timeout) throws IOException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout");
+        return doSelect(action, timeout == 0 ? -1 : (int) Math.min(timeout, Integer.MAX_VALUE));
+    }
+
+    public int select(Consumer<SelectionKey> action) throws IOException {
+        return select(action, 0);
+    }
+
+    public int selectNow(Consumer<SelectionKey> action) throws IOException {
+        return doSelect(action, 0);
+    }
+
+    public int select(long timeout) throws IOException {
+        throw new UnsupportedOperationException("EpollSelector selects with an action only");
+    }
+
+    public int select() throws IOException {
+        throw new UnsupportedOperationException("EpollSelector selects with an action only");
+    }
+
+    public int selectNow() throws IOException {
+        throw new UnsupportedOperationException("EpollSelector selects with an action only");
+    }
+
+    public Set<SelectionKey> selectedKeys() {
+        throw new UnsupportedOperationException("EpollSelector selects with an action only");
+    }
+
+    public Set<SelectionKey> keys() {
+        ensureOpen();
+        return publicKeys;
+    }
+
+    /**
+     * Make a select return, several wakeups before it does write the eventfd once
+     */
+    public Selector wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            synchronized (closeLock) {
+                if (open)
+                    NativeEpoll.write(wakeupFd, oneAddress, 8);
+            }
+        }
+        return this;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public SelectorProvider provider() {
+        return SelectorProvider.provider();
+    }
+
+    /**
+     * Close the epoll- and the event-descriptor. The channels registered stay open.
+     */
+    public void close() throws IOException {
+        synchronized (closeLock) {
+            if (!open)
+                return;
+            open = false;
+            NativeEpoll.close(wakeupFd);
+            NativeEpoll.close(epfd);
+        }
+        byFd = new EpollKey[0];
+        keys.clear();
+    }
+
+    private void ensureOpen() {
+        if (!open)
+            throw new ClosedSelectorException();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * HandlerWatchdog periodically looks at the IOHandler-callback every watched Poller
+ * is executing right now. If a callback runs longer than the threshold the handler's
+ * class and a stack-sample of the poller-thread get logged (once per callback).
+ */
+package org.freecs.nio.core;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.freecs.nio.interfaces.IOHandler;
+
+public class HandlerWatchdog implements Runnable {
+    private final long thresholdNanos;
+    private final List<Poller> pollers = new CopyOnWriteArrayList<Poller>();
+    private Thread runner;
+
+    /**
+     * Construct a watchdog reporting handler-callbacks taking longer than thresholdMillis
+     * @param thresholdMillis the time a callback may take before being reported
+     */
+    public HandlerWatchdog(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+    }
+
+    /**
+     * Start watching the given Poller
+     * @param p the Poller to watch
+     */
+    public void watch(Poller p) {
+        pollers.add(p);
+    }
+
+    /**
+     * Stop watching the given Poller
+     * @param p the Poller to stop watching
+     */
+    public void unwatch(Poller p) {
+        pollers.remove(p);
+    }
+
+    public void run() {
+        long sleepTime = Math.max(1, thresholdNanos / 2000000L);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Iterator<Poller> i = pollers.iterator(); i.hasNext(); ) {
+                check(i.next(), now);
+            }
+        }
+    }
+
+    private void check(Poller p, long now) {
+        IOHandler ioh = p.currentHandler;
+        long start = p.handlerStart;
+        if (ioh == null || now - start < thresholdNanos || p.reportedStart == start)
+            return;
+        p.reportedStart = start;
+        p.getMetrics().stalled();
+        Thread t = p.getThread();
+        StringBuilder sb = new StringBuilder();
+        sb.append(t == null ? "Poller" : t.getName()).append(": ");
+        sb.append(ioh.getClass().getName()).append(" blocked for ");
+        sb.append((now - start) / 1000000).append("ms");
+        if (t != null) {
+            StackTraceElement[] stack = t.getStackTrace();
+            for (int i = 0; i < stack.length; i++) {
+                sb.append("\n\tat ").append(stack[i]);
+            }
+        }
+        System.err.println(sb.toString());
+    }
+
+    /**
+     * Start the watchdog's thread (a daemon)
+     */
+    public synchronized void start() {
+        if (runner != null && runner.isAlive())
+            return;
+        runner = new Thread(this, "Handler-Watchdog");
+        runner.setDaemon(true);
+        runner.start();
+    }
+
+    /**
+     * Stop the watchdog's thread
+     */
+    public synchronized void shutdown() {
+        if (runner != null)
+            runner.interrupt();
+    }
+}
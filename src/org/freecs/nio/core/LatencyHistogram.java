@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LatencyHistogram is a small HDR-style (log-linear) histogram for recording
+ * latencies in nanoseconds with a relative precision of better than 1%: each power
+ * of two is split into 128 buckets and a value is reported as the lower bound of it's
+ * bucket, so it's under-reported by 1/128 (0.78%) at most.
+ *
+ * A histogram has exactly one writer (usually a poller-thread) which records
+ * without any locks. Any number of threads may read it at the same time by
+ * merging it into a private histogram using mergeInto.
+ */
+package org.freecs.nio.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private volatile long totalCount = 0;
+    private volatile long totalSum = 0;
+    private volatile long max = 0;
+
+    /**
+     * Record a single value. Must only be called by the one thread owning this histogram.
+     * @param value the value (nanoseconds) to record. negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        int idx = indexOf(value);
+        counts.lazySet(idx, counts.get(idx) + 1);
+        totalCount++;
+        totalSum += value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Add all values of this histogram to the given target. The target must not be shared
+     * with a recording thread.
+     * @param target the histogram to add this histogram's values to
+     */
+    public void mergeInto(LatencyHistogram target) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c != 0)
+                target.counts.lazySet(i, target.counts.get(i) + c);
+        }
+        target.totalCount += totalCount;
+        target.totalSum += totalSum;
+        if (max > target.max)
+            target.max = max;
+    }
+
+    /**
+     * Returns the number of recorded values
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the highest recorded value
+     * @return the highest recorded value
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of all recorded values
+     * @return the mean of all recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long cnt = totalCount;
+        return cnt == 0 ? 0 : (double) totalSum / cnt;
+    }
+
+    /**
+     * Returns the value at the given percentile
+     * @param percentile the percentile (0-100)
+     * @return the (lower bound of the) value at the given percentile, 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long cnt = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            cnt += counts.get(i);
+        if (cnt == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * cnt));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return Math.min(valueOf(i), max);
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int exponent = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+        return exponent * SUB_BUCKET_HALF + (int) (value >>> exponent);
+    }
+
+    private static long valueOf(int idx) {
+        if (idx < SUB_BUCKET_COUNT)
+            return idx;
+        int exponent = idx / SUB_BUCKET_HALF - 1;
+        return ((long) (idx - exponent * SUB_BUCKET_HALF)) << exponent;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LatencyRecorder hands out one LatencyHistogram per recording thread (which will
+ * be one per poller in practice) so recording never contends. The histograms
+ * get merged whenever somebody asks for a snapshot.
+ */
+package org.freecs.nio.core;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class LatencyRecorder {
+    private final List<LatencyHistogram> histograms = new CopyOnWriteArrayList<LatencyHistogram>();
+    private final ThreadLocal<LatencyHistogram> local = new ThreadLocal<LatencyHistogram>() {
+        protected LatencyHistogram initialValue() {
+            LatencyHistogram h = new LatencyHistogram();
+            histograms.add(h);
+            return h;
+        }
+    };
+
+    /**
+     * Record the given value within the calling thread's histogram
+     * @param value the value (nanoseconds) to record
+     */
+    public void record(long value) {
+        local.get().record(value);
+    }
+
+    /**
+     * Merge all per-thread histograms into a new one
+     * @return a histogram containing every value recorded so far
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram result = new LatencyHistogram();
+        for (Iterator<LatencyHistogram> i = histograms.iterator(); i.hasNext(); ) {
+            i.next().mergeInto(result);
+        }
+        return result;
+    }
+}
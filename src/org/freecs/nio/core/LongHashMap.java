@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * LongHashMap maps primitive long keys to objects without boxing the keys or allocating
+ * an entry per mapping (open addressing, linear probing). It is not thread-safe; it is
+ * meant for state owned by one poller.
+ */
+package org.freecs.nio.core;
+
+public class LongHashMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+    private int mask;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected the number of mappings expected (the table grows beyond it anyway)
+     */
+    public LongHashMap(int expected) {
+        int cap = 8;
+        while (cap < expected * 2)
+            cap <<= 1;
+        keys = new long[cap];
+        values = new Object[cap];
+        mask = cap - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == null)
+                return -1;
+            if (keys[i] == key)
+                return i;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * Map key to value
+     * @param value the value (must not be null)
+     * @return the value previously mapped to key or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException("null values are not supported");
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == null) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return null;
+            }
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Remove the mapping of key
+     * @return the value mapped to key or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        V old = (V) values[i];
+        // shift the following entries of the probe-sequence back so lookups don't stop at the gap
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns a copy of all keys (e.g. to remove mappings while iterating)
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null)
+                result[n++] = keys[i];
+        }
+        return result;
+    }
+
+    private void resize(int cap) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[cap];
+        values = new Object[cap];
+        mask = cap - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null)
+                put(oldKeys[i], uncheckedCast(oldValues[i]));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V uncheckedCast(Object o) {
+        return (V) o;
+    }
+}
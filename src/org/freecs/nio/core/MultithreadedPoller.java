@@ -17,35 +17,48 @@
 /**
  * MultithreadedPoller is a multithreaded implementation of a NIO poller
  * It just holds a list of single-threaded pollers and distributes the connections
- * evenly across them by creating one for each listening socket and registering new
- * connections with the next poller in list starting over at the end of the list.
+ * evenly across them by registering new connections with the next poller in list
+ * starting over at the end of the list. All listening sockets share one additional
+ * acceptor-poller. With nativePoller set the pollers are EpollPollers where epoll is
+ * available.
  */
 package org.freecs.nio.core;
 
 import java.io.IOException;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 
+import org.freecs.nio.interfaces.IDatagramHandler;
 import org.freecs.nio.interfaces.IOHandler;
 import org.freecs.nio.interfaces.IPoller;
 
 public class MultithreadedPoller implements IPoller {
     private Poller[] pollers;
-    private List<IPoller> listeners = new ArrayList<IPoller>();
+    private Poller acceptor = null;
+    private long selectTimeout = 33;
     private int nextPoller=0;
+    private final boolean nativePoller;
 
     /**
      * Construct a number of pollers according to the given argument
      * @param threads the number of pollers to create
      */
     public MultithreadedPoller (int threads) {
+        this(threads, false);
+    }
+
+    /**
+     * Construct a number of pollers according to the given arguments
+     * @param threads the number of pollers to create
+     * @param nativePoller true to create EpollPollers where epoll is available
+     */
+    public MultithreadedPoller (int threads, boolean nativePoller) {
+        this.nativePoller = nativePoller;
         pollers=new Poller[threads];
         for (int i = 0; i<threads; i++)
             try {
-                pollers[i] = new Poller();
+                pollers[i] = newPoller();
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -53,15 +66,48 @@ public class MultithreadedPoller implements IPoller {
     }
 
     /**
-     * Add an Listening-IOHandler for the given interestOp and the given InetSocketAddress.
+     * Construct the pollers according to the given ServerConfig
+     * @param cfg the ServerConfig defining the number of pollers, their select-timeout and wait-strategy
+     */
+    public MultithreadedPoller (ServerConfig cfg) {
+        this(cfg.getPollerThreads(), cfg.isNativePoller());
+        this.selectTimeout = cfg.getSelectTimeout();
+        for (int i = 0; i < pollers.length; i++) {
+            if (pollers[i] != null)
+                pollers[i].setSelectTimeout(selectTimeout);
+        }
+        setWaitStrategy(cfg.getWaitStrategy(), cfg.getSpinIterations());
+    }
+
+    /**
+     * Set how the pollers handling connections wait while there is nothing to do.
+     * The acceptor-poller keeps blocking, accepting doesn't need to be that fast.
+     * @param strategy BLOCKING (the default), BUSY_SPIN or HYBRID
+     * @param spinIterations the empty polls a HYBRID poller spins before yielding and then blocking
+     */
+    public void setWaitStrategy(WaitStrategy strategy, int spinIterations) {
+        for (int i = 0; i < pollers.length; i++) {
+            if (pollers[i] != null)
+                pollers[i].setWaitStrategy(strategy, spinIterations);
+        }
+    }
+
+    /**
+     * Add an Listening-IOHandler for the given interestOp and the given ServerSocketChannel
+     * (bound to a tcp- or unix-domain-address, see ServerConfig.openServerChannels).
+     * All listening sockets get registered with the one acceptor-poller.
      * @param ioh the io-handler responsible for managing events described by interstOp
-     * @param isa the InetSocketAddress of the port we are interested in
+     * @param ssc the ServerSocketChannel we are accepting connections on
      * @throws IOException
      */
     public void addListeningHandler(IOHandler ioh, ServerSocketChannel ssc) throws IOException {
-        IPoller p = new Poller();
-        p.addListeningHandler(ioh, ssc);
-        listeners.add(p);
+        synchronized(this) {
+            if (acceptor == null) {
+                acceptor = newPoller();
+                acceptor.setSelectTimeout(selectTimeout);
+            }
+        }
+        acceptor.addListeningHandler(ioh, ssc);
     }
 
     /**
@@ -73,13 +119,24 @@ public class MultithreadedPoller implements IPoller {
     public void addHandler(IOHandler ioh, SocketChannel sc) throws IOException {
         getNextPoller().addHandler(ioh, sc);
     }
+
+    /**
+     * Add an IDatagramHandler for the given DatagramChannel with the next poller in line
+     * @param idh the handler getting the datagrams
+     * @param dc the bound (or connected) DatagramChannel
+     * @param maxDatagrams the number of datagrams received per readiness-event at most
+     * @throws IOException
+     */
+    public void addDatagramHandler(IDatagramHandler idh, DatagramChannel dc, int maxDatagrams) throws IOException {
+        getNextPoller().addDatagramHandler(idh, dc, maxDatagrams);
+    }
     
     /**
      * Retrieve the next poller in line starting over at the end of the list
      * @return the noxt poller in line
      * @throws IOException
      */
-    private Poller getNextPoller() throws IOException {
+    Poller getNextPoller() throws IOException {
         int currPoller;
         synchronized(this) {
             currPoller = nextPoller;
@@ -90,22 +147,52 @@ public class MultithreadedPoller implements IPoller {
         }
         Poller next = pollers[currPoller];
         if (next == null) {
-            next = pollers[nextPoller] = new Poller();
+            next = pollers[nextPoller] = newPoller();
             next.startPoller();
         }
         return next;
     }
 
+    private Poller newPoller() throws IOException {
+        return nativePoller ? EpollPoller.open() : new Poller();
+    }
+
     /**
      * Start all pollers
      */
     public void startPoller() throws Exception {
         for (int i = 0; i < pollers.length; i++)
             pollers[i].startPoller();
-        Iterator<IPoller> i = listeners.iterator();
-        while (i.hasNext()) {
-            i.next().startPoller();
+        if (acceptor != null)
+            acceptor.startPoller();
+    }
+
+    /**
+     * Sum up the event-loop counters of all underlying pollers (including the acceptor)
+     * @return the sum of all pollers' event-loop counters
+     */
+    public PollerMetrics getMetrics() {
+        PollerMetrics sum = new PollerMetrics();
+        for (int i = 0; i < pollers.length; i++) {
+            if (pollers[i] != null)
+                pollers[i].getMetrics().addTo(sum);
+        }
+        if (acceptor != null)
+            acceptor.getMetrics().addTo(sum);
+        return sum;
+    }
+
+    /**
+     * Let the given HandlerWatchdog watch all underlying pollers (including the acceptor)
+     * @param hw the HandlerWatchdog to watch the pollers
+     */
+    public void watch(HandlerWatchdog hw) {
+        for (int i = 0; i < pollers.length; i++) {
+            if (pollers[i] != null)
+                hw.watch(pollers[i]);
         }
+        if (acceptor != null)
+            hw.watch(acceptor);
     }
 
     /**
@@ -115,5 +202,7 @@ public class MultithreadedPoller implements IPoller {
         for (int i = 0; i < this.pollers.length; i++) {
             this.pollers[i].shutdown();
         }
+        if (acceptor != null)
+            acceptor.shutdown();
     }
 }
\ No newline at end of file
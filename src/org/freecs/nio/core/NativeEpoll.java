@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * NativeEpoll binds the few libc-functions an EpollSelector needs (epoll_create1, epoll_ctl,
+ * epoll_wait, eventfd, read, write and close) through the Foreign Function & Memory API.
+ * The downcall-handles get looked up reflectively, so the library compiles for Java 17 and
+ * uses java.lang.foreign on Java 22 and later or it's incubating predecessor
+ * jdk.incubator.foreign on Java 17 (requires --add-modules jdk.incubator.foreign).
+ *
+ * Pointers are passed as plain addresses (longs) of direct ByteBuffers, so a call costs
+ * an invokeExact with primitive arguments only and never allocates. The file-descriptors of
+ * channels and the addresses of direct buffers are JDK-internals, reading them requires
+ * --add-exports java.base/sun.nio.ch=ALL-UNNAMED (and --enable-native-access=ALL-UNNAMED
+ * to call native code without warnings).
+ *
+ * If anything of this is missing (or it's not Linux on x86_64 or aarch64) isAvailable
+ * returns false and getUnavailabilityCause tells why.
+ */
+package org.freecs.nio.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.util.Optional;
+
+final class NativeEpoll {
+    static final int EPOLLIN = 0x001;
+    static final int EPOLLOUT = 0x004;
+    static final int EPOLLERR = 0x008;
+    static final int EPOLLHUP = 0x010;
+    static final int EPOLL_CTL_ADD = 1;
+    static final int EPOLL_CTL_DEL = 2;
+    static final int EPOLL_CTL_MOD = 3;
+    private static final int CLOEXEC = 02000000;
+    private static final int EFD_NONBLOCK = 04000;
+
+    /** size of struct epoll_event (packed on x86_64) and the offset of it's data-field */
+    static final int EVENT_SIZE;
+    static final int DATA_OFFSET;
+
+    private static final MethodHandle EPOLL_CREATE1;
+    private static final MethodHandle EPOLL_CTL;
+    private static final MethodHandle EPOLL_WAIT;
+    private static final MethodHandle EVENTFD;
+    private static final MethodHandle READ;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle FD_VAL;
+    private static final MethodHandle ADDRESS;
+    private static final Throwable cause;
+
+    static {
+        String arch = System.getProperty("os.arch");
+        boolean x86 = "amd64".equals(arch) || "x86_64".equals(arch);
+        EVENT_SIZE = x86 ? 12 : 16;
+        DATA_OFFSET = x86 ? 4 : 8;
+        MethodHandle[] mh = new MethodHandle[9];
+        Throwable t = null;
+        try {
+            if (!System.getProperty("os.name").startsWith("Linux") || !(x86 || "aarch64".equals(arch)))
+                throw new UnsupportedOperationException("epoll requires Linux on x86_64 or aarch64, not "
+                        + System.getProperty("os.name") + " on " + arch);
+            Linker linker = Linker.find();
+            mh[0] = linker.downcall("epoll_create1", int.class, int.class);
+            mh[1] = linker.downcall("epoll_ctl", int.class, int.class, int.class, int.class, long.class);
+            mh[2] = linker.downcall("epoll_wait", int.class, int.class, long.class, int.class, int.class);
+            mh[3] = linker.downcall("eventfd", int.class, int.class, int.class);
+            mh[4] = linker.downcall("read", long.class, int.class, long.class, long.class);
+            mh[5] = linker.downcall("write", long.class, int.class, long.class, long.class);
+            mh[6] = linker.downcall("close", int.class, int.class);
+            mh[7] = internal("sun.nio.ch.SelChImpl", "getFDVal", int.class);
+            mh[8] = internal("sun.nio.ch.DirectBuffer", "address", long.class);
+        } catch (Throwable e) {
+            t = e;
+        }
+        cause = t;
+        EPOLL_CREATE1 = mh[0];
+        EPOLL_CTL = mh[1];
+        EPOLL_WAIT = mh[2];
+        EVENTFD = mh[3];
+        READ = mh[4];
+        WRITE = mh[5];
+        CLOSE = mh[6];
+        FD_VAL = mh[7];
+        ADDRESS = mh[8];
+    }
+
+    private NativeEpoll() {
+    }
+
+    /**
+     * Returns true if epoll can be used
+     */
+    static boolean isAvailable() {
+        return cause == null;
+    }
+
+    /**
+     * Returns the reason epoll can't be used or null if it can
+     */
+    static Throwable getUnavailabilityCause() {
+        return cause;
+    }
+
+    /**
+     * Returns a handle calling the public method name of the JDK-internal interface iface
+     * on any object (given as Object), which returns the given type
+     */
+    private static MethodHandle internal(String iface, String name, Class<?> type) throws Exception {
+        Method m = Class.forName(iface).getMethod(name);
+        return MethodHandles.lookup().unreflect(m).asType(MethodType.methodType(type, Object.class));
+    }
+
+    static int epollCreate() {
+        try {
+            return (int) EPOLL_CREATE1.invokeExact(CLOEXEC);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static int epollCtl(int epfd, int op, int fd, long event) {
+        try {
+            return (int) EPOLL_CTL.invokeExact(epfd, op, fd, event);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static int epollWait(int epfd, long events, int maxEvents, int timeout) {
+        try {
+            return (int) EPOLL_WAIT.invokeExact(epfd, events, maxEvents, timeout);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static int eventfd() {
+        try {
+            return (int) EVENTFD.invokeExact(0, EFD_NONBLOCK | CLOEXEC);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static long read(int fd, long buf, long len) {
+        try {
+            return (long) READ.invokeExact(fd, buf, len);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static long write(int fd, long buf, long len) {
+        try {
+            return (long) WRITE.invokeExact(fd, buf, len);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static int close(int fd) {
+        try {
+            return (int) CLOSE.invokeExact(fd);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    /**
+     * Returns the file-descriptor of a channel opened by the JDK's SelectorProvider
+     */
+    static int fdVal(SelectableChannel ch) {
+        try {
+            return (int) FD_VAL.invokeExact((Object) ch);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    /**
+     * Returns the native address of a direct ByteBuffer's first byte
+     */
+    static long address(ByteBuffer direct) {
+        try {
+            return (long) ADDRESS.invokeExact((Object) direct);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    /**
+     * The handles don't throw checked exceptions, anything else gets passed on as it is
+     */
+    private static RuntimeException unchecked(Throwable t) {
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        return new IllegalStateException(t);
+    }
+
+    /**
+     * Linker creates downcall-handles of libc-functions taking and returning ints and longs
+     * only, using whichever version of the Foreign Function & Memory API this JVM has.
+     */
+    private static class Linker {
+        private final Object linker;
+        private final Object lookup;
+        private final Method find;
+        private final Method of;
+        private final Method downcall;
+        private final Object noOptions;
+        private final Object intLayout;
+        private final Object longLayout;
+        private final Class<?> layout;
+        private final boolean incubator;
+
+        private Linker(String pkg, boolean incubator) throws Exception {
+            this.incubator = incubator;
+            Class<?> fd = Class.forName(pkg + ".FunctionDescriptor");
+            layout = Class.forName(pkg + ".MemoryLayout");
+            Class<?> layouts = Array.newInstance(layout, 0).getClass();
+            of = fd.getMethod("of", layout, layouts);
+            if (incubator) {
+                Class<?> c = Class.forName(pkg + ".CLinker");
+                linker = c.getMethod("getInstance").invoke(null);
+                lookup = c.getMethod("systemLookup").invoke(null);
+                find = Class.forName(pkg + ".SymbolLookup").getMethod("lookup", String.class);
+                downcall = c.getMethod("downcallHandle", Class.forName(pkg + ".Addressable"), MethodType.class, fd);
+                intLayout = c.getField("C_INT").get(null);
+                longLayout = c.getField("C_LONG").get(null);
+                noOptions = null;
+            } else {
+                Class<?> c = Class.forName(pkg + ".Linker");
+                Class<?> option = Class.forName(pkg + ".Linker$Option");
+                linker = c.getMethod("nativeLinker").invoke(null);
+                lookup = c.getMethod("defaultLookup").invoke(linker);
+                find = Class.forName(pkg + ".SymbolLookup").getMethod("find", String.class);
+                downcall = c.getMethod("downcallHandle", Class.forName(pkg + ".MemorySegment"), fd,
+                        Array.newInstance(option, 0).getClass());
+                Class<?> values = Class.forName(pkg + ".ValueLayout");
+                intLayout = values.getField("JAVA_INT").get(null);
+                longLayout = values.getField("JAVA_LONG").get(null);
+                noOptions = Array.newInstance(option, 0);
+            }
+        }
+
+        /**
+         * Returns the Linker of java.lang.foreign or, if this JVM doesn't have it, jdk.incubator.foreign
+         */
+        static Linker find() throws Exception {
+            try {
+                return new Linker("java.lang.foreign", false);
+            } catch (ClassNotFoundException e) {
+                return new Linker("jdk.incubator.foreign", true);
+            }
+        }
+
+        /**
+         * Returns a handle calling the function name
+         * @param ret int.class or long.class
+         * @param args int.class or long.class each
+         */
+        MethodHandle downcall(String name, Class<?> ret, Class<?>... args) throws Exception {
+            Optional<?> symbol = (Optional<?>) find.invoke(lookup, name);
+            if (!symbol.isPresent())
+                throw new UnsatisfiedLinkError(name);
+            Object[] argLayouts = (Object[]) Array.newInstance(layout, args.length);
+            for (int i = 0; i < args.length; i++) {
+                argLayouts[i] = layout(args[i]);
+            }
+            Object descriptor = of.invoke(null, layout(ret), argLayouts);
+            if (incubator)
+                return (MethodHandle) downcall.invoke(linker, symbol.get(), MethodType.methodType(ret, args), descriptor);
+            return (MethodHandle) downcall.invoke(linker, symbol.get(), descriptor, noOptions);
+        }
+
+        private Object layout(Class<?> type) {
+            return type == long.class ? longLayout : intLayout;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * OverflowPolicy decides what happens when a message doesn't fit into a connection's
+ * bounded send-queue anymore (see ServerConfig's sendQueueBytes and sendQueueFrames).
+ */
+package org.freecs.nio.core;
+
+public enum OverflowPolicy {
+    /** discard queued messages (oldest first) which haven't started being written */
+    DROP_OLDEST,
+    /** discard the message which doesn't fit */
+    DROP_NEWEST,
+    /** replace a queued message having the same key (e.g. the topic) by the newer one, otherwise drop the newest */
+    CONFLATE,
+    /** close the connection of the slow consumer */
+    DISCONNECT
+}
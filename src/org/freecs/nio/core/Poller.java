@@ -16,13 +16,23 @@
 
 /**
  * Poller opens a selector and delegates the ready SelectionKey's to the 
- * IOHandler registered with the corresponding SelectionKey
+ * IOHandler registered with the corresponding SelectionKey.
+ * Besides the IOHandlers it runs tasks handed over by other threads (execute) and
+ * timers (schedule) on it's thread, so handlers never need locks for state only the
+ * poller touches.
+ * Selected keys are handed to their IOHandlers by a callback of select (no selected-key set,
+ * no iterator), so the loop itself doesn't allocate while no channels get registered. The JDK's
+ * epoll-selector still boxes every file-descriptor above 127 it reports as Integer, unless the
+ * JVM runs with -XX:AutoBoxCacheMax covering them; an EpollPoller finds it's keys without boxing.
+ * While there is nothing to do it blocks within select, spins on selectNow or spins
+ * for a while before it blocks, depending on it's WaitStrategy.
  */
 package org.freecs.nio.core;
 
 import java.io.IOException;
 import java.nio.channels.CancelledKeyException;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -31,6 +41,10 @@ import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import org.freecs.nio.interfaces.IDatagramHandler;
 import org.freecs.nio.interfaces.IOHandler;
 import org.freecs.nio.interfaces.IPoller;
 
@@ -39,23 +53,68 @@ public class Poller implements Runnable, IPoller {
     private final Selector sel;
     private Thread runner;
     private int priority = 5;
+    private long selectTimeout = 33;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private int spinIterations = 10000;
+    // the number of yields of a HYBRID poller between spinning and blocking
+    private static final int YIELDS = 100;
     private List<IOHandler> regListIoh = new ArrayList<IOHandler>();
-    private List<SocketChannel> regListSc = new ArrayList<SocketChannel>(); 
+    private List<SelectableChannel> regListSc = new ArrayList<SelectableChannel>();
+    private final PollerMetrics metrics = new PollerMetrics();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ConcurrentLinkedQueue<ScheduledTask> newTimers = new ConcurrentLinkedQueue<ScheduledTask>();
+    private final PriorityQueue<ScheduledTask> timers = new PriorityQueue<ScheduledTask>();
+    private static final ThreadLocal<Poller> current = new ThreadLocal<Poller>();
+
+    // the handler-callback currently executing (read by HandlerWatchdog)
+    volatile IOHandler currentHandler = null;
+    volatile long handlerStart = 0;
+    long reportedStart = 0;
+    private long firstDispatch = 0;
+    // hands the selected keys to dispatch, so selecting doesn't allocate an iterator per wakeup
+    final Consumer<SelectionKey> dispatcher = new Consumer<SelectionKey>() {
+        public void accept(SelectionKey sk) {
+            dispatch(sk);
+        }
+    };
     
     public Poller () throws IOException {
-        sel = SelectorProvider.provider().openSelector();
+        this(SelectorProvider.provider().openSelector());
+    }
+
+    /**
+     * @param sel the selector to poll (see EpollPoller)
+     */
+    Poller (Selector sel) {
+        this.sel = sel;
     }
 
     /**
-     * Add an Listening-IOHandler for the given interestOp and the given InetSocketAddress.
+     * Add an Listening-IOHandler for the given interestOp and the given ServerSocketChannel
+     * (bound to a tcp- or unix-domain-address, see ServerConfig.openServerChannels).
      * @param ioh the io-handler responsible for managing events described by interstOp
-     * @param isa the InetSocketAddress of the port we are interested in
+     * @param ssc the ServerSocketChannel we are accepting connections on
      * @throws IOException
      */
     public void addListeningHandler(IOHandler ioh, ServerSocketChannel ssc) throws IOException {
-        ssc.register(sel, SelectionKey.OP_ACCEPT, ioh);
+        listen(ioh, ssc);
         priority = 8;
     }
+
+    /**
+     * Register a ServerSocketChannel for OP_ACCEPT, called by any thread
+     */
+    void listen(IOHandler ioh, ServerSocketChannel ssc) throws IOException {
+        ssc.register(sel, SelectionKey.OP_ACCEPT, ioh);
+    }
+
+    /**
+     * Register a channel with the selector, called by the poller's thread
+     * @return the channel's SelectionKey having ioh attached
+     */
+    SelectionKey register(SelectableChannel sc, int ops, IOHandler ioh) throws IOException {
+        return sc.register(sel, ops, ioh);
+    }
     
     /**
      * Add an IOHandler for the given interestOp and the given SocketChannel.
@@ -71,80 +130,100 @@ public class Poller implements Runnable, IPoller {
         }
     }
 
+    /**
+     * Add an IDatagramHandler for the given DatagramChannel. Every readiness-event drains up to
+     * maxDatagrams datagrams into a pooled receive-buffer, handing them to the handler one by one.
+     * @param idh the handler getting the datagrams
+     * @param dc the bound (or connected) DatagramChannel
+     * @param maxDatagrams the number of datagrams received per readiness-event at most
+     * @throws IOException
+     */
+    public void addDatagramHandler(IDatagramHandler idh, DatagramChannel dc, int maxDatagrams) throws IOException {
+        dc.configureBlocking(false);
+        synchronized(regListIoh) {
+            regListIoh.add(new DatagramEndpoint(idh, dc, maxDatagrams));
+            regListSc.add(dc);
+        }
+    }
+
     public static final IOHandler[] ioArr = new IOHandler[0];
-    public static final SocketChannel[] scArr = new SocketChannel[0];
+    public static final SelectableChannel[] scArr = new SelectableChannel[0];
 
     public void run() {
         startup();
+        current.set(this);
+        int idle = 0;
         while (this.isRunning()) {
+            runTasks();
             if (regListIoh.size()>0) {
                 IOHandler[] iohs;
-                SocketChannel[] scs;
+                SelectableChannel[] scs;
                 synchronized(regListIoh) {
                     iohs = (IOHandler[]) regListIoh.toArray(ioArr);
-                    scs = (SocketChannel[]) regListSc.toArray(scArr);
+                    scs = regListSc.toArray(scArr);
                     regListIoh.clear();
                     regListSc.clear();
                 }
+                metrics.registered(iohs.length);
                 for (int i = 0; i < iohs.length; i++) {
                     try {
-                        SelectionKey sk = scs[i].register(sel, iohs[i].getInterestSet(), iohs[i]);
+                        SelectionKey sk = register(scs[i], iohs[i].getInterestSet(), iohs[i]);
                         iohs[i].setSelectionKey(sk);
-                        if ((iohs[i].getInterestSet() & SelectionKey.OP_CONNECT) != 0 && scs[i].isConnected()) {
+                        if ((iohs[i].getInterestSet() & SelectionKey.OP_CONNECT) != 0 && ((SocketChannel) scs[i]).isConnected()) {
                             iohs[i].connect();
                         }
-                    } catch (ClosedChannelException e) {
+                    } catch (IOException e) {
                         e.printStackTrace();
                     }
                 }
             }
             try {
-                if (sel.select(33)<1) {
-                    continue;
+                long selectStart = System.nanoTime();
+                long timeout = selectTimeout;
+                ScheduledTask next = timers.peek();
+                if (next != null) {
+                    // round up to whole milliseconds (select(0) would block forever), -1 if due already
+                    long nanos = next.deadline - selectStart;
+                    long untilNext = nanos <= 0 ? -1 : (nanos + 999999) / 1000000;
+                    timeout = timeout > 0 ? Math.min(timeout, untilNext) : untilNext;
                 }
+                firstDispatch = 0;
+                boolean spin = waitStrategy == WaitStrategy.BUSY_SPIN
+                        || (waitStrategy == WaitStrategy.HYBRID && idle < spinIterations + YIELDS);
+                int keys;
+                if (timeout < 0 || spin) {
+                    if (spin && waitStrategy == WaitStrategy.HYBRID && idle >= spinIterations) {
+                        metrics.yielded();
+                        Thread.yield();
+                    }
+                    keys = sel.selectNow(dispatcher);
+                } else {
+                    metrics.parked();
+                    keys = sel.select(dispatcher, timeout);
+                }
+                long selectEnd = System.nanoTime();
+                if (keys > 0) {
+                    idle = 0;
+                } else if (spin) {
+                    metrics.spun();
+                    if (idle < Integer.MAX_VALUE)
+                        idle++;
+                    Thread.onSpinWait();
+                }
+                // the keys get dispatched within select, time spent in between counts as handling
+                long handled = keys > 0 ? firstDispatch : selectEnd;
+                metrics.selected(keys, handled - selectStart);
+                if (keys > 0)
+                    metrics.handled(selectEnd - handled);
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
                 this.shutdown();
                 break;
             }
-            for (Iterator<SelectionKey> i = sel.selectedKeys().iterator(); i.hasNext(); ) { 
-                SelectionKey sk = i.next();
-                IOHandler ioh = (IOHandler) sk.attachment();
-                try {
-                    if (!sk.isValid()) {
-                        ioh.cleanup();
-                        continue;
-                    }
-                    if (sk.isAcceptable()) {
-                        ServerSocketChannel ssc = (ServerSocketChannel) sk.channel();
-                        SocketChannel sc = ssc.accept();
-                        if (sc!=null) {
-                            sc.configureBlocking(false);
-                            ioh.accept(sc);
-                        }
-                        continue;
-                    }
-                    if (sk.isConnectable()) {
-                        ioh.connect();
-                        continue;
-                    }
-                    if (sk.isReadable()) {
-                        ioh.read();
-                    }
-                    if (sk.isWritable()) {
-                        ioh.write();
-                    }
-                } catch (IOException ioe) {
-                    ioh.cleanup();
-                } catch (CancelledKeyException cke) {
-                    // happens... remotely or locally closed connection for example
-                    ioh.cleanup();
-                } finally {
-                    i.remove();
-                }
-            }
+            runTimers();
         }
+        current.remove();
         for (Iterator<SelectionKey> i = sel.keys().iterator(); i.hasNext(); ) {
             SelectionKey sk = i.next();
             try {
@@ -160,6 +239,156 @@ public class Poller implements Runnable, IPoller {
         }
     }
     
+    /**
+     * Hand a selected key to it's IOHandler. The ready-set is read once, a key cancelled
+     * meanwhile makes readyOps throw and gets it's handler cleaned up.
+     * @param sk the key selected
+     */
+    void dispatch(SelectionKey sk) {
+        IOHandler ioh = (IOHandler) sk.attachment();
+        handlerStart = System.nanoTime();
+        if (firstDispatch == 0)
+            firstDispatch = handlerStart;
+        currentHandler = ioh;
+        try {
+            int ops = sk.readyOps();
+            if ((ops & SelectionKey.OP_ACCEPT) != 0) {
+                ServerSocketChannel ssc = (ServerSocketChannel) sk.channel();
+                SocketChannel sc = ssc.accept();
+                if (sc!=null) {
+                    sc.configureBlocking(false);
+                    ioh.accept(sc);
+                }
+                return;
+            }
+            if ((ops & SelectionKey.OP_CONNECT) != 0) {
+                ioh.connect();
+                return;
+            }
+            if ((ops & SelectionKey.OP_READ) != 0) {
+                ioh.read();
+            }
+            if ((ops & SelectionKey.OP_WRITE) != 0 && sk.isValid()) {
+                ioh.write();
+            }
+        } catch (IOException ioe) {
+            ioh.cleanup();
+        } catch (CancelledKeyException cke) {
+            // happens... remotely or locally closed connection for example
+            ioh.cleanup();
+        } finally {
+            currentHandler = null;
+        }
+    }
+
+    /**
+     * Run a task on this poller's thread. Called from the poller's thread the task runs right away.
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        if (current.get() == this) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        if (waitStrategy != WaitStrategy.BUSY_SPIN)
+            sel.wakeup(); // a spinning poller picks it up anyway
+    }
+
+    /**
+     * Run a task on this poller's thread after the given delay
+     * @param task the task to run
+     * @param delayMillis the delay in milliseconds
+     * @return the ScheduledTask, which may be cancelled
+     */
+    public ScheduledTask schedule(Runnable task, long delayMillis) {
+        ScheduledTask st = new ScheduledTask(task, System.nanoTime() + delayMillis * 1000000L);
+        if (current.get() == this) {
+            timers.add(st);
+        } else {
+            newTimers.add(st);
+            sel.wakeup();
+        }
+        return st;
+    }
+
+    /**
+     * Returns the Poller running on the calling thread
+     * @return the calling thread's Poller or null if called by some other thread
+     */
+    public static Poller current() {
+        return current.get();
+    }
+
+    /**
+     * Run the tasks handed over by other threads and take over their timers
+     */
+    private void runTasks() {
+        for (ScheduledTask st = newTimers.poll(); st != null; st = newTimers.poll()) {
+            timers.add(st);
+        }
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                re.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run all timers which are due
+     */
+    private void runTimers() {
+        if (timers.isEmpty())
+            return;
+        long now = System.nanoTime();
+        for (ScheduledTask st = timers.peek(); st != null && st.deadline - now <= 0; st = timers.peek()) {
+            timers.poll();
+            if (st.isCancelled())
+                continue;
+            try {
+                st.task.run();
+            } catch (RuntimeException re) {
+                re.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Set the time select blocks if there is nothing to do
+     * @param millis the timeout in milliseconds
+     */
+    public void setSelectTimeout(long millis) {
+        this.selectTimeout = millis;
+    }
+
+    /**
+     * Set how this poller waits while there is nothing to do
+     * @param strategy BLOCKING (the default), BUSY_SPIN or HYBRID
+     * @param spinIterations the empty polls a HYBRID poller spins before yielding and then blocking
+     */
+    public void setWaitStrategy(WaitStrategy strategy, int spinIterations) {
+        this.waitStrategy = strategy;
+        this.spinIterations = spinIterations;
+    }
+
+    /**
+     * Returns the event-loop counters of this poller
+     * @return the event-loop counters of this poller
+     */
+    public PollerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the thread running this poller
+     * @return the thread running this poller or null if it hasn't been started
+     */
+    public Thread getThread() {
+        return runner;
+    }
+
     public boolean isRunning() {
         return running;
     }
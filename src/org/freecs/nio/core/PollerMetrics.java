@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PollerMetrics holds the event-loop counters of one Poller. They are only written
+ * by the poller's own thread (stalls by the HandlerWatchdog) and may be read
+ * at any time by any thread.
+ */
+package org.freecs.nio.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PollerMetrics {
+    private volatile long selects = 0;
+    private volatile long wakeups = 0;
+    private volatile long selectedKeys = 0;
+    private volatile long maxSelectedKeys = 0;
+    private volatile long selectNanos = 0;
+    private volatile long handlerNanos = 0;
+    private volatile long registrations = 0;
+    private volatile long spins = 0;
+    private volatile long yields = 0;
+    private volatile long parks = 0;
+    private final AtomicLong stalls = new AtomicLong();
+
+    /**
+     * A select returned
+     * @param keys the number of selected keys
+     * @param nanos the time spent within select
+     */
+    void selected(int keys, long nanos) {
+        selects++;
+        selectNanos += nanos;
+        if (keys < 1)
+            return;
+        wakeups++;
+        selectedKeys += keys;
+        if (keys > maxSelectedKeys)
+            maxSelectedKeys = keys;
+    }
+
+    /**
+     * The selected keys of one wakeup have been handled
+     * @param nanos the time spent within the IOHandlers
+     */
+    void handled(long nanos) {
+        handlerNanos += nanos;
+    }
+
+    /**
+     * Pending registrations have been drained
+     * @param cnt the number of channels registered
+     */
+    void registered(int cnt) {
+        registrations += cnt;
+    }
+
+    /**
+     * A non-blocking select of a spinning poller found nothing
+     */
+    void spun() {
+        spins++;
+    }
+
+    /**
+     * A spinning poller yielded the cpu before selecting again
+     */
+    void yielded() {
+        yields++;
+    }
+
+    /**
+     * The poller blocked within select
+     */
+    void parked() {
+        parks++;
+    }
+
+    /**
+     * The HandlerWatchdog caught a handler exceeding it's threshold
+     */
+    void stalled() {
+        stalls.incrementAndGet();
+    }
+
+    /**
+     * Add the values of this PollerMetrics to the given target
+     * @param target the PollerMetrics to sum up into (must not belong to a running poller)
+     */
+    public void addTo(PollerMetrics target) {
+        target.selects += selects;
+        target.wakeups += wakeups;
+        target.selectedKeys += selectedKeys;
+        target.maxSelectedKeys = Math.max(target.maxSelectedKeys, maxSelectedKeys);
+        target.selectNanos += selectNanos;
+        target.handlerNanos += handlerNanos;
+        target.registrations += registrations;
+        target.spins += spins;
+        target.yields += yields;
+        target.parks += parks;
+        target.stalls.addAndGet(stalls.get());
+    }
+
+    /**
+     * Returns the number of calls to select
+     */
+    public long getSelects() {
+        return selects;
+    }
+
+    /**
+     * Returns the number of selects which returned at least one key
+     */
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    /**
+     * Returns the total number of selected keys
+     */
+    public long getSelectedKeys() {
+        return selectedKeys;
+    }
+
+    /**
+     * Returns the highest number of keys selected by one wakeup
+     */
+    public long getMaxSelectedKeys() {
+        return maxSelectedKeys;
+    }
+
+    /**
+     * Returns the average number of keys selected per wakeup
+     */
+    public double getKeysPerWakeup() {
+        long w = wakeups;
+        return w == 0 ? 0 : (double) selectedKeys / w;
+    }
+
+    /**
+     * Returns the time (nanoseconds) spent within select
+     */
+    public long getSelectNanos() {
+        return selectNanos;
+    }
+
+    /**
+     * Returns the time (nanoseconds) spent within IOHandlers
+     */
+    public long getHandlerNanos() {
+        return handlerNanos;
+    }
+
+    /**
+     * Returns the fraction of time spent within IOHandlers compared to the time
+     * spent within IOHandlers and select
+     */
+    public double getBusyRatio() {
+        long h = handlerNanos, s = selectNanos;
+        return h + s == 0 ? 0 : (double) h / (h + s);
+    }
+
+    /**
+     * Returns the number of channels registered with the poller's selector
+     */
+    public long getRegistrations() {
+        return registrations;
+    }
+
+    /**
+     * Returns the number of non-blocking selects which found nothing while spinning
+     * (those after yielding included)
+     */
+    public long getSpins() {
+        return spins;
+    }
+
+    /**
+     * Returns the number of times the poller yielded the cpu while spinning
+     */
+    public long getYields() {
+        return yields;
+    }
+
+    /**
+     * Returns the number of selects which blocked
+     */
+    public long getParks() {
+        return parks;
+    }
+
+    /**
+     * Returns the number of empty spins per blocking select (the spins if it never blocked)
+     */
+    public double getSpinParkRatio() {
+        long p = parks;
+        return p == 0 ? spins : (double) spins / p;
+    }
+
+    /**
+     * Returns the number of handler-callbacks reported by the HandlerWatchdog
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    public String toString() {
+        return "selects=" + selects + " wakeups=" + wakeups + " keys=" + selectedKeys
+                + " keysPerWakeup=" + getKeysPerWakeup() + " maxKeys=" + maxSelectedKeys
+                + " selectMs=" + selectNanos / 1000000 + " handlerMs=" + handlerNanos / 1000000
+                + " registrations=" + registrations + " stalls=" + stalls.get()
+                + " spins=" + spins + " yields=" + yields + " parks=" + parks;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * ScheduledTask is a task scheduled to run on a Poller's thread at a given time
+ * (see Poller.schedule). It may be cancelled from any thread until it ran.
+ */
+package org.freecs.nio.core;
+
+public class ScheduledTask implements Comparable<ScheduledTask> {
+    final Runnable task;
+    final long deadline;
+    private volatile boolean cancelled = false;
+
+    ScheduledTask(Runnable task, long deadline) {
+        this.task = task;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Prevent the task from running (if it hasn't already)
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the System.nanoTime() this task is due
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public int compareTo(ScheduledTask other) {
+        return Long.compare(deadline, other.deadline);
+    }
+}
@@ -0,0 +1,871 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * ServerConfig holds everything needed to bootstrap a server: the addresses to bind,
+ * listen-backlog, socket-options for accepted connections, number of pollers, buffer-sizes
+ * and timeouts.
+ *
+ * It may be built using a Builder or loaded from a properties-file, using these keys:
+ *   bind               comma separated list of addresses (host:port, [v6-host]:port, *:port, port or unix:/path)
+ *   port               the port used if no bind-address is given
+ *   backlog            listen-backlog of the ServerSocketChannels
+ *   receiveBufferSize  SO_RCVBUF (0 keeps the system default)
+ *   sendBufferSize     SO_SNDBUF (0 keeps the system default)
+ *   tcpNoDelay         TCP_NODELAY for every connection
+ *   pollerThreads      number of pollers handling connections
+ *   bufferSize         size of each connection's read-buffer
+ *   keepAliveTimeout   milliseconds an idle keep-alive-connection stays open
+ *   selectTimeout      milliseconds a poller blocks within select
+ *   waitStrategy       BLOCKING, BUSY_SPIN or HYBRID (see WaitStrategy)
+ *   spinIterations     empty polls a HYBRID poller spins before it yields and blocks
+ *   nativePoller       true to poll with epoll directly where available (see EpollPoller)
+ *   sendQueueBytes     bytes queued per connection before the overflowPolicy applies (0 for unbounded)
+ *   sendQueueFrames    messages queued per connection before the overflowPolicy applies (0 for unbounded)
+ *   overflowPolicy     DROP_OLDEST, DROP_NEWEST, CONFLATE or DISCONNECT (see OverflowPolicy)
+ *   highWatermark      queued bytes at which publishers are told to back off (0 for half of sendQueueBytes)
+ *   lowWatermark       queued bytes at which publishers may continue (0 for half of highWatermark)
+ *   batchSize          bytes of small messages collected before they get written together (0 disables batching)
+ *   batchDelay         milliseconds a message may wait for the batch to fill up
+ *   requestTimeout     milliseconds a request waits for it's reply
+ *   maxFrameSize       largest frame-body a messaging-connection accepts, bigger frames close it
+ *   compressThreshold  frame-bodies of at least this many bytes get deflated (0 disables compression)
+ *   reconnectDelay     milliseconds before reconnecting to a lost peer, doubled for every failed attempt
+ *   maxReconnectDelay  milliseconds the reconnectDelay grows to at most
+ *   connectTimeout     milliseconds a ConnectionPool's connect may take
+ *   poolConnections    connections a ConnectionPool keeps per endpoint at most
+ *   poolInFlight       requests sent on a pooled connection without waiting for the responses
+ *   poolPending        requests waiting for a pooled connection per endpoint, more ones fail
+ *   logDirectory       directory of the messaging-server's MessageLog (not set disables the log)
+ *   logSegmentSize     size of a log-segment-file
+ *   logRetentionBytes  size the log is kept below by dropping the oldest segments (0 for unlimited)
+ *   logRetentionAge    milliseconds after which a sealed segment gets dropped (0 for unlimited)
+ *   tlsKeyStore        keystore holding the key and certificate to speak TLS with (not set disables TLS)
+ *   tlsKeyStorePassword password of the keystore
+ *   tlsTrustStore      keystore holding the certificates of trusted peers (defaults to tlsKeyStore)
+ *   tlsTrustStorePassword password of the truststore (defaults to tlsKeyStorePassword)
+ *   tlsSessionCacheSize number of TLS-sessions kept for resumption (0 for unlimited)
+ *   tlsSessionTimeout  seconds a TLS-session may be resumed
+ */
+package org.freecs.nio.core;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+public class ServerConfig {
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    /** prefix of unix-domain socket addresses (unix:/path) */
+    public static final String UNIX_PREFIX = "unix:";
+
+    private final List<SocketAddress> bindAddresses;
+    private final int backlog;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final boolean tcpNoDelay;
+    private final int pollerThreads;
+    private final int bufferSize;
+    private final long keepAliveTimeout;
+    private final long selectTimeout;
+    private final WaitStrategy waitStrategy;
+    private final int spinIterations;
+    private final boolean nativePoller;
+    private final long sendQueueBytes;
+    private final int sendQueueFrames;
+    private final OverflowPolicy overflowPolicy;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final int batchSize;
+    private final long batchDelay;
+    private final long requestTimeout;
+    private final int maxFrameSize;
+    private final int compressThreshold;
+    private final long reconnectDelay;
+    private final long maxReconnectDelay;
+    private final long connectTimeout;
+    private final int poolConnections;
+    private final int poolInFlight;
+    private final int poolPending;
+    private final String logDirectory;
+    private final int logSegmentSize;
+    private final long logRetentionBytes;
+    private final long logRetentionAge;
+    private final String tlsKeyStore;
+    private final String tlsKeyStorePassword;
+    private final String tlsTrustStore;
+    private final String tlsTrustStorePassword;
+    private final int tlsSessionCacheSize;
+    private final int tlsSessionTimeout;
+
+    private ServerConfig(Builder b) {
+        List<SocketAddress> addrs = new ArrayList<SocketAddress>(b.bindAddresses);
+        if (addrs.isEmpty())
+            addrs.add(new InetSocketAddress(b.port));
+        this.bindAddresses = Collections.unmodifiableList(addrs);
+        this.backlog = b.backlog;
+        this.receiveBufferSize = b.receiveBufferSize;
+        this.sendBufferSize = b.sendBufferSize;
+        this.tcpNoDelay = b.tcpNoDelay;
+        this.pollerThreads = b.pollerThreads;
+        this.bufferSize = b.bufferSize;
+        this.keepAliveTimeout = b.keepAliveTimeout;
+        this.selectTimeout = b.selectTimeout;
+        this.waitStrategy = b.waitStrategy;
+        this.spinIterations = b.spinIterations;
+        this.nativePoller = b.nativePoller;
+        this.sendQueueBytes = b.sendQueueBytes;
+        this.sendQueueFrames = b.sendQueueFrames;
+        this.overflowPolicy = b.overflowPolicy;
+        this.highWatermark = b.highWatermark > 0 ? b.highWatermark : sendQueueBytes / 2;
+        this.lowWatermark = b.lowWatermark > 0 ? b.lowWatermark : highWatermark / 2;
+        this.batchSize = b.batchSize;
+        this.batchDelay = b.batchDelay;
+        this.requestTimeout = b.requestTimeout;
+        this.maxFrameSize = b.maxFrameSize;
+        this.compressThreshold = b.compressThreshold;
+        this.reconnectDelay = b.reconnectDelay;
+        this.maxReconnectDelay = b.maxReconnectDelay;
+        this.connectTimeout = b.connectTimeout;
+        this.poolConnections = b.poolConnections;
+        this.poolInFlight = b.poolInFlight;
+        this.poolPending = b.poolPending;
+        this.logDirectory = b.logDirectory;
+        this.logSegmentSize = b.logSegmentSize;
+        this.logRetentionBytes = b.logRetentionBytes;
+        this.logRetentionAge = b.logRetentionAge;
+        this.tlsKeyStore = b.tlsKeyStore;
+        this.tlsKeyStorePassword = b.tlsKeyStorePassword;
+        this.tlsTrustStore = b.tlsTrustStore != null ? b.tlsTrustStore : b.tlsKeyStore;
+        this.tlsTrustStorePassword = b.tlsTrustStorePassword != null ? b.tlsTrustStorePassword : b.tlsKeyStorePassword;
+        this.tlsSessionCacheSize = b.tlsSessionCacheSize;
+        this.tlsSessionTimeout = b.tlsSessionTimeout;
+    }
+
+    /**
+     * Start building a ServerConfig
+     * @param defaultPort the port to listen on (all interfaces) if no bind-address is given
+     * @return a Builder having all values set to their defaults
+     */
+    public static Builder builder(int defaultPort) {
+        return new Builder(defaultPort);
+    }
+
+    /**
+     * Load a ServerConfig from the given properties-file
+     * @param file the path to the properties-file
+     * @param defaultPort the port to listen on (all interfaces) if no bind-address is given
+     * @return the loaded ServerConfig
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the file contains unknown keys or invalid values
+     */
+    public static ServerConfig load(String file, int defaultPort) throws IOException {
+        return builder(defaultPort).load(file).build();
+    }
+
+    /**
+     * Open, configure and bind a ServerSocketChannel for every bind-address. The socket-file
+     * of a unix-domain address is replaced if it's left over by an earlier run: a socket nobody
+     * accepts connections on. Any other file (or a socket in use) makes binding fail.
+     * @return the bound ServerSocketChannels (non-blocking)
+     * @throws IOException if one of the addresses can't be bound
+     */
+    public List<ServerSocketChannel> openServerChannels() throws IOException {
+        List<ServerSocketChannel> result = new ArrayList<ServerSocketChannel>();
+        for (Iterator<SocketAddress> i = bindAddresses.iterator(); i.hasNext(); ) {
+            SocketAddress addr = i.next();
+            ServerSocketChannel ssc;
+            if (addr instanceof UnixDomainSocketAddress) {
+                removeStaleSocket((UnixDomainSocketAddress) addr);
+                ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                ssc = ServerSocketChannel.open();
+                ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            ssc.configureBlocking(false);
+            // set before bind so accepted sockets inherit it (and the window scale fits)
+            if (receiveBufferSize > 0)
+                ssc.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            ssc.bind(addr, backlog);
+            result.add(ssc);
+        }
+        return result;
+    }
+
+    /**
+     * Remove the socket-file of addr if no server is listening on it anymore
+     */
+    private static void removeStaleSocket(UnixDomainSocketAddress addr) throws IOException {
+        Path path = addr.getPath();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isOther())
+            return; // not a socket, bind reports it
+        SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            probe.connect(addr);
+            return; // in use, bind reports it
+        } catch (ConnectException e) {
+            Files.deleteIfExists(path);
+        } finally {
+            probe.close();
+        }
+    }
+
+    /**
+     * Open a non-blocking SocketChannel of the address' protocol-family (tcp or unix-domain)
+     * @param addr the address to connect to
+     * @return the SocketChannel, not connected yet
+     * @throws IOException
+     */
+    public static SocketChannel openChannel(SocketAddress addr) throws IOException {
+        SocketChannel sc = addr instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+        sc.configureBlocking(false);
+        return sc;
+    }
+
+    /**
+     * Parse an address to connect to
+     * @param addr host:port, [v6-host]:port or unix:/path
+     * @return the address
+     * @throws IllegalArgumentException if addr isn't a valid address
+     */
+    public static SocketAddress parseAddress(String addr) {
+        if (addr.startsWith(UNIX_PREFIX))
+            return UnixDomainSocketAddress.of(addr.substring(UNIX_PREFIX.length()));
+        int colon = addr.lastIndexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("Invalid address " + addr + " (host:port or unix:/path expected)");
+        String host = addr.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, Integer.parseInt(addr.substring(colon + 1)));
+    }
+
+    /**
+     * Apply the socket-options to a newly accepted or connecting SocketChannel
+     * (the tcp-options are left out for unix-domain sockets)
+     * @param sc the SocketChannel to configure
+     * @throws IOException
+     */
+    public void configure(SocketChannel sc) throws IOException {
+        if (sc.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY))
+            sc.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (receiveBufferSize > 0)
+            sc.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        if (sendBufferSize > 0)
+            sc.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+    }
+
+    public List<SocketAddress> getBindAddresses() {
+        return bindAddresses;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public int getPollerThreads() {
+        return pollerThreads;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public long getSelectTimeout() {
+        return selectTimeout;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public int getSpinIterations() {
+        return spinIterations;
+    }
+
+    public boolean isNativePoller() {
+        return nativePoller;
+    }
+
+    public long getSendQueueBytes() {
+        return sendQueueBytes;
+    }
+
+    public int getSendQueueFrames() {
+        return sendQueueFrames;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getPoolConnections() {
+        return poolConnections;
+    }
+
+    public int getPoolInFlight() {
+        return poolInFlight;
+    }
+
+    public int getPoolPending() {
+        return poolPending;
+    }
+
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    public long getLogRetentionBytes() {
+        return logRetentionBytes;
+    }
+
+    public long getLogRetentionAge() {
+        return logRetentionAge;
+    }
+
+    public String getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    public String getTlsKeyStorePassword() {
+        return tlsKeyStorePassword;
+    }
+
+    public String getTlsTrustStore() {
+        return tlsTrustStore;
+    }
+
+    public String getTlsTrustStorePassword() {
+        return tlsTrustStorePassword;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    public static class Builder {
+        private final List<SocketAddress> bindAddresses = new ArrayList<SocketAddress>();
+        private int port;
+        private int backlog = 1024;
+        private int receiveBufferSize = 0;
+        private int sendBufferSize = 0;
+        private boolean tcpNoDelay = true;
+        private int pollerThreads = Runtime.getRuntime().availableProcessors();
+        private int bufferSize = 10240;
+        private long keepAliveTimeout = 10000;
+        private long selectTimeout = 33;
+        private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+        private int spinIterations = 10000;
+        private boolean nativePoller = false;
+        private long sendQueueBytes = 16 * 1024 * 1024;
+        private int sendQueueFrames = 0;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+        private long highWatermark = 0;
+        private long lowWatermark = 0;
+        private int batchSize = 0;
+        private long batchDelay = 1;
+        private long requestTimeout = 5000;
+        private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        private int compressThreshold = 0;
+        private long reconnectDelay = 100;
+        private long maxReconnectDelay = 30000;
+        private long connectTimeout = 3000;
+        private int poolConnections = 8;
+        private int poolInFlight = 1;
+        private int poolPending = 1024;
+        private String logDirectory = null;
+        private int logSegmentSize = 64 * 1024 * 1024;
+        private long logRetentionBytes = 1024L * 1024 * 1024;
+        private long logRetentionAge = 24 * 60 * 60 * 1000L;
+        private String tlsKeyStore = null;
+        private String tlsKeyStorePassword = "";
+        private String tlsTrustStore = null;
+        private String tlsTrustStorePassword = null;
+        private int tlsSessionCacheSize = 20480;
+        private int tlsSessionTimeout = 24 * 60 * 60;
+
+        private Builder(int defaultPort) {
+            this.port = defaultPort;
+        }
+
+        /**
+         * Set a value by it's name as used within properties-files (see ServerConfig)
+         * @param key the name of the value
+         * @param val the value
+         * @return this Builder
+         * @throws IllegalArgumentException if key is unknown or val is invalid
+         */
+        public Builder set(String key, String val) {
+            try {
+                if ("bind".equals(key)) {
+                    String[] addrs = val.split(",");
+                    for (int i = 0; i < addrs.length; i++) {
+                        if (addrs[i].trim().length() > 0)
+                            bind(addrs[i].trim());
+                    }
+                } else if ("port".equals(key)) {
+                    port(Integer.parseInt(val));
+                } else if ("backlog".equals(key)) {
+                    backlog(Integer.parseInt(val));
+                } else if ("receiveBufferSize".equals(key)) {
+                    receiveBufferSize(Integer.parseInt(val));
+                } else if ("sendBufferSize".equals(key)) {
+                    sendBufferSize(Integer.parseInt(val));
+                } else if ("tcpNoDelay".equals(key)) {
+                    tcpNoDelay(Boolean.parseBoolean(val));
+                } else if ("pollerThreads".equals(key)) {
+                    pollerThreads(Integer.parseInt(val));
+                } else if ("bufferSize".equals(key)) {
+                    bufferSize(Integer.parseInt(val));
+                } else if ("keepAliveTimeout".equals(key)) {
+                    keepAliveTimeout(Long.parseLong(val));
+                } else if ("selectTimeout".equals(key)) {
+                    selectTimeout(Long.parseLong(val));
+                } else if ("waitStrategy".equals(key)) {
+                    waitStrategy(parseWaitStrategy(val));
+                } else if ("spinIterations".equals(key)) {
+                    spinIterations(Integer.parseInt(val));
+                } else if ("nativePoller".equals(key)) {
+                    nativePoller(Boolean.parseBoolean(val));
+                } else if ("sendQueueBytes".equals(key)) {
+                    sendQueueBytes(Long.parseLong(val));
+                } else if ("sendQueueFrames".equals(key)) {
+                    sendQueueFrames(Integer.parseInt(val));
+                } else if ("overflowPolicy".equals(key)) {
+                    overflowPolicy(parsePolicy(val));
+                } else if ("highWatermark".equals(key)) {
+                    highWatermark(Long.parseLong(val));
+                } else if ("lowWatermark".equals(key)) {
+                    lowWatermark(Long.parseLong(val));
+                } else if ("batchSize".equals(key)) {
+                    batchSize(Integer.parseInt(val));
+                } else if ("batchDelay".equals(key)) {
+                    batchDelay(Long.parseLong(val));
+                } else if ("requestTimeout".equals(key)) {
+                    requestTimeout(Long.parseLong(val));
+                } else if ("maxFrameSize".equals(key)) {
+                    maxFrameSize(Integer.parseInt(val));
+                } else if ("compressThreshold".equals(key)) {
+                    compressThreshold(Integer.parseInt(val));
+                } else if ("reconnectDelay".equals(key)) {
+                    reconnectDelay(Long.parseLong(val));
+                } else if ("maxReconnectDelay".equals(key)) {
+                    maxReconnectDelay(Long.parseLong(val));
+                } else if ("connectTimeout".equals(key)) {
+                    connectTimeout(Long.parseLong(val));
+                } else if ("poolConnections".equals(key)) {
+                    poolConnections(Integer.parseInt(val));
+                } else if ("poolInFlight".equals(key)) {
+                    poolInFlight(Integer.parseInt(val));
+                } else if ("poolPending".equals(key)) {
+                    poolPending(Integer.parseInt(val));
+                } else if ("logDirectory".equals(key)) {
+                    logDirectory(val);
+                } else if ("logSegmentSize".equals(key)) {
+                    logSegmentSize(Integer.parseInt(val));
+                } else if ("logRetentionBytes".equals(key)) {
+                    logRetentionBytes(Long.parseLong(val));
+                } else if ("logRetentionAge".equals(key)) {
+                    logRetentionAge(Long.parseLong(val));
+                } else if ("tlsKeyStore".equals(key)) {
+                    tlsKeyStore(val);
+                } else if ("tlsKeyStorePassword".equals(key)) {
+                    tlsKeyStorePassword(val);
+                } else if ("tlsTrustStore".equals(key)) {
+                    tlsTrustStore(val);
+                } else if ("tlsTrustStorePassword".equals(key)) {
+                    tlsTrustStorePassword(val);
+                } else if ("tlsSessionCacheSize".equals(key)) {
+                    tlsSessionCacheSize(Integer.parseInt(val));
+                } else if ("tlsSessionTimeout".equals(key)) {
+                    tlsSessionTimeout(Integer.parseInt(val));
+                } else {
+                    throw new IllegalArgumentException("Unknown setting " + key);
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Invalid value for " + key + ": " + val);
+            }
+            return this;
+        }
+
+        private static OverflowPolicy parsePolicy(String val) {
+            OverflowPolicy[] policies = OverflowPolicy.values();
+            for (int i = 0; i < policies.length; i++) {
+                if (policies[i].name().equalsIgnoreCase(val))
+                    return policies[i];
+            }
+            throw new IllegalArgumentException("Invalid value for overflowPolicy: " + val);
+        }
+
+        private static WaitStrategy parseWaitStrategy(String val) {
+            WaitStrategy[] strategies = WaitStrategy.values();
+            for (int i = 0; i < strategies.length; i++) {
+                if (strategies[i].name().equalsIgnoreCase(val))
+                    return strategies[i];
+            }
+            throw new IllegalArgumentException("Invalid value for waitStrategy: " + val);
+        }
+
+        /**
+         * Set all values contained within the given properties-file
+         * @param file the path to the properties-file
+         * @return this Builder
+         * @throws IOException if the file can't be read
+         * @throws IllegalArgumentException if the file contains unknown keys or invalid values
+         */
+        public Builder load(String file) throws IOException {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            for (Iterator<String> i = props.stringPropertyNames().iterator(); i.hasNext(); ) {
+                String key = i.next();
+                set(key, props.getProperty(key).trim());
+            }
+            return this;
+        }
+
+        /**
+         * Apply a command-line argument of the form -config=file or -key=value
+         * @param arg the argument
+         * @return this Builder
+         * @throws IOException if a config-file can't be read
+         * @throws IllegalArgumentException if the argument is unknown or it's value is invalid
+         */
+        public Builder arg(String arg) throws IOException {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("-") || eq < 0)
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            if (arg.startsWith("-config="))
+                return load(arg.substring(eq + 1));
+            return set(arg.substring(1, eq), arg.substring(eq + 1));
+        }
+
+        /**
+         * Add an address to listen on
+         * @param addr host:port, [v6-host]:port, *:port, just a port (all interfaces) or unix:/path
+         * @return this Builder
+         */
+        public Builder bind(String addr) {
+            if (addr.startsWith(UNIX_PREFIX))
+                return bind(UnixDomainSocketAddress.of(addr.substring(UNIX_PREFIX.length())));
+            int colon = addr.lastIndexOf(':');
+            if (colon < 0)
+                return bind(new InetSocketAddress(Integer.parseInt(addr)));
+            String host = addr.substring(0, colon);
+            int p = Integer.parseInt(addr.substring(colon + 1));
+            if (host.startsWith("[") && host.endsWith("]"))
+                host = host.substring(1, host.length() - 1);
+            if (host.length() == 0 || "*".equals(host))
+                return bind(new InetSocketAddress(p));
+            return bind(new InetSocketAddress(host, p));
+        }
+
+        public Builder bind(SocketAddress addr) {
+            bindAddresses.add(addr);
+            return this;
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        public Builder receiveBufferSize(int size) {
+            this.receiveBufferSize = size;
+            return this;
+        }
+
+        public Builder sendBufferSize(int size) {
+            this.sendBufferSize = size;
+            return this;
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder pollerThreads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("pollerThreads must be at least 1");
+            this.pollerThreads = threads;
+            return this;
+        }
+
+        public Builder bufferSize(int size) {
+            if (size < 16)
+                throw new IllegalArgumentException("bufferSize must be at least 16");
+            this.bufferSize = size;
+            return this;
+        }
+
+        public Builder keepAliveTimeout(long millis) {
+            this.keepAliveTimeout = millis;
+            return this;
+        }
+
+        public Builder selectTimeout(long millis) {
+            this.selectTimeout = millis;
+            return this;
+        }
+
+        public Builder waitStrategy(WaitStrategy strategy) {
+            this.waitStrategy = strategy;
+            return this;
+        }
+
+        public Builder spinIterations(int iterations) {
+            this.spinIterations = iterations;
+            return this;
+        }
+
+        public Builder nativePoller(boolean nativePoller) {
+            this.nativePoller = nativePoller;
+            return this;
+        }
+
+        public Builder sendQueueBytes(long bytes) {
+            this.sendQueueBytes = bytes;
+            return this;
+        }
+
+        public Builder sendQueueFrames(int frames) {
+            this.sendQueueFrames = frames;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy policy) {
+            this.overflowPolicy = policy;
+            return this;
+        }
+
+        public Builder highWatermark(long bytes) {
+            this.highWatermark = bytes;
+            return this;
+        }
+
+        public Builder lowWatermark(long bytes) {
+            this.lowWatermark = bytes;
+            return this;
+        }
+
+        public Builder batchSize(int bytes) {
+            this.batchSize = bytes;
+            return this;
+        }
+
+        public Builder batchDelay(long millis) {
+            this.batchDelay = millis;
+            return this;
+        }
+
+        public Builder requestTimeout(long millis) {
+            this.requestTimeout = millis;
+            return this;
+        }
+
+        public Builder maxFrameSize(int bytes) {
+            this.maxFrameSize = bytes;
+            return this;
+        }
+
+        public Builder compressThreshold(int bytes) {
+            this.compressThreshold = bytes;
+            return this;
+        }
+
+        public Builder reconnectDelay(long millis) {
+            this.reconnectDelay = millis;
+            return this;
+        }
+
+        public Builder maxReconnectDelay(long millis) {
+            this.maxReconnectDelay = millis;
+            return this;
+        }
+
+        public Builder connectTimeout(long millis) {
+            this.connectTimeout = millis;
+            return this;
+        }
+
+        public Builder poolConnections(int connections) {
+            this.poolConnections = connections;
+            return this;
+        }
+
+        public Builder poolInFlight(int requests) {
+            this.poolInFlight = requests;
+            return this;
+        }
+
+        public Builder poolPending(int requests) {
+            this.poolPending = requests;
+            return this;
+        }
+
+        public Builder logDirectory(String dir) {
+            this.logDirectory = dir;
+            return this;
+        }
+
+        public Builder logSegmentSize(int bytes) {
+            this.logSegmentSize = bytes;
+            return this;
+        }
+
+        public Builder logRetentionBytes(long bytes) {
+            this.logRetentionBytes = bytes;
+            return this;
+        }
+
+        public Builder logRetentionAge(long millis) {
+            this.logRetentionAge = millis;
+            return this;
+        }
+
+        public Builder tlsKeyStore(String file) {
+            this.tlsKeyStore = file;
+            return this;
+        }
+
+        public Builder tlsKeyStorePassword(String password) {
+            this.tlsKeyStorePassword = password;
+            return this;
+        }
+
+        public Builder tlsTrustStore(String file) {
+            this.tlsTrustStore = file;
+            return this;
+        }
+
+        public Builder tlsTrustStorePassword(String password) {
+            this.tlsTrustStorePassword = password;
+            return this;
+        }
+
+        public Builder tlsSessionCacheSize(int sessions) {
+            this.tlsSessionCacheSize = sessions;
+            return this;
+        }
+
+        public Builder tlsSessionTimeout(int seconds) {
+            this.tlsSessionTimeout = seconds;
+            return this;
+        }
+
+        public ServerConfig build() {
+            return new ServerConfig(this);
+        }
+    }
+}
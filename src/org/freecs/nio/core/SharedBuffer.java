@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * SharedBuffer is a pooled buffer shared by several readers (e.g. a frame broadcast to
+ * many connections). Every holder owns a reference, taken by retain and given back by
+ * release; the buffer returns to it's BufferPool when the last reference is released.
+ * Holders read through their own duplicate so positions don't interfere.
+ */
+package org.freecs.nio.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    /**
+     * Acquire a buffer of the given size from pool. The caller holds the first reference.
+     * @param pool the pool to take the buffer from and give it back to
+     * @param size the number of bytes needed
+     */
+    public SharedBuffer(BufferPool pool, int size) {
+        this.pool = pool;
+        this.buffer = pool.acquire(size);
+    }
+
+    /**
+     * Returns the underlying buffer for filling it. Once shared it must not be modified anymore.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Take another reference
+     * @return this SharedBuffer
+     * @throws IllegalStateException if the buffer has already been released
+     */
+    public SharedBuffer retain() {
+        for (;;) {
+            int cnt = refCnt.get();
+            if (cnt <= 0)
+                throw new IllegalStateException("SharedBuffer already released");
+            if (refCnt.compareAndSet(cnt, cnt + 1))
+                return this;
+        }
+    }
+
+    /**
+     * Give back a reference. The last one hands the buffer back to the pool.
+     */
+    public void release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            pool.release(buffer);
+        } else if (cnt < 0) {
+            throw new IllegalStateException("SharedBuffer released too often");
+        }
+    }
+
+    /**
+     * Returns a view having it's own position and limit (between position and limit of the
+     * underlying buffer at the time of calling)
+     */
+    public ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+}
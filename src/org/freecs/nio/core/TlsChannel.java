@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * TlsChannel is the non-blocking channel a TlsHandler gives to the handler it wraps:
+ * plaintext written to it gets encrypted by the SSLEngine and written to the SocketChannel,
+ * data read from the SocketChannel gets decrypted and handed out as plaintext.
+ *
+ * It owns three buffers taken from the BufferPool: netIn (records read from the socket, kept
+ * ready for reading from the socket), appIn (plaintext decrypted but not read yet, kept ready
+ * for appending) and netOut (records not written to the socket yet, kept ready for writing
+ * to the socket). netOut holds several records, so a gathering write of many small frames
+ * gets wrapped into as many records as fit and written with one call.
+ *
+ * Writing never blocks: records which don't fit into the socket's send-buffer stay within
+ * netOut, the write returns 0 until they've been flushed. Reading returns 0 until a whole
+ * record arrived. All methods synchronize on the channel, closing it (from any thread)
+ * gives the buffers back to the pool.
+ */
+package org.freecs.nio.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    /** result of handshake: a delegated task has to run before it can go on */
+    static final int TASK = -1;
+    /** the number of records netOut holds */
+    private static final int RECORDS = 4;
+    private static final ByteBuffer[] NONE = new ByteBuffer[] { ByteBuffer.allocate(0) };
+
+    private final SocketChannel sc;
+    private final SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private boolean eof = false;
+    private boolean closed = false;
+
+    TlsChannel(SocketChannel sc, SSLEngine engine) {
+        this.sc = sc;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = BufferPool.instance.acquire(packetSize);
+        netOut = BufferPool.instance.acquire(packetSize * RECORDS);
+        netOut.flip();
+        appIn = BufferPool.instance.acquire(engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Drive the handshake as far as possible without blocking
+     * @return 0 once it's done, OP_READ or OP_WRITE if it has to wait for the socket,
+     * TASK if it has to wait for the delegated tasks (see SSLEngine.getDelegatedTask)
+     * @throws IOException if the handshake failed or the connection closed
+     */
+    synchronized int handshake() throws IOException {
+        ensureOpen();
+        for (;;) {
+            if (!flush())
+                return SelectionKey.OP_WRITE;
+            switch (engine.getHandshakeStatus()) {
+            case NOT_HANDSHAKING:
+            case FINISHED:
+                return 0;
+            case NEED_TASK:
+                return TASK;
+            case NEED_WRAP:
+                if (wrapHandshake().getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new EOFException("TLS-connection closed during the handshake");
+                break;
+            default:
+                SSLEngineResult r = unwrap();
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new EOFException("TLS-connection closed during the handshake");
+                if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    int n = sc.read(netIn);
+                    if (n < 0)
+                        throw new EOFException("Connection closed during the TLS-handshake");
+                    if (n == 0)
+                        return SelectionKey.OP_READ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap the handshake-messages the engine has to send into netOut
+     */
+    private SSLEngineResult wrapHandshake() throws SSLException {
+        netOut.compact();
+        try {
+            return engine.wrap(NONE, netOut);
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Decrypt the next record of netIn into appIn, growing a buffer the session's sizes outgrew
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        SSLEngineResult r;
+        try {
+            r = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && appIn.position() == 0) {
+            appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+        } else if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !netIn.hasRemaining()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+        return r;
+    }
+
+    /**
+     * Move the content of b (ready for appending) into a pooled buffer of at least size bytes
+     */
+    private static ByteBuffer grow(ByteBuffer b, int size) {
+        ByteBuffer larger = BufferPool.instance.acquire(Math.max(size, b.capacity() * 2));
+        b.flip();
+        larger.put(b);
+        BufferPool.instance.release(b);
+        return larger;
+    }
+
+    /**
+     * Read what the socket has and decrypt all complete records. Messages of the handshake
+     * arriving after it finished (e.g. session-tickets or key-updates) are handled on the way.
+     * @return the number of plaintext-bytes available, -1 if there are none and the
+     * connection has been closed
+     */
+    synchronized int fill() throws IOException {
+        ensureOpen();
+        if (!eof && netIn.hasRemaining() && sc.read(netIn) < 0)
+            eof = true;
+        while (netIn.position() > 0) {
+            SSLEngineResult r = unwrap();
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                eof = true; // close_notify
+                break;
+            }
+            if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && appIn.position() == 0)
+                continue; // appIn has just grown
+            if (r.getStatus() != SSLEngineResult.Status.OK)
+                break;
+            SSLEngineResult.HandshakeStatus hs = r.getHandshakeStatus();
+            while (hs == SSLEngineResult.HandshakeStatus.NEED_TASK || hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } else {
+                    wrapHandshake();
+                }
+                hs = engine.getHandshakeStatus();
+            }
+        }
+        if (appIn.position() == 0 && eof)
+            return -1;
+        return appIn.position();
+    }
+
+    /**
+     * Returns the number of decrypted bytes not read yet
+     */
+    synchronized int buffered() {
+        return closed ? 0 : appIn.position();
+    }
+
+    /**
+     * Read plaintext, decrypting what the socket has if nothing is buffered
+     */
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (appIn.position() == 0 && fill() < 0)
+            return -1;
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        appIn.compact();
+        return n;
+    }
+
+    public synchronized int write(ByteBuffer src) throws IOException {
+        single[0] = src;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    public synchronized long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypt as many records as netOut holds and write them out, again and again until
+     * either all of srcs is written or the socket doesn't take any more
+     * @return the number of plaintext-bytes consumed (0 while earlier records are still pending)
+     */
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureOpen();
+        long consumed = 0;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        while (flush() && hasRemaining(srcs, offset, length)) {
+            long before = consumed;
+            netOut.compact();
+            try {
+                while (netOut.remaining() >= packetSize && hasRemaining(srcs, offset, length)) {
+                    SSLEngineResult r = engine.wrap(srcs, offset, length, netOut);
+                    if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new ClosedChannelException();
+                    if (r.getStatus() != SSLEngineResult.Status.OK)
+                        break;
+                    consumed += r.bytesConsumed();
+                    if (r.bytesConsumed() == 0)
+                        break;
+                }
+            } finally {
+                netOut.flip();
+            }
+            if (consumed == before && !netOut.hasRemaining())
+                break; // the engine doesn't take any data (right now)
+        }
+        return consumed;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write the pending records to the socket
+     * @return true if nothing is pending anymore
+     */
+    synchronized boolean flush() throws IOException {
+        ensureOpen();
+        if (netOut.hasRemaining())
+            sc.write(netOut);
+        return !netOut.hasRemaining();
+    }
+
+    /**
+     * Returns true if there are records the socket didn't take yet
+     */
+    synchronized boolean hasPendingOutput() {
+        return !closed && netOut.hasRemaining();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed)
+            throw new ClosedChannelException();
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed && sc.isOpen();
+    }
+
+    /**
+     * Send close_notify (as far as the socket takes it without blocking), give the
+     * buffers back to the pool and close the socket
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            engine.closeOutbound();
+            wrapHandshake();
+            if (sc.isConnected())
+                sc.write(netOut);
+        } catch (IOException e) {
+            // the peer is gone already, nothing to notify
+        } finally {
+            BufferPool.instance.release(netIn);
+            BufferPool.instance.release(netOut);
+            BufferPool.instance.release(appIn);
+            sc.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * TlsContext creates the SSLEngines of TLS-connections (see TlsHandler) from one SSLContext,
+ * usually loaded from a keystore holding the key and certificate of this node. The truststore
+ * (the keystore itself if none is given) holds the certificates of the peers trusted, e.g. the
+ * self-signed certificate shared by all nodes of a mesh.
+ *
+ * Sessions are cached by the SSLContext on both sides: a client connecting to the same host and
+ * port again resumes it's session, skipping the key-exchange. Client-engines connecting to a
+ * host and port verify the peer's certificate is issued for that host (the way https does it,
+ * so it needs the host-name or ip-address within it's subject-alternative-names or, for
+ * host-names only, it's CN), connections to unix-domain sockets trust the truststore only.
+ *
+ * Handshakes run on the poller's thread except for the delegated tasks (the expensive
+ * key-exchange computations), these are handed to an executor shared by all connections.
+ */
+package org.freecs.nio.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.freecs.nio.interfaces.ITransportHandler;
+
+public class TlsContext {
+    private static final Executor defaultTasks = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger cnt = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tls-task-" + cnt.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final SSLContext ctx;
+    private final Executor tasks;
+
+    /**
+     * @param ctx the initialized SSLContext
+     * @param sessionCacheSize the number of sessions kept for resumption (0 for unlimited)
+     * @param sessionTimeout the seconds a session may be resumed
+     */
+    public TlsContext(SSLContext ctx, int sessionCacheSize, int sessionTimeout) {
+        this(ctx, sessionCacheSize, sessionTimeout, defaultTasks);
+    }
+
+    /**
+     * @param ctx the initialized SSLContext
+     * @param sessionCacheSize the number of sessions kept for resumption (0 for unlimited)
+     * @param sessionTimeout the seconds a session may be resumed
+     * @param tasks the executor running the handshakes' delegated tasks
+     */
+    public TlsContext(SSLContext ctx, int sessionCacheSize, int sessionTimeout, Executor tasks) {
+        this.ctx = ctx;
+        this.tasks = tasks;
+        ctx.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+        ctx.getServerSessionContext().setSessionTimeout(sessionTimeout);
+        ctx.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+        ctx.getClientSessionContext().setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * Load the TlsContext configured by cfg (tlsKeyStore, tlsKeyStorePassword, tlsTrustStore,
+     * tlsTrustStorePassword, tlsSessionCacheSize, tlsSessionTimeout)
+     * @return the TlsContext or null if no keystore is configured
+     * @throws IOException if a keystore can't be read
+     * @throws GeneralSecurityException if a keystore can't be used
+     */
+    public static TlsContext load(ServerConfig cfg) throws IOException, GeneralSecurityException {
+        if (cfg.getTlsKeyStore() == null)
+            return null;
+        char[] password = cfg.getTlsKeyStorePassword().toCharArray();
+        KeyStore ks = KeyStore.getInstance(new File(cfg.getTlsKeyStore()), password);
+        KeyStore ts = cfg.getTlsTrustStore().equals(cfg.getTlsKeyStore()) ? ks
+                : KeyStore.getInstance(new File(cfg.getTlsTrustStore()), cfg.getTlsTrustStorePassword().toCharArray());
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ts);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return new TlsContext(ctx, cfg.getTlsSessionCacheSize(), cfg.getTlsSessionTimeout());
+    }
+
+    /**
+     * Returns a new engine for an accepted connection
+     */
+    public SSLEngine serverEngine() {
+        SSLEngine engine = ctx.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Returns a new engine for a connection to peer, resuming the session of
+     * an earlier connection to peer if it is still cached. The engine of a tcp-peer
+     * checks the peer's certificate has been issued for the host connected to.
+     */
+    public SSLEngine clientEngine(SocketAddress peer) {
+        SSLEngine engine;
+        if (peer instanceof InetSocketAddress) {
+            InetSocketAddress isa = (InetSocketAddress) peer;
+            engine = ctx.createSSLEngine(isa.getHostString(), isa.getPort());
+            SSLParameters params = engine.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(params);
+        } else {
+            engine = ctx.createSSLEngine(peer.toString(), 0); // a unix-domain socket's path
+        }
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Wrap the handler of an accepted connection
+     * @param ioh the handler speaking plaintext
+     * @return the handler to register with the poller instead
+     */
+    public TlsHandler server(ITransportHandler ioh) {
+        return new TlsHandler(ioh, serverEngine(), tasks);
+    }
+
+    /**
+     * Wrap the handler of a connection to peer
+     * @param ioh the handler speaking plaintext (having OP_CONNECT as interest-set)
+     * @param peer the address connected to
+     * @return the handler to register with the poller instead
+     */
+    public TlsHandler client(ITransportHandler ioh, SocketAddress peer) {
+        return new TlsHandler(ioh, clientEngine(peer), tasks);
+    }
+}
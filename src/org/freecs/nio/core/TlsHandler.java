@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * TlsHandler speaks TLS on behalf of the ITransportHandler it wraps. It gets registered with
+ * the poller instead of the wrapped handler, drives the handshake and passes the poller's
+ * events on once the handshake is done. The wrapped handler reads and writes plaintext through
+ * a TlsChannel and doesn't know about TLS at all.
+ *
+ * The handshake runs on the poller's thread. While the SSLEngine's delegated tasks run on the
+ * TlsContext's executor the key's interest-set is empty, once they're done the handshake goes
+ * on on the poller again. An accepted connection starts the handshake when it gets registered,
+ * a connection to a server once it's connected; the wrapped handler's connect is called after
+ * the handshake is done, so it sees an established (and encrypted) connection.
+ *
+ * Records the socket didn't take keep OP_WRITE set, the wrapped handler gets it's write-event
+ * once they've been flushed. Decrypted plaintext is handed to the wrapped handler as long as
+ * it takes it, since the selector doesn't know about data buffered within the TlsChannel.
+ */
+package org.freecs.nio.core;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+
+import org.freecs.nio.interfaces.IOHandler;
+import org.freecs.nio.interfaces.ITransportHandler;
+
+public class TlsHandler implements IOHandler {
+    private final ITransportHandler inner;
+    private final SSLEngine engine;
+    private final Executor tasks;
+    private final Runnable resume = new Runnable() {
+        public void run() {
+            handshake();
+        }
+    };
+    private SelectionKey sk = null;
+    private Poller poller = null;
+    private TlsChannel tls = null;
+    private boolean handshaking = true;
+    private volatile boolean runningTasks = false;
+
+    /**
+     * @param inner the handler speaking plaintext
+     * @param engine the engine (in client- or server-mode) of this connection
+     * @param tasks the executor running the handshake's delegated tasks
+     */
+    public TlsHandler(ITransportHandler inner, SSLEngine engine, Executor tasks) {
+        this.inner = inner;
+        this.engine = engine;
+        this.tasks = tasks;
+    }
+
+    public void accept(SocketChannel sc) { return; } // nothing to accept (it's an already established connection)
+
+    /**
+     * Finish connecting and start the handshake. A failing connection is left to the
+     * wrapped handler, which reports and cleans it up it's own way.
+     */
+    public void connect() {
+        try {
+            if (!((SocketChannel) sk.channel()).finishConnect())
+                return;
+            engine.beginHandshake();
+        } catch (IOException e) {
+            inner.connect();
+            return;
+        }
+        handshake();
+    }
+
+    /**
+     * Go on with the handshake as far as possible and wait for whatever it needs next
+     */
+    private void handshake() {
+        if (!tls.isOpen())
+            return;
+        try {
+            if (runningTasks) {
+                sk.interestOps(0); // OP_WRITE set by the wrapped handler queuing a frame
+                return;
+            }
+            int result = tls.handshake();
+            if (result == TlsChannel.TASK) {
+                sk.interestOps(0);
+                runningTasks = true;
+                tasks.execute(new Runnable() {
+                    public void run() {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        runningTasks = false;
+                        poller.execute(resume);
+                    }
+                });
+            } else if (result != 0) {
+                sk.interestOps(result);
+            } else {
+                established();
+            }
+        } catch (IOException e) {
+            this.cleanup();
+        } catch (CancelledKeyException e) {
+            this.cleanup();
+        }
+    }
+
+    /**
+     * The handshake is done: hand the connection over to the wrapped handler
+     */
+    private void established() {
+        handshaking = false;
+        if ((inner.getInterestSet() & SelectionKey.OP_CONNECT) != 0) {
+            inner.connect();
+        } else {
+            // whatever has been queued during the handshake gets written now
+            sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        // records arriving along with the peer's last handshake-message are within netIn already
+        read();
+    }
+
+    /**
+     * Decrypt what arrived and hand it to the wrapped handler
+     */
+    public void read() {
+        if (handshaking) {
+            handshake();
+            return;
+        }
+        int available;
+        try {
+            available = tls.fill();
+        } catch (IOException e) {
+            this.cleanup();
+            return;
+        }
+        if (available != 0)
+            deliver(); // plaintext or end of stream
+        flushLater();
+    }
+
+    /**
+     * Let the wrapped handler read for as long as plaintext is buffered and it takes some
+     */
+    private void deliver() {
+        int before;
+        do {
+            before = tls.buffered();
+            inner.read();
+        } while (tls.buffered() > 0 && tls.buffered() < before);
+    }
+
+    /**
+     * Flush pending records first, the wrapped handler writes once they're out
+     */
+    public void write() {
+        if (handshaking) {
+            handshake();
+            return;
+        }
+        try {
+            if (!tls.flush())
+                return;
+        } catch (IOException e) {
+            this.cleanup();
+            return;
+        }
+        inner.write();
+        flushLater();
+    }
+
+    /**
+     * Keep OP_WRITE set while there are records the socket didn't take (the
+     * wrapped handler unsets it once it has nothing more to write)
+     */
+    private void flushLater() {
+        if (!tls.hasPendingOutput())
+            return;
+        try {
+            sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            this.cleanup();
+        }
+    }
+
+    /**
+     * Cleanup the wrapped handler, which closes the TlsChannel (sending close_notify)
+     */
+    public void cleanup() {
+        if (tls != null && !tls.isOpen())
+            return; // cleaned up already
+        inner.cleanup();
+    }
+
+    /**
+     * Set up the TlsChannel and start the handshake of an accepted connection
+     */
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+        this.poller = Poller.current();
+        this.tls = new TlsChannel((SocketChannel) sk.channel(), engine);
+        inner.setChannel(tls);
+        inner.setSelectionKey(sk);
+        if (engine.getUseClientMode())
+            return;
+        try {
+            engine.beginHandshake();
+        } catch (IOException e) {
+            this.cleanup();
+            return;
+        }
+        handshake();
+    }
+
+    public int getInterestSet() {
+        return inner.getInterestSet();
+    }
+}
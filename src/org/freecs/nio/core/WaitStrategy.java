@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * WaitStrategy decides how a Poller waits for events while there is nothing to do
+ * (see ServerConfig's waitStrategy and spinIterations). Spinning saves the wakeup and
+ * the context-switch in front of every event but keeps one core busy per poller.
+ */
+package org.freecs.nio.core;
+
+public enum WaitStrategy {
+    /** block within select until an event arrives or the select-timeout passes */
+    BLOCKING,
+    /** poll with selectNow in a loop, never giving up the core */
+    BUSY_SPIN,
+    /** poll with selectNow for spinIterations, then yield for a while, then block */
+    HYBRID
+}
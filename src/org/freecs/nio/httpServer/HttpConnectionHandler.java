@@ -17,23 +17,28 @@
 /**
  * HttpConnectionHandler handles a connected client's reads/writes/disconnects and registeres
  * with HttpKeepAliveTracker if it is a keep-alive-connection.
+ * Wrapped by a TlsHandler it reads and writes through the TlsChannel instead.
  */
 package org.freecs.nio.httpServer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
-import org.freecs.nio.interfaces.IOHandler;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.freecs.nio.interfaces.ITransportHandler;
 
-public class HttpConnectionHandler implements IOHandler {
+public class HttpConnectionHandler implements ITransportHandler {
     private final ByteBuffer buff;
     private final HttpRequestParser hrp;
     private LinkedList<HttpResponse> responseQueue = new LinkedList<HttpResponse>();
     private SelectionKey sk = null;
+    private ByteChannel channel = null;
 
     private KeepAliveState kas = null;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     
     @SuppressWarnings("unused")
     private HttpConnectionHandler() { buff=null; hrp=null; }
@@ -41,6 +46,7 @@ public class HttpConnectionHandler implements IOHandler {
     HttpConnectionHandler (int buffSize) {
         buff = ByteBuffer.allocateDirect(buffSize);
         hrp = new HttpRequestParser(this, buff);
+        HttpMetrics.instance.connectionOpened();
     }
 
     public void accept(SocketChannel sc) { return; } // nothing to accept (it's an already established connection)
@@ -57,15 +63,25 @@ public class HttpConnectionHandler implements IOHandler {
         }
         kas.updateIfListed();
         try {
-            if (((SocketChannel) sk.channel()).read(buff) == -1) {
+            int bytesRead = channel.read(buff);
+            if (bytesRead == -1) {
                 this.cleanup();
                 return;
             }
+            long arrival = System.nanoTime();
+            HttpMetrics.instance.bytesRead(bytesRead);
             buff.flip();
             HttpRequest req;
             try {
                 while ((req = hrp.parseNewData()) != null) {
-                    this.addResponse(sk, new HttpResponse(req));
+                    HttpResponse hr;
+                    if (HttpMetrics.SCRAPE_URL.equals(req.url())) {
+                        hr = new HttpResponse(req, "text/plain", HttpMetrics.instance.toText().getBytes());
+                    } else {
+                        hr = new HttpResponse(req);
+                    }
+                    hr.requestTime = arrival;
+                    this.addResponse(sk, hr);
                     if (!req.isHttp11() || !req.isKeepAlive()) {
                         this.addResponse(sk, HttpResponse.CloseConnection);
                     } else if (req.isKeepAlive()) {
@@ -74,7 +90,10 @@ public class HttpConnectionHandler implements IOHandler {
                 }
                 buff.compact();
             } catch(HttpError he) {
-                this.addResponse(sk, new HttpResponse(he.responseCode));
+                HttpMetrics.instance.parseError(he.responseCode);
+                HttpResponse hr = new HttpResponse(he.responseCode);
+                hr.requestTime = arrival;
+                this.addResponse(sk, hr);
                 this.addResponse(sk, HttpResponse.CloseConnection);
             }
         } catch (IOException e) {
@@ -88,20 +107,22 @@ public class HttpConnectionHandler implements IOHandler {
      */
     public void write() {
         try {
-            SocketChannel sc = (SocketChannel) sk.channel();
             while (!responseQueue.isEmpty()) {
                 HttpResponse hr = responseQueue.getFirst();
                 if (hr == HttpResponse.CloseConnection) {
                     this.cleanup();
                     return;
                 }
-                if (sc.write(hr.buff) < 1) {
+                int written = channel.write(hr.buff);
+                HttpMetrics.instance.bytesWritten(written);
+                if (hr.buff.hasRemaining()) {
                     return;
                 }
                 responseQueue.removeFirst();
+                HttpMetrics.instance.requestCompleted(System.nanoTime() - hr.requestTime);
             }
             if (responseQueue.isEmpty()) {
-                sk.interestOps(sk.interestOps() - SelectionKey.OP_WRITE);
+                sk.interestOps(sk.interestOps() & ~SelectionKey.OP_WRITE);
             }
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -115,11 +136,14 @@ public class HttpConnectionHandler implements IOHandler {
      * from HttpKeepAliveTracker if neccesary and trying to close the channel.
      */
     public void cleanup() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        HttpMetrics.instance.connectionClosed();
         sk.cancel();
         if (this.kas != null)
             HttpKeepAliveTracker.instance.remove(this.kas);
         try {
-            sk.channel().close();
+            channel.close();
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -146,6 +170,16 @@ public class HttpConnectionHandler implements IOHandler {
     @Override
     public void setSelectionKey(SelectionKey sk) {
         this.sk = sk;
+        if (channel == null)
+            channel = (SocketChannel) sk.channel();
+    }
+
+    /**
+     * Read and write through channel instead of the SelectionKey's SocketChannel (see TlsHandler)
+     */
+    @Override
+    public void setChannel(ByteChannel channel) {
+        this.channel = channel;
     }
 
     @Override
@@ -33,17 +33,19 @@ public class HttpKeepAliveTracker implements Runnable {
     /**
      * The only instance of this HttpKeepAliveTracker
      */
-    static final HttpKeepAliveTracker instance = new HttpKeepAliveTracker();
+    public static final HttpKeepAliveTracker instance = new HttpKeepAliveTracker();
     static public final Thread hkatThread = new Thread(instance, "KeepAlive-Timeout-Tracker");
     
+    private volatile long keepAliveTimeout = 10000;
+
     private HttpKeepAliveTracker() {}
     
     private final Set<KeepAliveState> keepAliveRequests = new HashSet<KeepAliveState>();
 
     public void run() {
-        long keepAliveTimeout = 10000;
         long sleepTime = keepAliveTimeout;
         while (true) {
+            long keepAliveTimeout = this.keepAliveTimeout;
             try {
                 Thread.sleep(sleepTime);
             } catch (InterruptedException e) { 
@@ -99,4 +101,22 @@ public class HttpKeepAliveTracker implements Runnable {
             keepAliveRequests.remove(kas);
         }
     }
+
+    /**
+     * Set the time an idle keep-alive-connection stays open
+     * @param millis the timeout in milliseconds
+     */
+    public void setKeepAliveTimeout(long millis) {
+        this.keepAliveTimeout = millis;
+    }
+
+    /**
+     * Returns the number of keep-alive-connections currently tracked
+     * @return the number of keep-alive-connections currently tracked
+     */
+    public int size() {
+        synchronized(keepAliveRequests) {
+            return keepAliveRequests.size();
+        }
+    }
 }
\ No newline at end of file
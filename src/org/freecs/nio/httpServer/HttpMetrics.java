@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * HttpMetrics collects the counters of the http-server (requests, bytes, connections,
+ * parse-errors and request-to-response latency).
+ *
+ * Recording is done by the poller-threads without taking any locks. The values
+ * are exported over JMX (see register) and as plain text for everybody
+ * requesting SCRAPE_URL from the http-server itself.
+ */
+package org.freecs.nio.httpServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.freecs.nio.core.LatencyHistogram;
+import org.freecs.nio.core.LatencyRecorder;
+
+public class HttpMetrics implements HttpMetricsMXBean {
+    /**
+     * The only instance of HttpMetrics
+     */
+    public static final HttpMetrics instance = new HttpMetrics();
+
+    /**
+     * The url the metrics get served at in plain text
+     */
+    public static final String SCRAPE_URL = "/metrics";
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> parseErrors = new ConcurrentHashMap<Integer, LongAdder>();
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    private long lastRateTime = System.nanoTime();
+    private long lastRateCount = 0;
+    private double lastRate = 0;
+
+    private HttpMetrics() {}
+
+    /**
+     * Register this HttpMetrics with the platform MBeanServer
+     * as org.freecs.nio:type=HttpMetrics
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.freecs.nio:type=HttpMetrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void bytesRead(int n) {
+        bytesRead.add(n);
+    }
+
+    void bytesWritten(int n) {
+        bytesWritten.add(n);
+    }
+
+    /**
+     * A request has been answered completely
+     * @param nanos the time between the arrival of the request and the response being written out
+     */
+    void requestCompleted(long nanos) {
+        requests.increment();
+        latency.record(nanos);
+    }
+
+    /**
+     * The parser rejected a request with the given response-code
+     * @param code the response-code sent to the client
+     */
+    void parseError(int code) {
+        LongAdder cnt = parseErrors.get(code);
+        if (cnt == null) {
+            LongAdder newCnt = new LongAdder();
+            cnt = parseErrors.putIfAbsent(code, newCnt);
+            if (cnt == null)
+                cnt = newCnt;
+        }
+        cnt.increment();
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Returns the rate of requests since the last time the rate has been
+     * computed (at most once per second)
+     */
+    public synchronized double getRequestsPerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRateTime;
+        if (elapsed >= 1000000000L) {
+            long cnt = requests.sum();
+            lastRate = (cnt - lastRateCount) * 1e9 / elapsed;
+            lastRateCount = cnt;
+            lastRateTime = now;
+        }
+        return lastRate;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    public long getKeepAliveConnections() {
+        return HttpKeepAliveTracker.instance.size();
+    }
+
+    public Map<String, Long> getParseErrors() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Iterator<Map.Entry<Integer, LongAdder>> i = parseErrors.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, LongAdder> e = i.next();
+            result.put(String.valueOf(e.getKey()), e.getValue().sum());
+        }
+        return result;
+    }
+
+    public long getLatencyP50Micros() {
+        return latency.snapshot().getValueAtPercentile(50) / 1000;
+    }
+
+    public long getLatencyP99Micros() {
+        return latency.snapshot().getValueAtPercentile(99) / 1000;
+    }
+
+    public long getLatencyP999Micros() {
+        return latency.snapshot().getValueAtPercentile(99.9) / 1000;
+    }
+
+    public long getLatencyMaxMicros() {
+        return latency.snapshot().getMax() / 1000;
+    }
+
+    /**
+     * Render all metrics in the plain text exposition format
+     * @return the metrics one per line
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("http_requests_total ").append(getRequestCount()).append('\n');
+        sb.append("http_requests_per_second ").append(getRequestsPerSecond()).append('\n');
+        sb.append("http_bytes_read_total ").append(getBytesRead()).append('\n');
+        sb.append("http_bytes_written_total ").append(getBytesWritten()).append('\n');
+        sb.append("http_connections_active ").append(getActiveConnections()).append('\n');
+        sb.append("http_connections_keepalive ").append(getKeepAliveConnections()).append('\n');
+        for (Iterator<Map.Entry<String, Long>> i = getParseErrors().entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Long> e = i.next();
+            sb.append("http_parse_errors_total{code=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+        }
+        LatencyHistogram h = latency.snapshot();
+        double[] percentiles = { 50, 90, 99, 99.9, 99.99 };
+        String[] quantiles = { "0.5", "0.9", "0.99", "0.999", "0.9999" };
+        for (int i = 0; i < percentiles.length; i++) {
+            sb.append("http_request_latency_seconds{quantile=\"").append(quantiles[i]).append("\"} ");
+            sb.append(h.getValueAtPercentile(percentiles[i]) / 1e9).append('\n');
+        }
+        sb.append("http_request_latency_seconds_max ").append(h.getMax() / 1e9).append('\n');
+        sb.append("http_request_latency_seconds_count ").append(h.getCount()).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The JMX-view of HttpMetrics
+ */
+package org.freecs.nio.httpServer;
+
+import java.util.Map;
+
+public interface HttpMetricsMXBean {
+    public long getRequestCount();
+    public double getRequestsPerSecond();
+    public long getBytesRead();
+    public long getBytesWritten();
+    public long getActiveConnections();
+    public long getKeepAliveConnections();
+    public Map<String, Long> getParseErrors();
+    public long getLatencyP50Micros();
+    public long getLatencyP99Micros();
+    public long getLatencyP999Micros();
+    public long getLatencyMaxMicros();
+}
@@ -16,7 +16,8 @@
 
 /**
  * HttpRequestListener is responsible for registering SocketChannels by wrapping them inside of a 
- * HttpConnctionHandler and registering it with a IPoller
+ * HttpConnctionHandler and registering it with a IPoller (wrapped by a TlsHandler if
+ * the listener has a TlsContext, serving https)
  */
 package org.freecs.nio.httpServer;
 
@@ -24,18 +25,31 @@ import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
 import org.freecs.nio.interfaces.IOHandler;
 import org.freecs.nio.interfaces.IPoller;
 
 public class HttpRequestListener implements IOHandler {
     private final IPoller poller;
+    private final ServerConfig cfg;
     private SelectionKey sk = null;
+    private volatile TlsContext tls = null;
     
     @SuppressWarnings("unused")
-    private HttpRequestListener() { poller=null; }
+    private HttpRequestListener() { poller=null; cfg=null; }
     
     public HttpRequestListener(IPoller poller) {
+        this(poller, ServerConfig.builder(80).build());
+    }
+
+    /**
+     * @param poller the IPoller new connections get registered with
+     * @param cfg the ServerConfig providing socket-options and buffer-size for new connections
+     */
+    public HttpRequestListener(IPoller poller, ServerConfig cfg) {
         this.poller=poller;
+        this.cfg=cfg;
     }
 
     /**
@@ -43,15 +57,25 @@ public class HttpRequestListener implements IOHandler {
      * add this handler to the IPoller
      */
     public void accept(SocketChannel sc) {
-        HttpConnectionHandler hch = new HttpConnectionHandler(10240);
         try {
-            poller.addHandler(hch, sc);
+            cfg.configure(sc);
+            HttpConnectionHandler hch = new HttpConnectionHandler(cfg.getBufferSize());
+            TlsContext tls = this.tls;
+            poller.addHandler(tls != null ? tls.server(hch) : hch, sc);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
 
+    /**
+     * Serve https on all connections accepted from now on
+     * @param tls the TlsContext (or null for plain http)
+     */
+    public void setTlsContext(TlsContext tls) {
+        this.tls = tls;
+    }
+
     public void connect() { return; } // connect is only used by clients wanting to connect to a server
     public void read() { return; } // listeners don't read
     public void write() { return; } // listeners don't write
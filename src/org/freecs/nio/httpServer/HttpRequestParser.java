@@ -65,19 +65,19 @@ public class HttpRequestParser {
             switch(currentStep) {
             case 0:
                 if (!determineMethod())
-                    continue;
+                    return null;
                 currentStep++;
             case 1:
                 if (!extractUrl())
-                    continue;
+                    return null;
                 currentStep++;
             case 2:
                 if (!determineProtocolVersion())
-                    continue;
+                    return null;
                 currentStep++;
             case 3:
                 if (!parseHeaders())
-                    continue;
+                    return null;
                 currentStep++;
             case 4:
                 if (decodeContent()) {
@@ -85,6 +85,7 @@ public class HttpRequestParser {
                     cleanup();
                     return result;
                 }
+                return null;
             }
         }
         return null;
@@ -95,7 +96,7 @@ public class HttpRequestParser {
      * @return true if request complete, false if not
      */
     private boolean decodeContent() {
-        if (buff.get(buff.position()) == LF) {
+        if (buff.hasRemaining() && buff.get(buff.position()) == LF) {
             buff.position(buff.position()+1); // get ridd of an LF which may remain from the header
         }
         if (this.currentRequest.getContentLength() < 1)
@@ -156,27 +157,18 @@ public class HttpRequestParser {
      * @return true if first line is finished
      */
     private boolean determineProtocolVersion() {
-        if (!buff.hasRemaining())
-            return false;
-        byte b = buff.get();
-        while (b != CR && b != LF) {
-            versionChecksum += b;
-            if (!buff.hasRemaining())
-                return false;
-            b = buff.get();
-        }
-        if (!buff.hasRemaining())
-            return false;
-        if (b == CR) {
-            buff.position(buff.position()+1); // step over \n
-        }
-        if (b == CR || b == LF) {
-            if (versionChecksum == HTTP11) {
-                currentRequest.setHttp11(true);
-            } else {
-                currentRequest.setHttp11(false);
+        while (buff.hasRemaining()) {
+            byte b = buff.get();
+            if (b == LF) {
+                if (versionChecksum == HTTP11) {
+                    currentRequest.setHttp11(true);
+                } else {
+                    currentRequest.setHttp11(false);
+                }
+                return true;
             }
-            return true;
+            if (b != CR)
+                versionChecksum += b;
         }
         return false;
     }
@@ -199,7 +191,7 @@ public class HttpRequestParser {
                     // we have an empty request
                     this.currentRequest.setUrl("");
                 } else {
-                    this.currentRequest.setUrl(getString(i - 1 - buff.position()));
+                    this.currentRequest.setUrl(getString(i - buff.position()));
                 }
                 buff.position(i+1);
                 return true;
@@ -217,16 +209,19 @@ public class HttpRequestParser {
             return false;
         byte b = buff.get();
         while (b != SPC) {
+            if (b == CR || b == LF) {
+                // the LF of the previous request's empty line may arrive late
+                if (!buff.hasRemaining())
+                    return false;
+                b = buff.get();
+                continue;
+            }
             methodChecksum += b;
             if (!buff.hasRemaining())
                 return false;
             b = buff.get();
         }
-        if (b == SPC && buff.hasRemaining()) {
-            this.currentRequest.method(methodChecksum);
-            buff.position(buff.position()+1);
-            return true;
-        }
-        return false;
+        this.currentRequest.method(methodChecksum);
+        return true;
     }
 }
@@ -26,6 +26,10 @@ import java.util.Iterator;
 public class HttpResponse {
     public static final HttpResponse CloseConnection = new HttpResponse();
     public final ByteBuffer buff;
+    /**
+     * System.nanoTime() of the arrival of the request this response answers
+     */
+    long requestTime;
 
     private HttpResponse() { buff = null; }
     
@@ -35,17 +39,16 @@ public class HttpResponse {
     }
     
     public HttpResponse(HttpRequest request) {
-        StringBuffer content = new StringBuffer("<b>Hello World!</b><p>");
-        content.append("method: ").append(request.method()).append("<br />");
-        content.append("url: ").append(request.url()).append("<br />");
-        content.append("keepAlive: ").append(request.isKeepAlive()).append("<br />");
-        content.append("http11: ").append(request.isHttp11()).append("<br /></p>");
-        for (Iterator<String> i = request.headers().iterator(); i.hasNext(); ) {
-            String key = i.next();
-            content.append(key).append(": ").append(request.getHeader(key)).append("<br />");
-        }
-        byte[] c = content.toString().getBytes();
+        this(request, "text/html", helloWorld(request));
+    }
 
+    /**
+     * Construct a response to the given request carrying the given content
+     * @param request the request to respond to
+     * @param contentType the content-type of the given content
+     * @param c the content
+     */
+    public HttpResponse(HttpRequest request, String contentType, byte[] c) {
         StringBuffer header = new StringBuffer("HTTP/");
         if (request.isHttp11()) {
             header.append("1.1");
@@ -57,7 +60,7 @@ public class HttpResponse {
             header.append("connection: keep-alive\r\nContent-length: ");
             header.append(c.length).append("\r\n");
         }
-        header.append("content-type: text/html\r\n");
+        header.append("content-type: ").append(contentType).append("\r\n");
         header.append("\r\n");
         byte[] h = header.toString().getBytes();
         
@@ -65,4 +68,17 @@ public class HttpResponse {
         buff.put(h).put(c);
         buff.flip();
     }
-}
+
+    private static byte[] helloWorld(HttpRequest request) {
+        StringBuffer content = new StringBuffer("<b>Hello World!</b><p>");
+        content.append("method: ").append(request.method()).append("<br />");
+        content.append("url: ").append(request.url()).append("<br />");
+        content.append("keepAlive: ").append(request.isKeepAlive()).append("<br />");
+        content.append("http11: ").append(request.isHttp11()).append("<br /></p>");
+        for (Iterator<String> i = request.headers().iterator(); i.hasNext(); ) {
+            String key = i.next();
+            content.append(key).append(": ").append(request.getHeader(key)).append("<br />");
+        }
+        return content.toString().getBytes();
+    }
+}
\ No newline at end of file
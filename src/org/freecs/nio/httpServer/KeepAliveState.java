@@ -23,6 +23,8 @@ package org.freecs.nio.httpServer;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 
+import org.freecs.nio.interfaces.IOHandler;
+
 public class KeepAliveState {
     private long lastRequest;
     private boolean onKeepAliveWatchlist=false;
@@ -70,6 +72,11 @@ public class KeepAliveState {
      * @throws IOException
      */
     public void closeConnection() throws IOException {
+        if (this.sk.attachment() instanceof IOHandler) {
+            // the HttpConnectionHandler (or the TlsHandler wrapping it)
+            ((IOHandler) this.sk.attachment()).cleanup();
+            return;
+        }
         this.sk.cancel();
         this.sk.channel().close();
     }
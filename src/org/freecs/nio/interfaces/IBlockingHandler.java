@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * IBlockingHandler serves a connection with plain sequential code: it gets called on the
+ * connection's own thread (a virtual thread where available, see BlockingListener) and
+ * reads and writes through blocking streams. The poller only tells the thread when the
+ * socket is ready, so blocking doesn't hold up any other connection.
+ */
+package org.freecs.nio.interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface IBlockingHandler {
+    /**
+     * Serve one connection, which gets closed once this method returns
+     * @param in reading blocks until data arrives, returns -1 once the peer closed the connection
+     * @param out writing blocks until the socket took all of it (writes aren't buffered)
+     * @throws IOException if reading or writing failed, e.g. because the connection has been closed
+     */
+    void serve(InputStream in, OutputStream out) throws IOException;
+}
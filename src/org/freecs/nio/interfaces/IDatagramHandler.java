@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * IDatagramHandler handles the datagrams arriving at a DatagramChannel registered
+ * with an IPoller (see IPoller.addDatagramHandler). All callbacks are called by the
+ * poller's thread.
+ */
+package org.freecs.nio.interfaces;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+public interface IDatagramHandler {
+    /**
+     * Triggered once the DatagramChannel has been registered
+     * @param dc the channel, which may be used to send datagrams (from any thread)
+     */
+    void setChannel(DatagramChannel dc);
+
+    /**
+     * Triggered for every datagram arrived
+     * @param datagram a read-only view of the datagram within the poller's receive-buffer
+     * (the bytes between position and limit), valid only until this method returns
+     * @param sender the address the datagram came from
+     */
+    void receive(ByteBuffer datagram, SocketAddress sender);
+
+    /**
+     * Triggered if the channel has been closed because receiving failed
+     */
+    void cleanup();
+}
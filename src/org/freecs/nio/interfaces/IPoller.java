@@ -23,6 +23,7 @@
 package org.freecs.nio.interfaces;
 
 import java.io.IOException;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
@@ -52,6 +53,17 @@ public interface IPoller {
      * @throws IOException
      */
     public void addHandler(IOHandler ioh, SocketChannel sc) throws IOException;
+
+    /**
+     * Add an IDatagramHandler for the given DatagramChannel. Every time datagrams are waiting up to
+     * maxDatagrams of them get received and handed to the handler, with the address they came from.
+     * The channel is closed and the handler cleaned up if receiving fails.
+     * @param idh IDatagramHandler getting the datagrams arriving at the given DatagramChannel
+     * @param dc DatagramChannel bound to a local address (or connected to a peer)
+     * @param maxDatagrams number of datagrams received per readiness-event at most
+     * @throws IOException
+     */
+    public void addDatagramHandler(IDatagramHandler idh, DatagramChannel dc, int maxDatagrams) throws IOException;
     
     /**
      * Shuts down this IPoller closing down all connections, closing the selector and finally suspending
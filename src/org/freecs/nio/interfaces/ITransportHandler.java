@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * ITransportHandler is an IOHandler which can be wrapped by a transport (e.g. TLS, see
+ * TlsHandler). The wrapping handler gets the poller's events and passes them on; the
+ * wrapped one does all it's reads, writes and the final close through the channel given.
+ */
+package org.freecs.nio.interfaces;
+
+import java.nio.channels.ByteChannel;
+
+public interface ITransportHandler extends IOHandler {
+    /**
+     * Sets the channel to read from, write to and close instead of the SelectionKey's SocketChannel.
+     * Called before setSelectionKey.
+     * @param channel the channel of the transport
+     */
+    void setChannel(ByteChannel channel);
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * FrameCodec knows the layout of the frames exchanged between messaging-nodes:
+ *   byte    version (high nibble, currently 1) and flags (low nibble, FLAG_COMPRESSED)
+ *   byte    type
+ *   varint  length of the body (7 bits per byte, least significant first, at most 5 bytes)
+ *   body depending on type:
+ *     DATA         the message
+ *     PUBLISH      short length of the topic, the topic (UTF-8), the message
+ *     SUBSCRIBE    the topic-pattern (UTF-8) the peer wants to receive
+ *     UNSUBSCRIBE  the topic-pattern (UTF-8) the peer doesn't want to receive anymore
+ *     REQUEST      long correlation-id, the request
+ *     REPLY        long correlation-id of the request, byte status (REPLY_OK or REPLY_ERROR),
+ *                  the reply (or the UTF-8 error-message)
+ *     HELLO        long node-id of the sending node (exchanged by the nodes of a mesh, see PeerManager)
+ *     RELAY        long node-id of the originating node, long message-id unique for that node,
+ *                  byte hops left, byte type of the relayed frame (DATA or PUBLISH), it's body
+ *     LOGGED       long sequence-number within the sender's MessageLog, the message
+ *     RESUME       long sequence-number of the first logged message the peer wants (replayed from the log)
+ *     RESUMED      long sequence-number of the first message the replay starts with
+ * A compressed body is the varint length of the uncompressed body followed by the body deflated.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.freecs.nio.core.BufferPool;
+import org.freecs.nio.core.SharedBuffer;
+
+public class FrameCodec {
+    public static final int VERSION = 1;
+    public static final int FLAG_COMPRESSED = 0x01;
+
+    public static final byte DATA = 0;
+    public static final byte PUBLISH = 1;
+    public static final byte SUBSCRIBE = 2;
+    public static final byte UNSUBSCRIBE = 3;
+    public static final byte REQUEST = 4;
+    public static final byte REPLY = 5;
+    public static final byte HELLO = 6;
+    public static final byte RELAY = 7;
+    public static final byte LOGGED = 8;
+    public static final byte RESUME = 9;
+    public static final byte RESUMED = 10;
+
+    /** origin, message-id, hops and type in front of a relayed frame's body */
+    public static final int RELAY_HEADER_SIZE = 18;
+
+    public static final byte REPLY_OK = 0;
+    public static final byte REPLY_ERROR = 1;
+
+    /** version/flags, type and the longest varint */
+    public static final int MAX_HEADER_SIZE = 7;
+
+    // the compressor and the buffers compression works with, per thread
+    private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+    // separate buffers, a callback receiving an inflated body may compress the frames it sends.
+    // Bodies larger than SCRATCH_SIZE get a pooled buffer given back right after the frame.
+    private static final int SCRATCH_SIZE = 8192;
+    private static final ThreadLocal<ByteBuffer[]> scratch = new ThreadLocal<ByteBuffer[]>() {
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[2];
+        }
+    };
+    private static final int DEFLATED = 0, INFLATED = 1;
+
+    /**
+     * Returns the number of bytes needed to encode v as varint
+     */
+    public static int varintSize(int v) {
+        int size = 1;
+        while ((v >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer b, int v) {
+        while ((v & ~0x7F) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    /**
+     * Returns the size of the header of a frame having a body of bodyLength bytes
+     */
+    public static int headerSize(int bodyLength) {
+        return 2 + varintSize(bodyLength);
+    }
+
+    private static void putHeader(ByteBuffer b, byte type, int flags, int bodyLength) {
+        b.put((byte) (VERSION << 4 | flags)).put(type);
+        putVarint(b, bodyLength);
+    }
+
+    /**
+     * Parse the header of the frame starting at pos
+     * @param buf the buffer holding the frame (up to it's limit)
+     * @param pos the index of the frame's first byte
+     * @return -1 if the header hasn't fully arrived yet, otherwise the header's size in the upper
+     * and the body's length in the lower 32 bits
+     * @throws ProtocolException if the version is unknown or the length is invalid
+     */
+    public static long readHeader(ByteBuffer buf, int pos) throws ProtocolException {
+        int limit = buf.limit();
+        if (limit - pos < 3)
+            return -1;
+        int version = (buf.get(pos) & 0xFF) >>> 4;
+        if (version != VERSION)
+            throw new ProtocolException("Unsupported frame-version " + version);
+        int len = 0;
+        for (int i = 0; i < 5; i++) {
+            if (pos + 2 + i >= limit)
+                return -1;
+            int b = buf.get(pos + 2 + i) & 0xFF;
+            if (i == 4 && b > 7)
+                throw new ProtocolException("Invalid frame-length");
+            len |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+                return ((long) (3 + i) << 32) | len;
+        }
+        throw new ProtocolException("Invalid frame-length");
+    }
+
+    /**
+     * Returns the index of the body of the (uncompressed) frame starting at index 0 of frame
+     */
+    static int bodyOffset(ByteBuffer frame) throws ProtocolException {
+        return (int) (readHeader(frame, 0) >>> 32);
+    }
+
+    /**
+     * Create the header of a frame whose body gets written separately
+     * @param type the frame's type
+     * @param bodyLength the number of bytes following the header
+     * @return a buffer holding the header, ready to be written
+     */
+    public static ByteBuffer header(byte type, int bodyLength) {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(bodyLength));
+        putHeader(header, type, 0, bodyLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Take a pooled buffer for a frame and write it's header
+     */
+    private static SharedBuffer allocate(byte type, int bodyLength) {
+        SharedBuffer frame = new SharedBuffer(BufferPool.instance, headerSize(bodyLength) + bodyLength);
+        putHeader(frame.buffer(), type, 0, bodyLength);
+        return frame;
+    }
+
+    /**
+     * Encode a DATA-frame into a pooled buffer
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     */
+    public static SharedBuffer data(ByteBuffer msg) {
+        SharedBuffer frame = allocate(DATA, msg.remaining());
+        frame.buffer().put(msg.duplicate()).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a PUBLISH-frame into a pooled buffer
+     * @param topic the topic
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     * @throws IllegalArgumentException if the topic is longer than 65535 bytes
+     */
+    public static SharedBuffer publish(String topic, ByteBuffer msg) {
+        byte[] t = topic.getBytes(MessagingHandler.characterset);
+        if (t.length > 0xFFFF)
+            throw new IllegalArgumentException("Topic too long");
+        SharedBuffer frame = allocate(PUBLISH, 2 + t.length + msg.remaining());
+        frame.buffer().putShort((short) t.length).put(t).put(msg.duplicate()).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a SUBSCRIBE- or UNSUBSCRIBE-frame into a pooled buffer
+     * @param type SUBSCRIBE or UNSUBSCRIBE
+     * @param pattern the topic-pattern
+     */
+    public static SharedBuffer control(byte type, String pattern) {
+        byte[] t = pattern.getBytes(MessagingHandler.characterset);
+        SharedBuffer frame = allocate(type, t.length);
+        frame.buffer().put(t).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a REQUEST-frame into a pooled buffer
+     * @param id the correlation-id the reply will carry
+     * @param msg the request (the bytes between position and limit, which stay untouched)
+     */
+    public static SharedBuffer request(long id, ByteBuffer msg) {
+        SharedBuffer frame = allocate(REQUEST, 8 + msg.remaining());
+        frame.buffer().putLong(id).put(msg.duplicate()).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a REPLY-frame into a pooled buffer
+     * @param id the correlation-id of the request
+     * @param status REPLY_OK or REPLY_ERROR
+     * @param msg the reply or error-message (the bytes between position and limit, which stay untouched)
+     */
+    public static SharedBuffer reply(long id, byte status, ByteBuffer msg) {
+        SharedBuffer frame = allocate(REPLY, 9 + msg.remaining());
+        frame.buffer().putLong(id).put(status).put(msg.duplicate()).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a HELLO-frame into a pooled buffer
+     * @param nodeId the id of the sending node
+     */
+    public static SharedBuffer hello(long nodeId) {
+        SharedBuffer frame = allocate(HELLO, 8);
+        frame.buffer().putLong(nodeId).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a LOGGED-frame into a pooled buffer
+     * @param seq the message's sequence-number
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     */
+    public static SharedBuffer logged(long seq, ByteBuffer msg) {
+        SharedBuffer frame = allocate(LOGGED, 8 + msg.remaining());
+        frame.buffer().putLong(seq).put(msg.duplicate()).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a RESUME- or RESUMED-frame into a pooled buffer
+     * @param type RESUME or RESUMED
+     * @param seq the sequence-number
+     */
+    public static SharedBuffer sequence(byte type, long seq) {
+        SharedBuffer frame = allocate(type, 8);
+        frame.buffer().putLong(seq).flip();
+        return frame;
+    }
+
+    /**
+     * Encode a RELAY-frame into a pooled buffer
+     * @param origin the id of the node the message has been sent or published by
+     * @param id the message's id, unique for origin
+     * @param hops the number of times the frame may be relayed further on
+     * @param type the type of the relayed frame, DATA or PUBLISH
+     * @param topic the topic of a PUBLISH-frame or null if msg already is the whole body
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     */
+    public static SharedBuffer relay(long origin, long id, int hops, byte type, String topic, ByteBuffer msg) {
+        byte[] t = topic == null ? null : topic.getBytes(MessagingHandler.characterset);
+        if (t != null && t.length > 0xFFFF)
+            throw new IllegalArgumentException("Topic too long");
+        int len = RELAY_HEADER_SIZE + (t == null ? 0 : 2 + t.length) + msg.remaining();
+        SharedBuffer frame = allocate(RELAY, len);
+        ByteBuffer b = frame.buffer();
+        b.putLong(origin).putLong(id).put((byte) hops).put(type);
+        if (t != null)
+            b.putShort((short) t.length).put(t);
+        b.put(msg.duplicate()).flip();
+        return frame;
+    }
+
+    /**
+     * Compress the body of an encoded frame if it has at least threshold bytes and deflating
+     * actually makes it smaller
+     * @param frame an uncompressed frame as returned by the encoding methods
+     * @param threshold the minimum body-length worth compressing (0 never compresses)
+     * @return frame itself or a new, compressed frame (frame has been released then)
+     */
+    public static SharedBuffer compress(SharedBuffer frame, int threshold) {
+        if (threshold <= 0)
+            return frame;
+        ByteBuffer in = frame.duplicate();
+        long header;
+        try {
+            header = readHeader(in, 0);
+        } catch (ProtocolException pe) {
+            throw new IllegalArgumentException("Not an encoded frame");
+        }
+        int offset = (int) (header >>> 32), len = (int) header;
+        if (len < threshold || (in.get(0) & FLAG_COMPRESSED) != 0)
+            return frame;
+        in.position(offset);
+        ByteBuffer out = scratch(DEFLATED, len);
+        try {
+            Deflater d = deflater.get();
+            d.reset();
+            d.setInput(in);
+            d.finish();
+            while (!d.finished() && out.hasRemaining())
+                d.deflate(out);
+            if (!d.finished())
+                return frame; // incompressible
+            out.flip();
+            int body = varintSize(len) + out.remaining();
+            if (body >= len)
+                return frame;
+            SharedBuffer compressed = new SharedBuffer(BufferPool.instance, headerSize(body) + body);
+            ByteBuffer b = compressed.buffer();
+            putHeader(b, in.get(1), FLAG_COMPRESSED, body);
+            putVarint(b, len);
+            b.put(out).flip();
+            frame.release();
+            return compressed;
+        } finally {
+            release(out);
+        }
+    }
+
+    /**
+     * Inflate a compressed body
+     * @param buf the buffer holding the frame
+     * @param start the index of the (compressed) body
+     * @param len the length of the (compressed) body
+     * @param maxLength the maximum length of the uncompressed body
+     * @return a scratch-buffer holding the uncompressed body between 0 and limit, to be handed
+     * to release once the body has been dealt with
+     * @throws ProtocolException if the body is corrupt or inflates to more than maxLength bytes
+     */
+    static ByteBuffer inflate(ByteBuffer buf, int start, int len, int maxLength) throws ProtocolException {
+        int raw = 0, i = 0;
+        for (;; i++) {
+            if (i >= len || i == 5)
+                throw new ProtocolException("Invalid compressed frame");
+            int b = buf.get(start + i) & 0xFF;
+            raw |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+                break;
+        }
+        if (raw < 0 || raw > maxLength)
+            throw new ProtocolException("Compressed frame inflating to " + raw + " bytes exceeds the maximum of " + maxLength);
+        ByteBuffer in = buf.duplicate();
+        in.limit(start + len).position(start + i + 1);
+        ByteBuffer out = scratch(INFLATED, raw);
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(in);
+        try {
+            while (!inf.finished() && out.hasRemaining()) {
+                if (inf.inflate(out) == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    break;
+            }
+        } catch (DataFormatException dfe) {
+            release(out);
+            throw new ProtocolException("Corrupt compressed frame: " + dfe.getMessage());
+        }
+        if (!inf.finished() || out.hasRemaining()) {
+            release(out);
+            throw new ProtocolException("Compressed frame doesn't inflate to " + raw + " bytes");
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Returns one of the calling thread's scratch-buffers, cleared and limited to size bytes,
+     * or a pooled buffer if size exceeds SCRATCH_SIZE (see release)
+     */
+    private static ByteBuffer scratch(int which, int size) {
+        if (size > SCRATCH_SIZE)
+            return BufferPool.instance.acquire(size);
+        ByteBuffer[] holder = scratch.get();
+        if (holder[which] == null)
+            holder[which] = ByteBuffer.allocate(SCRATCH_SIZE);
+        ByteBuffer b = holder[which];
+        b.clear().limit(size);
+        return b;
+    }
+
+    /**
+     * Give back a buffer returned by inflate. A pooled buffer taken for a large body goes
+     * back to the pool, so threads don't keep buffers of the largest frame they've seen.
+     */
+    static void release(ByteBuffer body) {
+        if (body.capacity() > SCRATCH_SIZE)
+            BufferPool.instance.release(body);
+    }
+
+    /**
+     * Decode a UTF-8 string from the given part of buf (buf's position stays untouched)
+     */
+    static String string(ByteBuffer buf, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buf.get(offset + i);
+        return new String(bytes, MessagingHandler.characterset);
+    }
+}
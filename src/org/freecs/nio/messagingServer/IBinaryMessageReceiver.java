@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This interface must be implemented by those who are interested in receiving messages
+ * as raw bytes without them being copied out of the connection's buffer.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.nio.ByteBuffer;
+
+public interface IBinaryMessageReceiver {
+    /**
+     * Gets called when added to MessagingHandler as callback and a message has
+     * fully arrived
+     * @param msg A read-only view of the connection's buffer. The message are the bytes
+     * between position and limit (position is not necessarily 0). The view is reused and
+     * only valid during this call, copy whatever needs to be kept.
+     */
+    public void receive(ByteBuffer msg);
+}
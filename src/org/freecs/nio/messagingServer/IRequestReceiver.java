@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * IRequestReceiver may additionally be implemented by an IBinaryMessageReceiver answering
+ * requests sent by MessagingListener.request. The reply may be sent right away or later from
+ * any thread using MessagingHandler.reply (or replyError) with the given correlation-id.
+ * Requests arriving at a receiver not implementing this interface get an error-reply.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.nio.ByteBuffer;
+
+public interface IRequestReceiver {
+    /**
+     * Gets called when a request has fully arrived
+     * @param from the connection the request arrived on (and the reply has to be sent to)
+     * @param correlationId the id to hand to from.reply
+     * @param msg A read-only view of the connection's buffer (see IBinaryMessageReceiver)
+     */
+    public void request(MessagingHandler from, long correlationId, ByteBuffer msg);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * ISendQueueListener gets told when a connection's send-queue fills up beyond the
+ * high-watermark and when it has drained below the low-watermark again, so publishers
+ * can stop and resume sending to slow consumers instead of running into the overflow-policy.
+ * The calls happen on the publishing thread (high) or the poller (low) and should return quickly.
+ */
+package org.freecs.nio.messagingServer;
+
+public interface ISendQueueListener {
+    /**
+     * The send-queue of mh has reached the high-watermark
+     */
+    public void highWatermark(MessagingHandler mh);
+
+    /**
+     * The send-queue of mh has drained to the low-watermark after having reached the high-watermark
+     */
+    public void lowWatermark(MessagingHandler mh);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * ITopicMessageReceiver may additionally be implemented by an IBinaryMessageReceiver
+ * wanting to know the topic of published messages. Messages sent without a topic
+ * still arrive through IBinaryMessageReceiver.receive.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.nio.ByteBuffer;
+
+public interface ITopicMessageReceiver {
+    /**
+     * Gets called when a message published to a topic has fully arrived
+     * @param topic the topic the message has been published to
+     * @param msg A read-only view of the connection's buffer (see IBinaryMessageReceiver)
+     */
+    public void receive(String topic, ByteBuffer msg);
+}
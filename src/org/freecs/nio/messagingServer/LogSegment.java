@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LogSegment is one file of a MessageLog, named by the sequence-number of it's first message.
+ * It holds the LOGGED-frames exactly as they went over the wire, one after the other, so
+ * replaying means transferring a region of the file to the socket.
+ *
+ * The active segment is memory-mapped at full size and appended to through the mapping.
+ * Sealing it forces the mapping to disk and truncates the file to the bytes written.
+ * The MessageLog holds one reference, every queued replay-region another. The file gets
+ * closed once the last reference is released and deleted if retention dropped it.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class LogSegment {
+    static final String SUFFIX = ".log";
+
+    final File file;
+    final long baseSeq;
+    private final FileChannel channel;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    private MappedByteBuffer map = null;
+    private long lastSeq;
+    private int end = 0;
+    private long closedAt = 0;
+    private volatile boolean dropped = false;
+
+    private LogSegment(File file, long baseSeq) throws IOException {
+        this.file = file;
+        this.baseSeq = baseSeq;
+        this.lastSeq = baseSeq - 1;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    /**
+     * Create a new, active segment
+     * @param dir the directory of the log
+     * @param baseSeq the sequence-number of the first message going into the segment
+     * @param size the size of the segment
+     */
+    static LogSegment create(File dir, long baseSeq, int size) throws IOException {
+        LogSegment s = new LogSegment(new File(dir, String.format("%020d", baseSeq) + SUFFIX), baseSeq);
+        s.map = s.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return s;
+    }
+
+    /**
+     * Open an existing segment, finding the end of the last complete frame
+     * @param file the segment's file
+     * @param size the size to map the segment with if it stays the active one
+     * @param active true if this is the newest segment, which gets appended to
+     */
+    static LogSegment open(File file, int size, boolean active) throws IOException {
+        String name = file.getName();
+        LogSegment s = new LogSegment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+        long length = s.channel.size();
+        if (active) {
+            s.map = s.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(length, size));
+            s.recover(s.map);
+        } else {
+            s.recover(s.channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            s.channel.truncate(s.end);
+            s.closedAt = file.lastModified();
+        }
+        return s;
+    }
+
+    /**
+     * Find the last frame written completely: frames have to be LOGGED-frames carrying
+     * the expected sequence-numbers, anything else (the zeroes of the unwritten part of
+     * a mapping or a frame torn by a crash) ends the segment
+     */
+    private void recover(ByteBuffer b) {
+        int pos = 0;
+        long seq = baseSeq;
+        while (pos < b.limit()) {
+            long header;
+            try {
+                header = FrameCodec.readHeader(b, pos);
+            } catch (ProtocolException pe) {
+                break;
+            }
+            int headerLen = (int) (header >>> 32), len = (int) header;
+            if (header < 0 || len < 8 || pos + headerLen + len > b.limit() || b.get(pos + 1) != FrameCodec.LOGGED
+                    || (b.get(pos) & FrameCodec.FLAG_COMPRESSED) != 0 || b.getLong(pos + headerLen) != seq)
+                break;
+            pos += headerLen + len;
+            seq++;
+        }
+        end = pos;
+        lastSeq = seq - 1;
+    }
+
+    boolean isActive() {
+        return map != null;
+    }
+
+    /**
+     * Returns true if a frame of len bytes fits into this (active) segment
+     */
+    boolean fits(int len) {
+        return map != null && map.capacity() - end >= len;
+    }
+
+    /**
+     * Append a frame (it's position and limit stay untouched)
+     * @param frame the LOGGED-frame
+     * @param seq it's sequence-number
+     */
+    void append(ByteBuffer frame, long seq) {
+        ByteBuffer b = map.duplicate();
+        b.position(end);
+        b.put(frame.duplicate());
+        end = b.position();
+        lastSeq = seq;
+    }
+
+    /**
+     * Stop appending: write the mapping to disk and cut the file to the bytes written
+     */
+    void seal() throws IOException {
+        if (map == null)
+            return;
+        map.force();
+        map = null;
+        channel.truncate(end);
+        closedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the index of the frame having the given sequence-number (end if it isn't within this segment)
+     */
+    int positionOf(long seq) throws IOException {
+        if (seq > lastSeq)
+            return end;
+        ByteBuffer b = map != null ? map.duplicate() : channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        int pos = 0;
+        for (long s = baseSeq; s < seq; s++) {
+            long header = FrameCodec.readHeader(b, pos);
+            pos += (int) (header >>> 32) + (int) header;
+        }
+        return pos;
+    }
+
+    /**
+     * Transfer bytes of this segment straight to a channel (see FileChannel.transferTo)
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    long getClosedAt() {
+        return closedAt;
+    }
+
+    /**
+     * Take a reference for a replay-region
+     */
+    LogSegment retain() {
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Give back a reference, the last one closes the file (and deletes it if it has been dropped)
+     */
+    void release() {
+        if (refCnt.decrementAndGet() != 0)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (dropped && !file.delete())
+            System.out.println("unable to delete log-segment " + file);
+    }
+
+    /**
+     * Give back the log's reference, deleting the file once no replay needs it anymore
+     */
+    void drop() {
+        dropped = true;
+        release();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * MessageLog is an append-only log of the messages a MessagingListener broadcasts. Every
+ * message gets the next sequence-number and is sent as LOGGED-frame carrying it; the frame
+ * is appended to the log exactly as it goes over the wire.
+ *
+ * The log is a directory of LogSegment-files. The active segment is memory-mapped, once a
+ * frame doesn't fit anymore it gets sealed and a new one is started. Sealed segments are
+ * dropped (oldest first) while the log is bigger than retentionBytes or once they are older
+ * than retentionMillis. On startup the existing segments are recovered and numbering continues.
+ *
+ * A peer reconnecting sends RESUME with the sequence-number it wants to continue with. It gets
+ * a RESUMED-frame telling where the replay starts (later than asked for if retention dropped
+ * the messages already) followed by the logged frames, transferred from the segment-files
+ * straight to the socket, and the live messages after that. Appending, broadcasting and
+ * queuing a replay all synchronize on the MessageLog, so nothing gets lost or reordered in between.
+ *
+ * Once writing the log fails it stops: no more sequence-numbers are assigned, so the messages go out
+ * as plain DATA-frames and a resuming peer never gets a number the log doesn't hold (getFailure tells
+ * why). The messages logged until then can still be replayed.
+ *
+ * LOGGED-frames are never compressed so their sequence-numbers stay readable within the log.
+ * The mapping is forced to disk when a segment gets sealed and when the log is closed, in between
+ * the operating system decides (surviving a crash of the process but not of the machine).
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.SharedBuffer;
+
+public class MessageLog {
+    private final File dir;
+    private final int segmentSize;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final LinkedList<LogSegment> segments = new LinkedList<LogSegment>();
+    private LogSegment active = null;
+    private long nextSeq = 1;
+    private long size = 0;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    /**
+     * Open the log configured by cfg (logDirectory, logSegmentSize, logRetentionBytes, logRetentionAge)
+     */
+    public MessageLog(ServerConfig cfg) throws IOException {
+        this(new File(cfg.getLogDirectory()), cfg.getLogSegmentSize(), cfg.getLogRetentionBytes(), cfg.getLogRetentionAge());
+    }
+
+    /**
+     * Open (or create) a log
+     * @param dir the directory holding the segment-files
+     * @param segmentSize the size of a segment-file
+     * @param retentionBytes the size the log is kept below by dropping old segments (0 for unlimited)
+     * @param retentionMillis the age of sealed segments getting dropped (0 for unlimited)
+     * @throws IOException if the directory can't be created or a segment can't be opened
+     */
+    public MessageLog(File dir, int segmentSize, long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create log-directory " + dir);
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(LogSegment.SUFFIX);
+            }
+        });
+        Arrays.sort(files); // the names are zero-padded sequence-numbers
+        for (int i = 0; i < files.length; i++) {
+            LogSegment s = LogSegment.open(files[i], segmentSize, i == files.length - 1);
+            segments.add(s);
+            size += s.getEnd();
+            nextSeq = s.getLastSeq() + 1;
+        }
+        if (!segments.isEmpty() && segments.getLast().isActive())
+            active = segments.getLast();
+    }
+
+    /**
+     * Encode a message as LOGGED-frame having the next sequence-number and append it.
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     * @return the frame, the caller holds the reference; null if the log is closed or
+     * has failed, the message has to be sent without sequence-number then
+     */
+    synchronized SharedBuffer append(ByteBuffer msg) {
+        if (closed || failure != null)
+            return null;
+        long seq = nextSeq;
+        SharedBuffer frame = FrameCodec.logged(seq, msg);
+        ByteBuffer b = frame.duplicate();
+        try {
+            if (active == null || !active.fits(b.remaining()))
+                roll(b.remaining(), seq);
+            active.append(b, seq);
+        } catch (IOException e) {
+            failure = e;
+            System.out.println("Writing the message-log within " + dir + " failed, messages aren't logged anymore: " + e);
+            frame.release();
+            return null;
+        }
+        nextSeq++;
+        size += b.remaining();
+        if (retentionMillis > 0 && segments.getFirst() != active
+                && segments.getFirst().getClosedAt() + retentionMillis < System.currentTimeMillis())
+            enforceRetention();
+        return frame;
+    }
+
+    /**
+     * Seal the active segment and start a new one, at least big enough for the next frame
+     */
+    private void roll(int frameSize, long seq) throws IOException {
+        if (active != null)
+            active.seal();
+        active = LogSegment.create(dir, seq, Math.max(segmentSize, frameSize));
+        segments.add(active);
+        enforceRetention();
+    }
+
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        while (segments.getFirst() != active) {
+            LogSegment oldest = segments.getFirst();
+            boolean tooBig = retentionBytes > 0 && size > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && oldest.getClosedAt() + retentionMillis < now;
+            if (!tooBig && !tooOld)
+                break;
+            segments.removeFirst();
+            size -= oldest.getEnd();
+            oldest.drop();
+        }
+    }
+
+    /**
+     * Queue the replay of everything logged from seq on for mh: a RESUMED-frame and
+     * a region of every segment involved. Called with the lock held, so the next
+     * broadcast goes after the replay.
+     */
+    synchronized void replay(MessagingHandler mh, long seq) {
+        long first = segments.isEmpty() ? nextSeq : segments.getFirst().baseSeq;
+        long from = Math.max(seq, first);
+        SharedBuffer resumed = FrameCodec.sequence(FrameCodec.RESUMED, Math.min(from, nextSeq));
+        try {
+            mh.sendFrame(resumed, null);
+        } finally {
+            resumed.release();
+        }
+        try {
+            for (Iterator<LogSegment> i = segments.iterator(); i.hasNext(); ) {
+                LogSegment s = i.next();
+                if (s.getLastSeq() < from)
+                    continue;
+                int pos = s.positionOf(Math.max(from, s.baseSeq));
+                if (s.getEnd() > pos && !mh.sendRegion(s, pos, s.getEnd() - pos))
+                    return;
+            }
+        } catch (IOException e) {
+            // the segment is corrupt, the peer can't get a consistent replay
+            e.printStackTrace();
+            mh.cleanup();
+        }
+    }
+
+    /**
+     * Returns the sequence-number of the oldest message still logged
+     */
+    public synchronized long getFirstSequence() {
+        return segments.isEmpty() ? nextSeq : segments.getFirst().baseSeq;
+    }
+
+    /**
+     * Returns the sequence-number of the latest message (0 if there hasn't been one)
+     */
+    public synchronized long getLastSequence() {
+        return nextSeq - 1;
+    }
+
+    /**
+     * Returns the reason writing the log failed (it doesn't log anymore) or null
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of bytes logged
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Write everything to disk and close the segment-files (once replays still running are done)
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (active != null)
+                active.seal();
+        } catch (IOException e) {
+            // what has been written is recovered on the next start, the rest is lost anyway
+            System.out.println("Sealing the message-log within " + dir + " failed: " + e);
+        }
+        active = null;
+        while (!segments.isEmpty()) {
+            segments.removeFirst().release();
+        }
+    }
+}
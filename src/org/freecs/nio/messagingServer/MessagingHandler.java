@@ -20,29 +20,69 @@
  * when the selector gets notified about write-ability of this SelectionKey's
  * SocketChannel and reads data when selector gets notified about readability
  * of this SelectionKey's SocketChannel.
+ * Wrapped by a TlsHandler it reads and writes through the TlsChannel instead.
  */
 package org.freecs.nio.messagingServer;
 
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
-import org.freecs.nio.interfaces.IOHandler;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class MessagingHandler implements IOHandler {
+import org.freecs.nio.core.BufferPool;
+import org.freecs.nio.core.OverflowPolicy;
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.SharedBuffer;
+import org.freecs.nio.interfaces.ITransportHandler;
+
+public class MessagingHandler implements ITransportHandler {
     static final Charset characterset = Charset.forName("UTF-8");
-    private final ByteBuffer buff;
-    private LinkedList<ByteBuffer> sendQueue = new LinkedList<ByteBuffer>();
-    private final IMessageReceiver callback;
-    private SelectionKey sk = null;
-    private int ops;
-    private static int nextHashCode=0;
+    private final ByteBuffer initialBuff;
+    private ByteBuffer buff;
+    private ByteBuffer view;
+    private final int maxFrameSize;
+    private final int compressThreshold;
+    private final SendQueue sendQueue;
+    private final MessagingListener listener;
+    private final IBinaryMessageReceiver callback;
+    private final ITopicMessageReceiver topicCallback;
+    private final IRequestReceiver requestCallback;
+    private volatile PendingRequests requests = null;
+    private final Set<String> peerSubscriptions = new HashSet<String>();
+    private volatile SelectionKey sk = null;
+    private volatile ByteChannel channel = null;
+    private volatile Poller poller = null;
+    private volatile long batchDelay = 0;
+    private final Runnable flushBatch = new Runnable() {
+        public void run() {
+            if (sendQueue.flushBatch())
+                requestWrite();
+        }
+    };
+    private volatile boolean meshLink = false;
+    private volatile long lastSequence = 0;
+    private volatile boolean resuming = false;
+    private volatile int ops;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Runnable cleanup = new Runnable() {
+        public void run() {
+            cleanup();
+        }
+    };
+    private static final AtomicInteger nextHashCode = new AtomicInteger();
     private final int hashCode;
 
     @SuppressWarnings("unused")
-    private MessagingHandler() { buff=null; callback=null; hashCode = -1; }
+    private MessagingHandler() { initialBuff=null; maxFrameSize=0; compressThreshold=0; sendQueue=null; listener=null; callback=null; topicCallback=null; requestCallback=null; hashCode = -1; }
 
     /**
      * Construct the MessagingHandler having a buffer-size of bufferSize
@@ -54,12 +94,56 @@ public class MessagingHandler implements IOHandler {
      * be set/unset automatically when there is work to do)
      */
     MessagingHandler (int buffSize, IMessageReceiver imr, int ops) {
-        buff = ByteBuffer.allocateDirect(buffSize);
+        this(buffSize, new StringMessageReceiver(imr), ops);
+    }
+
+    /**
+     * Construct the MessagingHandler having a buffer-size of bufferSize
+     * calling the callback imr for every fully arrived message with a read-only view
+     * of the message within this handler's buffer. If imr implements ITopicMessageReceiver
+     * too, published messages arrive there along with their topic, if it implements
+     * IRequestReceiver it gets the requests to reply to.
+     * @param buffSize The buffer-size for reads over this connection
+     * @param imr The callback called for every fully arrived message
+     * @param ops The interestOps (either OP_CONNECT for pending connections or OP_READ. OP_WRITE will 
+     * be set/unset automatically when there is work to do)
+     */
+    MessagingHandler (int buffSize, IBinaryMessageReceiver imr, int ops) {
+        this(null, buffSize, imr, ops);
+    }
+
+    /**
+     * Construct the MessagingHandler for a connection belonging to listener. The handler
+     * joins the listener's recipient-list once connected, it's peer's subscriptions
+     * go to the listener's topic-index and it's send-queue is bounded as configured
+     * within the listener's ServerConfig.
+     * @param listener The MessagingListener this connection belongs to (null for a standalone connection)
+     * @param buffSize The buffer-size for reads over this connection
+     * @param imr The callback called for every fully arrived message
+     * @param ops The interestOps (either OP_CONNECT for pending connections or OP_READ)
+     */
+    MessagingHandler (MessagingListener listener, int buffSize, IBinaryMessageReceiver imr, int ops) {
+        this.listener = listener;
+        if (listener != null) {
+            ServerConfig cfg = listener.getConfig();
+            sendQueue = new SendQueue(cfg.getSendQueueBytes(), cfg.getSendQueueFrames(), cfg.getOverflowPolicy(),
+                    cfg.getHighWatermark(), cfg.getLowWatermark());
+            setBatching(cfg.getBatchSize(), cfg.getBatchDelay());
+            maxFrameSize = cfg.getMaxFrameSize();
+            compressThreshold = cfg.getCompressThreshold();
+        } else {
+            sendQueue = new SendQueue(0, 0, OverflowPolicy.DROP_NEWEST, 0, 0);
+            maxFrameSize = ServerConfig.DEFAULT_MAX_FRAME_SIZE;
+            compressThreshold = 0;
+        }
+        initialBuff = ByteBuffer.allocateDirect(buffSize);
+        buff = initialBuff;
+        view = buff.asReadOnlyBuffer();
         this.callback = imr;
+        this.topicCallback = imr instanceof ITopicMessageReceiver ? (ITopicMessageReceiver) imr : null;
+        this.requestCallback = imr instanceof IRequestReceiver ? (IRequestReceiver) imr : null;
         this.ops = ops;
-        synchronized(MessagingHandler.class) {
-            hashCode = nextHashCode++;
-        }
+        hashCode = nextHashCode.getAndIncrement();
     }
 
     public void accept(SocketChannel sc) { return; } // nothing to accept (it's an already established connection)
@@ -74,10 +158,15 @@ public class MessagingHandler implements IOHandler {
             ((SocketChannel) sk.channel()).finishConnect();
             this.ops = SelectionKey.OP_READ;
             sk.interestOps(this.ops);
-            MessagingListener.addRecipient(this);
+            if (listener != null)
+                listener.addRecipient(this);
+            // subscriptions (or messages) queued while connecting
+            if (hasPendingWrites())
+                requestWrite();
         } catch (IOException e) {
             this.cleanup();
-            e.printStackTrace();
+            if (!meshLink) // PeerManager reports failing links itself
+                e.printStackTrace();
         }
         return;
     }
@@ -89,7 +178,7 @@ public class MessagingHandler implements IOHandler {
      */
     public void read() {
         try {
-            int bytesRead = ((SocketChannel) sk.channel()).read(buff); 
+            int bytesRead = channel.read(buff);
             if (bytesRead == -1) {
                 // reading -1 number of bytes means connection is closed
                 this.cleanup();
@@ -98,45 +187,221 @@ public class MessagingHandler implements IOHandler {
                 System.out.print(".");
                 return;
             }
-            buff.flip();
+            decode();
+        } catch (IOException e) {
+            this.cleanup();
+        }
+    }
+
+    /**
+     * Decode all fully arrived frames within buff. Messages are handed to the callback
+     * as a read-only view of buff, subscriptions go to MessagingListener's topic-index.
+     * Incomplete frames are moved to the start of buff, a frame not fitting into buff
+     * makes it grow (up to the maximum frame-size) until the frame has been decoded.
+     */
+    void decode() {
+        buff.flip();
+        try {
             while (buff.hasRemaining()) {
-                int len = buff.getInt();
-                if (buff.remaining() < len) {
-                    buff.position(buff.position() - 4);
-                    if (buff.position()>0)
-                        buff.compact();
-                    return;
+                int pos = buff.position();
+                long header = FrameCodec.readHeader(buff, pos);
+                if (header < 0)
+                    break;
+                int headerLen = (int) (header >>> 32), len = (int) header;
+                if (len > maxFrameSize)
+                    throw new ProtocolException("Frame of " + len + " bytes exceeds the maximum of " + maxFrameSize);
+                if (buff.remaining() < headerLen + len) {
+                    if (headerLen + len > buff.capacity()) {
+                        grow(headerLen + len);
+                        return;
+                    }
+                    break;
+                }
+                byte type = buff.get(pos + 1);
+                int start = pos + headerLen;
+                buff.position(start + len);
+                boolean valid;
+                if ((buff.get(pos) & FrameCodec.FLAG_COMPRESSED) != 0) {
+                    ByteBuffer body = FrameCodec.inflate(buff, start, len, maxFrameSize);
+                    try {
+                        valid = dispatch(body, body.asReadOnlyBuffer(), type, 0, body.limit());
+                    } finally {
+                        FrameCodec.release(body);
+                    }
+                } else {
+                    valid = dispatch(buff, view, type, start, len);
                 }
-                byte[] bytes = new byte[len];
-                buff.get(bytes);
-                String strg = new String(bytes, characterset);
-                callback.receive(strg);
+                if (!valid)
+                    throw new ProtocolException("Malformed frame of type " + type);
             }
+        } catch (ProtocolException pe) {
+            // not a frame we understand, the stream can't be trusted anymore
+            System.out.println("closing connection " + this.hashCode + ": " + pe.getMessage());
             buff.clear();
-        } catch (IOException e) {
             this.cleanup();
+            return;
         }
+        buff.compact();
+        if (buff != initialBuff && buff.position() <= initialBuff.capacity()) {
+            // the large frame is done, go back to the buffer this connection started with
+            buff.flip();
+            initialBuff.clear();
+            initialBuff.put(buff);
+            BufferPool.instance.release(buff);
+            buff = initialBuff;
+            view = buff.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Move the (flipped) content of buff into a pooled buffer of at least size bytes
+     */
+    private void grow(int size) {
+        ByteBuffer larger = BufferPool.instance.acquire(size);
+        larger.clear();
+        larger.put(buff);
+        if (buff != initialBuff)
+            BufferPool.instance.release(buff);
+        buff = larger;
+        view = buff.asReadOnlyBuffer();
     }
 
     /**
-     * Take the next message from the sendQueue and send it out.
+     * Handle one frame
+     * @param src the buffer holding the frame's body
+     * @param view a read-only view of src handed to the callbacks
+     * @param type the frame's type
+     * @param start the index of the frame's body within src
+     * @param len the length of the frame's body
+     * @return false if the frame is malformed
+     */
+    private boolean dispatch(ByteBuffer src, ByteBuffer view, byte type, int start, int len) {
+        switch (type) {
+        case FrameCodec.DATA:
+            view.clear();
+            view.position(start).limit(start + len);
+            callback.receive(view);
+            return true;
+        case FrameCodec.PUBLISH:
+            if (len < 2)
+                return false;
+            int topicLen = src.getShort(start) & 0xFFFF;
+            if (topicLen > len - 2)
+                return false;
+            int msgStart = start + 2 + topicLen;
+            view.clear();
+            view.position(msgStart).limit(start + len);
+            if (topicCallback != null)
+                topicCallback.receive(FrameCodec.string(src, start + 2, topicLen), view);
+            else
+                callback.receive(view);
+            return true;
+        case FrameCodec.SUBSCRIBE:
+        case FrameCodec.UNSUBSCRIBE:
+            String pattern = FrameCodec.string(src, start, len);
+            if (listener == null)
+                return true;
+            try {
+                if (type == FrameCodec.SUBSCRIBE) {
+                    listener.subscribe(pattern, this);
+                    synchronized(peerSubscriptions) {
+                        peerSubscriptions.add(pattern);
+                    }
+                } else {
+                    listener.unsubscribe(pattern, this);
+                    synchronized(peerSubscriptions) {
+                        peerSubscriptions.remove(pattern);
+                    }
+                }
+            } catch (IllegalArgumentException iae) {
+                System.out.println("ignoring invalid subscription: " + iae.getMessage());
+            }
+            return true;
+        case FrameCodec.REQUEST:
+            if (len < 8)
+                return false;
+            long requestId = src.getLong(start);
+            view.clear();
+            view.position(start + 8).limit(start + len);
+            if (requestCallback != null)
+                requestCallback.request(this, requestId, view);
+            else
+                replyError(requestId, "Requests are not supported by this node");
+            return true;
+        case FrameCodec.HELLO:
+            if (len != 8)
+                return false;
+            if (listener != null)
+                listener.hello(this, src.getLong(start));
+            return true;
+        case FrameCodec.RELAY:
+            if (len < FrameCodec.RELAY_HEADER_SIZE)
+                return false;
+            byte relayedType = src.get(start + 17);
+            int bodyStart = start + FrameCodec.RELAY_HEADER_SIZE, bodyLen = len - FrameCodec.RELAY_HEADER_SIZE;
+            if (relayedType == FrameCodec.PUBLISH) {
+                if (bodyLen < 2 || (src.getShort(bodyStart) & 0xFFFF) > bodyLen - 2)
+                    return false;
+            } else if (relayedType != FrameCodec.DATA) {
+                return false;
+            }
+            if (listener != null && !listener.relayed(this, src, start, len))
+                return true; // seen before
+            return dispatch(src, view, relayedType, bodyStart, bodyLen);
+        case FrameCodec.LOGGED:
+            if (len < 8)
+                return false;
+            if (resuming)
+                return true; // sent before our RESUME arrived, it's part of the replay
+            long seq = src.getLong(start);
+            boolean valid = dispatch(src, view, FrameCodec.DATA, start + 8, len - 8);
+            lastSequence = seq;
+            return valid;
+        case FrameCodec.RESUME:
+            if (len != 8)
+                return false;
+            if (listener != null)
+                listener.resume(this, src.getLong(start));
+            return true;
+        case FrameCodec.RESUMED:
+            if (len != 8)
+                return false;
+            long first = src.getLong(start);
+            if (first > lastSequence + 1)
+                System.out.println("messages " + (lastSequence + 1) + " to " + (first - 1) + " have been dropped from the peer's log");
+            resuming = false;
+            return true;
+        case FrameCodec.REPLY:
+            if (len < 9)
+                return false;
+            PendingRequests pr = requests;
+            if (pr != null) {
+                view.clear();
+                view.position(start + 9).limit(start + len);
+                pr.reply(src.getLong(start), src.get(start + 8), view);
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the buffer data gets read into
+     */
+    ByteBuffer buffer() {
+        return buff;
+    }
+
+    /**
+     * Write out as much of the sendQueue as the socket takes.
      * Unset OP_WRITE if there is no more pending data to write out.
      */
     public void write() {
         try {
-            SocketChannel sc = (SocketChannel) sk.channel();
-            while (true) synchronized(sendQueue) {
-                if (sendQueue.isEmpty()) {
-                    sk.interestOps(sk.interestOps() - SelectionKey.OP_WRITE);
-                    break;
-                }
-                ByteBuffer msg = sendQueue.getFirst();
-                if (sc.write(msg) < 1) {
-                    return;
-                }
-                if (!msg.hasRemaining())
-                    sendQueue.removeFirst();
-            }
+            int result = sendQueue.write(channel, sk);
+            if ((result & SendQueue.LOW_WATERMARK) != 0)
+                notifyWatermark(false);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -145,37 +410,323 @@ public class MessagingHandler implements IOHandler {
     }
 
     /**
-     * Cleanup by canceling the given SelectionKey and removing this
-     * IOHandler from MessagingListener's recipient-list
+     * Cleanup by canceling the given SelectionKey, removing this
+     * IOHandler from MessagingListener's recipient-list and releasing
+     * all frames which haven't been written out. Only the first call
+     * does so, a handler not registered yet gets closed by setSelectionKey.
      */
     public void cleanup() {
-        MessagingListener.removeRecipient(this);
-        sk.cancel();
+        if (!closed.compareAndSet(false, true))
+            return;
+        if (listener != null)
+            listener.closed(this);
+        synchronized(peerSubscriptions) {
+            for (Iterator<String> i = peerSubscriptions.iterator(); i.hasNext(); ) {
+                listener.unsubscribe(i.next(), this);
+            }
+            peerSubscriptions.clear();
+        }
+        sendQueue.close();
+        final PendingRequests pr = requests;
+        Poller poller = this.poller;
+        if (pr != null && poller != null) {
+            poller.execute(new Runnable() {
+                public void run() {
+                    pr.closed(MessagingHandler.this);
+                }
+            });
+        }
+        SelectionKey sk = this.sk;
+        if (sk != null)
+            sk.cancel();
+        ByteChannel channel = this.channel;
+        if (channel == null)
+            return;
         try {
-            sk.channel().close();
+            channel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Send a message to one individual peer. This will be called by MessageingListener.sendMessage(String)
-     * SelectionKey doesn't have the OP_WRITE-interest-flag set it will get set.
-     * @param sk The SelectionKey to write out the response to
-     * @param response  The Response to write out
+     * Close the connection from a publisher's thread: the send-queue gets closed right away,
+     * the cleanup is left to the poller's thread as the publisher may be racing it's
+     * read/write (or hold locks like the MessageLog's)
      */
-    public void sendMessage(byte[] bytes) {
-        if (sk == null)
-            return;
-        if (!sk.isValid()) {
+    private void disconnect() {
+        sendQueue.close();
+        Poller p = poller;
+        if (p != null)
+            p.execute(cleanup);
+        else
             this.cleanup();
-            return;
+    }
+
+    /**
+     * Send a message to one individual peer. If this IOHandler's
+     * SelectionKey doesn't have the OP_WRITE-interest-flag set it will get set.
+     * @param bytes The message to write out
+     * @return false if the message has been dropped (see OverflowPolicy) or the connection is closed
+     */
+    public boolean sendMessage(byte[] bytes) {
+        return sendMessage(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Send a message to one individual peer without copying it. The bytes between position
+     * and limit of msg are the message, msg's position and limit stay untouched. The content
+     * must not be modified until it has been written out.
+     * @param msg The message to write out
+     * @return false if the message has been dropped (see OverflowPolicy) or the connection is closed
+     */
+    public boolean sendMessage(ByteBuffer msg) {
+        if (compressThreshold > 0 && msg.remaining() >= compressThreshold)
+            return sendReply(FrameCodec.compress(FrameCodec.data(msg), compressThreshold));
+        ByteBuffer header = FrameCodec.header(FrameCodec.DATA, msg.remaining());
+        return enqueue(new OutboundFrame(header, msg.duplicate(), null, null));
+    }
+
+    /**
+     * Send an already encoded frame (length-prefix and payload) shared with other recipients.
+     * A reference to frame is taken for as long as it is queued, the frame itself
+     * is written through a view so it's position and limit stay untouched.
+     * @param frame the encoded frame
+     * @param key the key to conflate the frame by (or null)
+     * @return false if the frame has been dropped (see OverflowPolicy) or the connection is closed
+     */
+    boolean sendFrame(SharedBuffer frame, Object key) {
+        return enqueue(new OutboundFrame(null, frame.duplicate(), frame.retain(), key));
+    }
+
+    /**
+     * Replay a region of a log-segment (see MessageLog.replay)
+     * @return false if the region has been dropped or the connection is closed
+     */
+    boolean sendRegion(LogSegment segment, long position, int count) {
+        return enqueue(new OutboundFrame(segment, position, count));
+    }
+
+    /**
+     * Ask the peer to replay the messages it logged after lastSequence (see MessageLog), e.g. after
+     * reconnecting with the value getLastSequence returned for the previous connection.
+     * Logged messages arriving before the replay starts are part of it and get discarded.
+     * @param lastSequence the sequence-number of the last logged message received
+     */
+    public void resume(long lastSequence) {
+        this.lastSequence = lastSequence;
+        this.resuming = true;
+        SharedBuffer frame = FrameCodec.sequence(FrameCodec.RESUME, lastSequence + 1);
+        try {
+            sendFrame(frame, null);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Returns the sequence-number of the last logged message handed to the callback (0 if there hasn't been one)
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    private boolean enqueue(OutboundFrame f) {
+        SelectionKey sk = this.sk;
+        if (sk != null && !sk.isValid()) {
+            f.release();
+            disconnect();
+            return false;
+        }
+        int result = sendQueue.offer(f);
+        int status = result & SendQueue.STATUS;
+        if (status == SendQueue.OVERFLOW) {
+            System.out.println("disconnecting slow consumer " + this.hashCode + " (" + sendQueue.getQueuedBytes()
+                    + " bytes / " + sendQueue.getQueuedFrames() + " messages queued)");
+            disconnect();
+            return false;
         }
-        ByteBuffer sbuff = ByteBuffer.allocate(bytes.length + 4);
-        sbuff.putInt(bytes.length).put(bytes).flip();
-        synchronized(sendQueue) {
-            sendQueue.add(sbuff);
+        if (status == SendQueue.DROPPED || status == SendQueue.CLOSED)
+            return false;
+        if ((result & SendQueue.HIGH_WATERMARK) != 0)
+            notifyWatermark(true);
+        if ((result & SendQueue.BATCH_STARTED) != 0)
+            scheduleFlush();
+        if ((result & SendQueue.BATCHED) == 0)
+            requestWrite();
+        return true;
+    }
+
+    /**
+     * Batch small messages: instead of writing every message on it's own, messages get
+     * copied into one buffer which is written once it is full or when maxDelayMillis
+     * have passed since the first message went into it.
+     * @param maxBytes the size of the batch-buffer (0 disables batching)
+     * @param maxDelayMillis the maximum time a message waits within the batch-buffer
+     * (0 flushes at the end of the poller's current loop)
+     */
+    public void setBatching(int maxBytes, long maxDelayMillis) {
+        this.batchDelay = maxDelayMillis;
+        sendQueue.setBatchSize(maxBytes);
+        if (hasPendingWrites())
+            requestWrite();
+    }
+
+    /**
+     * Flush the batch just opened at the end of the batch-window, right away if this handler
+     * isn't registered with a Poller (yet)
+     */
+    private void scheduleFlush() {
+        Poller p = this.poller;
+        if (p != null) {
+            p.schedule(flushBatch, batchDelay);
+        } else {
+            flushBatch.run();
         }
+    }
+
+    /**
+     * Reply to a request received by IRequestReceiver.request (may be called from any thread)
+     * @param correlationId the correlation-id of the request
+     * @param msg the reply (the bytes between position and limit, which stay untouched)
+     * @return false if the reply has been dropped (see OverflowPolicy) or the connection is closed
+     */
+    public boolean reply(long correlationId, ByteBuffer msg) {
+        return sendReply(FrameCodec.reply(correlationId, FrameCodec.REPLY_OK, msg));
+    }
+
+    /**
+     * Reply to a request with an error, completing the requester's future exceptionally
+     * @param correlationId the correlation-id of the request
+     * @param message the error-message
+     * @return false if the reply has been dropped (see OverflowPolicy) or the connection is closed
+     */
+    public boolean replyError(long correlationId, String message) {
+        ByteBuffer msg = ByteBuffer.wrap(message.getBytes(characterset));
+        return sendReply(FrameCodec.reply(correlationId, FrameCodec.REPLY_ERROR, msg));
+    }
+
+    /**
+     * Send a frame encoded for this connection only (compressing it as configured) and release it
+     */
+    private boolean sendReply(SharedBuffer frame) {
+        frame = FrameCodec.compress(frame, compressThreshold);
+        try {
+            return sendFrame(frame, null);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Mark this connection as link to another node of the mesh (see PeerManager): it
+     * receives the messages sent and published by this node as RELAY-frames only
+     */
+    void setMeshLink() {
+        this.meshLink = true;
+    }
+
+    boolean isMeshLink() {
+        return meshLink;
+    }
+
+    /**
+     * Returns false once this connection has been closed
+     */
+    boolean isOpen() {
+        SelectionKey sk = this.sk;
+        return !closed.get() && (sk == null || sk.isValid());
+    }
+
+    /**
+     * Returns the minimum body-length of frames to compress (0 if compression is off)
+     */
+    int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    /**
+     * Returns the Poller this connection is registered with (null if not registered yet)
+     */
+    Poller getPoller() {
+        return poller;
+    }
+
+    /**
+     * Returns the requests pending on this connection's Poller (null if not registered yet)
+     */
+    PendingRequests getPendingRequests() {
+        return requests;
+    }
+
+    private void notifyWatermark(boolean high) {
+        ISendQueueListener sql = listener == null ? null : listener.getSendQueueListener();
+        if (sql == null)
+            return;
+        if (high)
+            sql.highWatermark(this);
+        else
+            sql.lowWatermark(this);
+    }
+
+    /**
+     * Returns false while the send-queue is above the high-watermark (publishers should back off)
+     */
+    public boolean isWritable() {
+        return sendQueue.isWritable();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to this connection
+     */
+    public long getQueuedBytes() {
+        return sendQueue.getQueuedBytes();
+    }
+
+    /**
+     * Returns the number of messages dropped because the send-queue overflowed
+     */
+    public long getDroppedMessages() {
+        return sendQueue.getDropped();
+    }
+
+    /**
+     * Ask the peer to send us all messages published to topics matching pattern
+     * @param pattern the topic-pattern ('/' separated levels, '+' matches one level, '#' any remaining levels)
+     */
+    public void subscribe(String pattern) {
+        sendControl(FrameCodec.SUBSCRIBE, pattern);
+    }
+
+    /**
+     * Cancel a subscription made by subscribe
+     * @param pattern the topic-pattern given to subscribe
+     */
+    public void unsubscribe(String pattern) {
+        sendControl(FrameCodec.UNSUBSCRIBE, pattern);
+    }
+
+    private void sendControl(byte type, String pattern) {
+        SharedBuffer frame = FrameCodec.control(type, pattern);
+        try {
+            sendFrame(frame, null);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        return !sendQueue.isEmpty();
+    }
+
+    /**
+     * Set OP_WRITE if it isn't set already. Frames queued before the connection is
+     * registered (or connected) get flushed by setSelectionKey (or connect).
+     */
+    private void requestWrite() {
+        SelectionKey sk = this.sk;
+        if (sk == null || this.ops == SelectionKey.OP_CONNECT)
+            return;
         int ops = sk.interestOps();
         if ((ops & SelectionKey.OP_WRITE) == 0) {
             sk.interestOps(ops | SelectionKey.OP_WRITE);
@@ -197,7 +748,31 @@ public class MessagingHandler implements IOHandler {
      * Sets this IOHandlers SelectionKey (called by IPoller when registered with it's selector)
      */
     public void setSelectionKey(SelectionKey sk) {
+        if (channel == null)
+            channel = (SocketChannel) sk.channel();
+        this.poller = Poller.current();
+        if (listener != null && poller != null)
+            this.requests = listener.pendingRequests(poller);
         this.sk = sk;
+        if (closed.get()) {
+            // disconnected before it got registered
+            sk.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (sendQueue.flushBatch() || hasPendingWrites())
+            requestWrite();
+    }
+
+    /**
+     * Read and write through channel instead of the SelectionKey's SocketChannel (see TlsHandler)
+     */
+    public void setChannel(ByteChannel channel) {
+        this.channel = channel;
     }
 
     /**
@@ -18,30 +18,70 @@
  * MessagingListener accepts connections from other messaging-recipients
  * and adds them to the recipients-list registered with an MessagingHandler
  * responsible for this one connection.
+ * Messages are either sent to all recipients or published to a topic, reaching only
+ * the recipients having subscribed to a matching topic-pattern. With a PeerManager they
+ * get relayed to the other nodes of the mesh too.
+ * With a TlsContext all connections, accepted and initiated, speak TLS.
  */
 package org.freecs.nio.messagingServer;
 
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.SharedBuffer;
+import org.freecs.nio.core.TlsContext;
 import org.freecs.nio.interfaces.IOHandler;
 import org.freecs.nio.interfaces.IPoller;
 
 public class MessagingListener implements IOHandler {
     private final IPoller poller;
-    private final IMessageReceiver callback;
+    private final IBinaryMessageReceiver callback;
+    private final ServerConfig cfg;
     private SelectionKey sk;
-    private static final Set<MessagingHandler> recipients = new HashSet<MessagingHandler>();
+    private volatile ISendQueueListener sendQueueListener = null;
+    private volatile PeerManager peers = null;
+    private volatile MessageLog log = null;
+    private volatile TlsContext tls = null;
+    private final ConcurrentHashMap<Poller, PendingRequests> pendingRequests = new ConcurrentHashMap<Poller, PendingRequests>();
+    private final RecipientRegistry recipients = new RecipientRegistry(64);
+    private final TopicIndex topics = new TopicIndex();
     
     @SuppressWarnings("unused")
-    private MessagingListener() { poller=null; callback=null; }
+    private MessagingListener() { poller=null; callback=null; cfg=null; }
     
     public MessagingListener(IPoller poller, IMessageReceiver imr) {
+        this(poller, imr, ServerConfig.builder(1976).build());
+    }
+
+    /**
+     * @param poller the IPoller new connections get registered with
+     * @param imr the callback called for every fully arrived message
+     * @param cfg the ServerConfig providing socket-options and buffer-size for new connections
+     */
+    public MessagingListener(IPoller poller, IMessageReceiver imr, ServerConfig cfg) {
+        this(poller, new StringMessageReceiver(imr), cfg);
+    }
+
+    public MessagingListener(IPoller poller, IBinaryMessageReceiver imr) {
+        this(poller, imr, ServerConfig.builder(1976).build());
+    }
+
+    /**
+     * @param poller the IPoller new connections get registered with
+     * @param imr the callback called for every fully arrived message (with a view into the connection's buffer)
+     * @param cfg the ServerConfig providing socket-options and buffer-size for new connections
+     */
+    public MessagingListener(IPoller poller, IBinaryMessageReceiver imr, ServerConfig cfg) {
         this.poller=poller;
         this.callback = imr;
+        this.cfg = cfg;
     }
 
     /**
@@ -49,39 +89,141 @@ public class MessagingListener implements IOHandler {
      * and put this handler into the recipients-list
      */
     public void accept(SocketChannel sc) {
-        MessagingHandler mh = new MessagingHandler(10240, callback, SelectionKey.OP_READ);
+        MessagingHandler mh = new MessagingHandler(this, cfg.getBufferSize(), callback, SelectionKey.OP_READ);
         try {
-            poller.addHandler(mh, sc);
+            cfg.configure(sc);
+            TlsContext tls = this.tls;
+            poller.addHandler(tls != null ? tls.server(mh) : mh, sc);
             addRecipient(mh);
-            System.out.println("accepted new connection from " + sc.getRemoteAddress());
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
 
+    /**
+     * Connect to another messaging-node. The returned handler joins the recipient-list once
+     * the connection is established; messages and subscriptions sent through it before
+     * get queued until then.
+     * @param addr the address of the other node (tcp or unix-domain)
+     * @return the MessagingHandler responsible for the new connection
+     * @throws IOException if the connection can't be initiated
+     */
+    public MessagingHandler connect(SocketAddress addr) throws IOException {
+        SocketChannel sc = ServerConfig.openChannel(addr);
+        cfg.configure(sc);
+        MessagingHandler mh = new MessagingHandler(this, cfg.getBufferSize(), callback, SelectionKey.OP_CONNECT);
+        sc.connect(addr);
+        TlsContext tls = this.tls;
+        poller.addHandler(tls != null ? tls.client(mh, addr) : mh, sc);
+        return mh;
+    }
+
     /**
      * adds a recipient to the recipient-list
      * @param mh the recipient to add to the recipient-list
      */
-    public static void addRecipient(MessagingHandler mh) {
-        System.out.println("adding recipient");
-        synchronized (recipients) {
-            recipients.add(mh);
-        }
+    public void addRecipient(MessagingHandler mh) {
+        recipients.add(mh);
     }
 
     /**
      * Remove a recipient from the recipient-list
      * @param mh the recipient to remove fromt the recipient-list
      */
-    public static void removeRecipient(MessagingHandler mh) {
-        System.out.println("removing recipient");
-        synchronized (recipients) {
-            recipients.remove(mh);
+    public void removeRecipient(MessagingHandler mh) {
+        recipients.remove(mh);
+    }
+
+    /**
+     * Set the callback told about recipients whose send-queue crossed the high- or low-watermark
+     * @param sql the callback (or null)
+     */
+    public void setSendQueueListener(ISendQueueListener sql) {
+        this.sendQueueListener = sql;
+    }
+
+    ISendQueueListener getSendQueueListener() {
+        return sendQueueListener;
+    }
+
+    ServerConfig getConfig() {
+        return cfg;
+    }
+
+    /**
+     * Speak TLS on all connections accepted or initiated from now on
+     * @param tls the TlsContext (or null for plain connections)
+     */
+    public void setTlsContext(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Log every message broadcast from now on, so peers can resume after being disconnected
+     * @param log the MessageLog (or null to stop logging)
+     */
+    public void setMessageLog(MessageLog log) {
+        this.log = log;
+    }
+
+    /**
+     * A peer asked to replay the logged messages from seq on. Without a log it's told
+     * to carry on with the live messages.
+     */
+    void resume(MessagingHandler mh, long seq) {
+        MessageLog l = log;
+        if (l != null) {
+            l.replay(mh, seq);
+            return;
+        }
+        SharedBuffer frame = FrameCodec.sequence(FrameCodec.RESUMED, seq);
+        try {
+            mh.sendFrame(frame, null);
+        } finally {
+            frame.release();
         }
     }
 
+    void setPeerManager(PeerManager pm) {
+        this.peers = pm;
+    }
+
+    /**
+     * A connection of this listener closed
+     */
+    void closed(MessagingHandler mh) {
+        removeRecipient(mh);
+        PeerManager pm = peers;
+        if (pm != null)
+            pm.closed(mh);
+    }
+
+    /**
+     * A HELLO-frame arrived over mh (ignored without a PeerManager)
+     */
+    void hello(MessagingHandler mh, long nodeId) {
+        PeerManager pm = peers;
+        if (pm != null)
+            pm.hello(mh, nodeId);
+    }
+
+    /**
+     * A RELAY-frame arrived over mh
+     * @return false if the relayed message has been seen before and must not be delivered
+     */
+    boolean relayed(MessagingHandler mh, ByteBuffer src, int start, int len) {
+        PeerManager pm = peers;
+        return pm == null || pm.relayed(mh, src, start, len);
+    }
+
+    /**
+     * Returns the number of recipients currently on the recipient-list
+     */
+    public int getRecipientCount() {
+        return recipients.size();
+    }
+
     public void connect() { return; } // connect is only used by clients wanting to connect to a server
     public void read() { return; } // listeners don't read
     public void write() { return; } // listeners don't write
@@ -110,15 +252,196 @@ public class MessagingListener implements IOHandler {
      * Send a message to all known recipients at the time
      * @param strg the message to sent to the recipients on the recipient-list
      */
-    public static void sendMessage(String strg) {
-        byte[] bytes = strg.getBytes(MessagingHandler.characterset);
-        MessagingHandler[] handlers = new MessagingHandler[0];
-        synchronized(recipients) {
-            handlers = (MessagingHandler[]) recipients.toArray(handlers);
+    public void sendMessage(String strg) {
+        sendMessage(ByteBuffer.wrap(strg.getBytes(MessagingHandler.characterset)));
+    }
+
+    /**
+     * Send a message to all known recipients at the time. The frame is encoded once
+     * (and compressed as configured) into a pooled buffer shared by all recipients, which
+     * goes back to the pool as soon as the last recipient has written it out.
+     * With a PeerManager the message gets relayed to the other nodes of the mesh too,
+     * with a MessageLog it gets logged (uncompressed) and sent as LOGGED-frame (as DATA-frame once
+     * writing the log has failed, see MessageLog.getFailure).
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     */
+    public void sendMessage(ByteBuffer msg) {
+        broadcast(msg);
+        PeerManager pm = peers;
+        if (pm != null)
+            pm.originate(FrameCodec.DATA, null, msg);
+    }
+
+    /**
+     * Deliver a message relayed by another node of the mesh to this node's recipients
+     * @param type DATA or PUBLISH
+     * @param body the body of the relayed frame
+     */
+    void deliver(byte type, ByteBuffer body) {
+        if (type == FrameCodec.DATA) {
+            broadcast(body);
+        } else {
+            int topicLen = body.getShort(body.position()) & 0xFFFF;
+            String topic = FrameCodec.string(body, body.position() + 2, topicLen);
+            ByteBuffer msg = body.duplicate();
+            msg.position(body.position() + 2 + topicLen);
+            deliver(topic, msg);
+        }
+    }
+
+    private void broadcast(ByteBuffer msg) {
+        MessageLog l = log;
+        if (l != null) {
+            // the lock keeps the order of sequence-numbers and replays on the wire
+            synchronized (l) {
+                SharedBuffer frame = l.append(msg);
+                if (frame == null)
+                    frame = FrameCodec.compress(FrameCodec.data(msg), cfg.getCompressThreshold()); // the log has failed
+                try {
+                    for (int s = 0; s < recipients.stripeCount(); s++) {
+                        MessagingHandler[] handlers = recipients.stripe(s);
+                        for (int i = 0; i < handlers.length; i++) {
+                            if (!handlers[i].isMeshLink())
+                                handlers[i].sendFrame(frame, null);
+                        }
+                    }
+                } finally {
+                    frame.release();
+                }
+            }
+            return;
+        }
+        SharedBuffer frame = null;
+        try {
+            for (int s = 0; s < recipients.stripeCount(); s++) {
+                MessagingHandler[] handlers = recipients.stripe(s);
+                if (handlers.length == 0)
+                    continue;
+                if (frame == null)
+                    frame = FrameCodec.compress(FrameCodec.data(msg), cfg.getCompressThreshold());
+                for (int i = 0; i < handlers.length; i++) {
+                    if (!handlers[i].isMeshLink())
+                        handlers[i].sendFrame(frame, null);
+                }
+            }
+        } finally {
+            if (frame != null)
+                frame.release();
         }
-        for (int i = 0; i < handlers.length; i++) {
-            handlers[i].sendMessage(bytes);
+    }
+
+    /**
+     * Subscribe a peer to all topics matching pattern (called when it's SUBSCRIBE-frame arrives)
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    void subscribe(String pattern, MessagingHandler mh) {
+        topics.subscribe(pattern, mh);
+    }
+
+    /**
+     * Remove a peer's subscription (called when it's UNSUBSCRIBE-frame arrives or it disconnects)
+     */
+    void unsubscribe(String pattern, MessagingHandler mh) {
+        topics.unsubscribe(pattern, mh);
+    }
+
+    /**
+     * Publish a message to all peers subscribed to a pattern matching topic
+     * @param topic the topic ('/' separated levels, no wildcards)
+     * @param strg the message
+     * @return the number of peers the message has been queued for
+     */
+    public int publish(String topic, String strg) {
+        return publish(topic, ByteBuffer.wrap(strg.getBytes(MessagingHandler.characterset)));
+    }
+
+    /**
+     * Publish a message to all peers subscribed to a pattern matching topic.
+     * Looking up the subscribers takes no lock, the frame is encoded once and shared by them.
+     * With OverflowPolicy CONFLATE a message still queued for a slow peer gets replaced by a newer
+     * one published to the same topic. With a PeerManager the message gets relayed to the
+     * other nodes of the mesh, delivering it to their subscribers.
+     * @param topic the topic ('/' separated levels, no wildcards)
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     * @return the number of this node's peers the message has been queued for
+     */
+    public int publish(String topic, ByteBuffer msg) {
+        int queued = deliver(topic, msg);
+        PeerManager pm = peers;
+        if (pm != null)
+            pm.originate(FrameCodec.PUBLISH, topic, msg);
+        return queued;
+    }
+
+    private int deliver(String topic, ByteBuffer msg) {
+        MessagingHandler[] handlers = topics.match(topic);
+        if (handlers.length == 0)
+            return 0;
+        SharedBuffer frame = FrameCodec.compress(FrameCodec.publish(topic, msg), cfg.getCompressThreshold());
+        int queued = 0;
+        try {
+            for (int i = 0; i < handlers.length; i++) {
+                if (!handlers[i].isMeshLink() && handlers[i].sendFrame(frame, topic))
+                    queued++;
+            }
+        } finally {
+            frame.release();
+        }
+        return queued;
+    }
+
+    /**
+     * Send a request to the peer of mh, waiting ServerConfig's requestTimeout for the reply
+     * @see #request(MessagingHandler, ByteBuffer, long)
+     */
+    public CompletableFuture<ByteBuffer> request(MessagingHandler mh, ByteBuffer msg) {
+        return request(mh, msg, cfg.getRequestTimeout());
+    }
+
+    /**
+     * Send a request to the peer of mh, which answers it through it's IRequestReceiver.
+     * The request is copied, the correlation-id gets assigned and tracked by the Poller of mh.
+     * The future gets completed on that poller's thread: with a copy of the reply, with an
+     * IOException if the peer replied with an error or the connection closed or with a
+     * TimeoutException. Use the ...Async-methods of the future for anything taking longer.
+     * @param mh the connection to send the request through
+     * @param msg the request (the bytes between position and limit, which stay untouched)
+     * @param timeoutMillis the time to wait for the reply
+     * @return the future reply
+     */
+    public CompletableFuture<ByteBuffer> request(final MessagingHandler mh, ByteBuffer msg, final long timeoutMillis) {
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        final PendingRequests pr = mh.getPendingRequests();
+        if (pr == null) {
+            future.completeExceptionally(new IOException("Connection not registered with a Poller"));
+            return future;
+        }
+        final SharedBuffer frame = FrameCodec.request(0, msg);
+        Poller p = mh.getPoller();
+        if (Poller.current() == p) {
+            pr.send(mh, frame, timeoutMillis, future);
+        } else {
+            p.execute(new Runnable() {
+                public void run() {
+                    pr.send(mh, frame, timeoutMillis, future);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Returns the requests pending on the given Poller's connections
+     */
+    PendingRequests pendingRequests(Poller p) {
+        PendingRequests pr = pendingRequests.get(p);
+        if (pr == null) {
+            PendingRequests created = new PendingRequests(p);
+            pr = pendingRequests.putIfAbsent(p, created);
+            if (pr == null)
+                pr = created;
         }
+        return pr;
     }
 
     /**
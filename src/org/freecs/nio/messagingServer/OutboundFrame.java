@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * OutboundFrame is one entry of a MessagingHandler's sendQueue: an optional header and
+ * the bytes still to be written, the SharedBuffer they are a view of (if any), which gets
+ * released once the bytes have been written or dropped, and the key used for conflation.
+ * A replay-frame is a region of a LogSegment instead, transferred from the file to the socket.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.freecs.nio.core.SharedBuffer;
+
+class OutboundFrame {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    ByteBuffer header;
+    ByteBuffer data;
+    SharedBuffer owner;
+    int size;
+    final Object key;
+    LogSegment segment = null;
+    private long filePosition;
+    private long fileRemaining = 0;
+
+    /**
+     * @param header a separately allocated header (or null if data is the whole frame)
+     * @param data the (rest of the) frame
+     * @param owner the SharedBuffer data is a view of (or null)
+     * @param key the key messages get conflated by (or null)
+     */
+    OutboundFrame(ByteBuffer header, ByteBuffer data, SharedBuffer owner, Object key) {
+        this.key = key;
+        set(header, data, owner);
+    }
+
+    /**
+     * @param segment the segment to replay from (a reference is taken for as long as the frame is queued)
+     * @param position the index of the region's first byte within segment
+     * @param count the number of bytes to replay
+     */
+    OutboundFrame(LogSegment segment, long position, int count) {
+        this.key = null;
+        set(null, EMPTY, null);
+        this.segment = segment.retain();
+        this.filePosition = position;
+        this.fileRemaining = count;
+        this.size = count;
+    }
+
+    private void set(ByteBuffer header, ByteBuffer data, SharedBuffer owner) {
+        this.header = header;
+        this.data = data;
+        this.owner = owner;
+        this.size = (header == null ? 0 : header.remaining()) + data.remaining();
+    }
+
+    /**
+     * Replace the content of this (not yet started) frame by the content of a newer one,
+     * keeping the place within the queue
+     */
+    void replace(OutboundFrame newer) {
+        release();
+        set(newer.header, newer.data, newer.owner);
+    }
+
+    /**
+     * Returns true if some bytes of this frame have been written already
+     */
+    boolean started() {
+        return remaining() < size;
+    }
+
+    int remaining() {
+        return (header == null ? 0 : header.remaining()) + data.remaining() + (int) fileRemaining;
+    }
+
+    /**
+     * Transfer as much of the replay-region as target takes
+     */
+    long transferTo(WritableByteChannel target) throws IOException {
+        long n = segment.transferTo(filePosition, fileRemaining, target);
+        filePosition += n;
+        fileRemaining -= n;
+        return n;
+    }
+
+    void release() {
+        if (owner != null)
+            owner.release();
+        owner = null;
+        if (segment != null)
+            segment.release();
+        segment = null;
+    }
+}
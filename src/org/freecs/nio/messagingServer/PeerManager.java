@@ -0,0 +1,385 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PeerManager joins a MessagingListener's node into a mesh of messaging-nodes.
+ *
+ * It keeps the connections to the configured peers up, reconnecting with exponential
+ * backoff (plus some jitter) on it's Poller's timers whenever one fails or drops.
+ * Nodes greet each other with a HELLO-frame carrying their node-id. The node connecting
+ * sends it first, the accepting node answers it, so plain clients never see one. Between
+ * two nodes only one link is used: if both connected to each other the link initiated by
+ * the node having the lower id wins and the other one is closed by it's initiator.
+ * A peer reachable through a link initiated by the other side isn't reconnected to
+ * until that link drops.
+ *
+ * Everything sent or published through the listener is relayed to all links as RELAY-frame
+ * carrying the id of the originating node and a message-id. Every node delivers a relayed
+ * message to it's own recipients (or subscribers) and relays it to all other links. Messages
+ * already seen (by origin and message-id) are dropped, which stops them from circling
+ * within the mesh; the hop-limit is a safety net on top.
+ *
+ * The peer-state is only touched by the Poller's thread, the links are published as
+ * copy-on-write array for the threads relaying messages.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ScheduledTask;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.SharedBuffer;
+
+public class PeerManager {
+    public static final int MAX_HOPS = 16;
+    private static final MessagingHandler[] NONE = new MessagingHandler[0];
+
+    private final MessagingListener listener;
+    private final Poller poller;
+    private final long nodeId;
+    private final long minDelay;
+    private final long maxDelay;
+    // message-ids start at the current time so a restarted node's messages aren't taken as already seen
+    private final AtomicLong nextMessageId = new AtomicLong(System.currentTimeMillis() << 20);
+    private final ConcurrentHashMap<Long, SeenWindow> seen = new ConcurrentHashMap<Long, SeenWindow>();
+    private volatile MessagingHandler[] links = NONE;
+
+    // touched by the poller's thread only
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private final Map<Long, MessagingHandler> primary = new HashMap<Long, MessagingHandler>();
+    private final Map<MessagingHandler, Long> greeted = new HashMap<MessagingHandler, Long>();
+
+    private class Peer implements Runnable {
+        final SocketAddress addr;
+        MessagingHandler handler = null;
+        long remoteId = 0;
+        long delay;
+        boolean linked = false;
+        ScheduledTask timer = null;
+
+        Peer(SocketAddress addr) {
+            this.addr = addr;
+            this.delay = minDelay;
+        }
+
+        // the reconnect-timer
+        public void run() {
+            timer = null;
+            connect(this);
+        }
+    }
+
+    /**
+     * Remembers the message-ids of one origin seen lately: the highest one and which of the
+     * WINDOW ids below it arrived. Anything older counts as seen.
+     */
+    private static class SeenWindow {
+        static final int WINDOW = 1024;
+        private final long[] bits = new long[WINDOW / 64];
+        private long highest = Long.MIN_VALUE;
+
+        synchronized boolean firstTime(long id) {
+            if (highest == Long.MIN_VALUE || id > highest) {
+                long shift = highest == Long.MIN_VALUE ? WINDOW : id - highest;
+                if (shift >= WINDOW) {
+                    for (int i = 0; i < bits.length; i++)
+                        bits[i] = 0;
+                } else {
+                    for (long i = highest + 1; i < id; i++)
+                        clear(i);
+                }
+                highest = id;
+                set(id);
+                return true;
+            }
+            if (highest - id >= WINDOW)
+                return false;
+            int idx = (int) (id & (WINDOW - 1));
+            if ((bits[idx >>> 6] & (1L << idx)) != 0)
+                return false;
+            set(id);
+            return true;
+        }
+
+        private void set(long id) {
+            int idx = (int) (id & (WINDOW - 1));
+            bits[idx >>> 6] |= 1L << idx;
+        }
+
+        private void clear(long id) {
+            int idx = (int) (id & (WINDOW - 1));
+            bits[idx >>> 6] &= ~(1L << idx);
+        }
+    }
+
+    /**
+     * Join listener's node into the mesh, reconnecting as configured by the listener's
+     * ServerConfig (reconnectDelay, maxReconnectDelay)
+     * @param listener the MessagingListener of this node
+     * @param poller the Poller whose thread manages the peers and runs the reconnect-timers
+     * @param nodeId the id of this node, unique within the mesh
+     */
+    public PeerManager(MessagingListener listener, Poller poller, long nodeId) {
+        this.listener = listener;
+        this.poller = poller;
+        this.nodeId = nodeId;
+        ServerConfig cfg = listener.getConfig();
+        this.minDelay = Math.max(1, cfg.getReconnectDelay());
+        this.maxDelay = Math.max(minDelay, cfg.getMaxReconnectDelay());
+        listener.setPeerManager(this);
+    }
+
+    /**
+     * Keep a connection to another node up (may be called from any thread)
+     * @param addr the address of the other node
+     */
+    public void addPeer(final SocketAddress addr) {
+        poller.execute(new Runnable() {
+            public void run() {
+                Peer p = new Peer(addr);
+                peers.add(p);
+                connect(p);
+            }
+        });
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the number of nodes this node is linked with
+     */
+    public int getLinkCount() {
+        return links.length;
+    }
+
+    private void connect(Peer p) {
+        try {
+            MessagingHandler mh = listener.connect(p.addr);
+            mh.setMeshLink();
+            p.handler = mh;
+            SharedBuffer hello = FrameCodec.hello(nodeId);
+            try {
+                mh.sendFrame(hello, null);
+            } finally {
+                hello.release();
+            }
+        } catch (IOException e) {
+            System.out.println("connecting to peer " + p.addr + " failed: " + e.getMessage());
+            retry(p);
+        }
+    }
+
+    private void retry(Peer p) {
+        long delay = p.delay + ThreadLocalRandom.current().nextLong(p.delay / 4 + 1);
+        p.delay = Math.min(p.delay * 2, maxDelay);
+        p.timer = poller.schedule(p, delay);
+    }
+
+    private Peer peerOf(MessagingHandler mh) {
+        for (Iterator<Peer> i = peers.iterator(); i.hasNext(); ) {
+            Peer p = i.next();
+            if (p.handler == mh)
+                return p;
+        }
+        return null;
+    }
+
+    /**
+     * A HELLO-frame arrived over mh (called by the handler's poller-thread)
+     */
+    void hello(final MessagingHandler mh, final long remoteId) {
+        mh.setMeshLink();
+        poller.execute(new Runnable() {
+            public void run() {
+                greeted(mh, remoteId);
+            }
+        });
+    }
+
+    private void greeted(MessagingHandler mh, long remoteId) {
+        if (greeted.containsKey(mh) || !mh.isOpen())
+            return;
+        Peer p = peerOf(mh);
+        if (remoteId == nodeId) {
+            System.out.println("closing link to myself" + (p != null ? " (peer " + p.addr + " is removed)" : ""));
+            if (p != null)
+                peers.remove(p);
+            mh.cleanup();
+            return;
+        }
+        if (p == null) {
+            // answer the connecting node
+            SharedBuffer hello = FrameCodec.hello(nodeId);
+            try {
+                mh.sendFrame(hello, null);
+            } finally {
+                hello.release();
+            }
+        } else {
+            p.remoteId = remoteId;
+            p.linked = true;
+            p.delay = minDelay;
+        }
+        greeted.put(mh, Long.valueOf(remoteId));
+        MessagingHandler existing = primary.get(Long.valueOf(remoteId));
+        if (existing == null) {
+            primary.put(Long.valueOf(remoteId), mh);
+            publishLinks();
+            return;
+        }
+        // linked twice: keep the link initiated by the lower node-id, the older one if both have the same initiator
+        long existingInitiator = peerOf(existing) != null ? nodeId : remoteId;
+        long newInitiator = p != null ? nodeId : remoteId;
+        MessagingHandler loser = mh;
+        if (newInitiator < existingInitiator) {
+            primary.put(Long.valueOf(remoteId), mh);
+            publishLinks();
+            loser = existing;
+        }
+        // the initiator closes the losing link, the other side just stops using it
+        if (peerOf(loser) != null)
+            loser.cleanup();
+    }
+
+    /**
+     * A connection of this node's listener closed (called by any thread)
+     */
+    void closed(final MessagingHandler mh) {
+        poller.execute(new Runnable() {
+            public void run() {
+                lost(mh);
+            }
+        });
+    }
+
+    private void lost(MessagingHandler mh) {
+        Long remoteId = greeted.remove(mh);
+        if (remoteId != null && primary.get(remoteId) == mh) {
+            primary.remove(remoteId);
+            // promote another link to the same node if there is one
+            for (Iterator<Map.Entry<MessagingHandler, Long>> i = greeted.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<MessagingHandler, Long> e = i.next();
+                if (e.getValue().equals(remoteId)) {
+                    primary.put(remoteId, e.getKey());
+                    break;
+                }
+            }
+            publishLinks();
+            if (!primary.containsKey(remoteId)) {
+                // the node isn't reachable anymore, bring up the peers having been covered by that link
+                for (Iterator<Peer> i = peers.iterator(); i.hasNext(); ) {
+                    Peer p = i.next();
+                    if (p.handler == null && p.timer == null && p.remoteId == remoteId.longValue())
+                        retry(p);
+                }
+            }
+        }
+        Peer p = peerOf(mh);
+        if (p == null)
+            return;
+        p.handler = null;
+        if (p.linked && primary.containsKey(Long.valueOf(p.remoteId))) {
+            // the node is linked through the other direction
+            p.delay = minDelay;
+            return;
+        }
+        if (p.linked) {
+            System.out.println("lost peer " + p.addr + ", reconnecting");
+            p.linked = false;
+        } else {
+            System.out.println("connecting to peer " + p.addr + " failed, retrying");
+        }
+        retry(p);
+    }
+
+    private void publishLinks() {
+        links = primary.values().toArray(NONE);
+    }
+
+    /**
+     * Relay a message sent or published by this node to all links
+     * @param type DATA or PUBLISH
+     * @param topic the topic of a PUBLISH or null
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     */
+    void originate(byte type, String topic, ByteBuffer msg) {
+        MessagingHandler[] l = links;
+        if (l.length == 0)
+            return;
+        SharedBuffer frame = FrameCodec.relay(nodeId, nextMessageId.getAndIncrement(), MAX_HOPS, type, topic, msg);
+        forward(frame, l, null);
+    }
+
+    /**
+     * A RELAY-frame arrived over mh: drop it if it has been seen before, otherwise relay it
+     * to all other links and deliver it to this node's recipients
+     * @param mh the connection the frame arrived on
+     * @param src the buffer holding the frame's body
+     * @param start the index of the frame's body within src
+     * @param len the length of the frame's body
+     * @return false if the message has been seen before
+     */
+    boolean relayed(MessagingHandler mh, ByteBuffer src, int start, int len) {
+        long origin = src.getLong(start);
+        if (origin == nodeId)
+            return false;
+        SeenWindow w = seen.get(Long.valueOf(origin));
+        if (w == null) {
+            w = new SeenWindow();
+            SeenWindow prev = seen.putIfAbsent(Long.valueOf(origin), w);
+            if (prev != null)
+                w = prev;
+        }
+        if (!w.firstTime(src.getLong(start + 8)))
+            return false;
+        int hops = src.get(start + 16) & 0xFF;
+        byte type = src.get(start + 17);
+        ByteBuffer body = src.duplicate();
+        body.limit(start + len).position(start + FrameCodec.RELAY_HEADER_SIZE);
+        MessagingHandler[] l = links;
+        if (hops > 0 && (l.length > 1 || (l.length == 1 && l[0] != mh))) {
+            SharedBuffer frame = FrameCodec.relay(origin, src.getLong(start + 8), hops - 1, type, null, body);
+            forward(frame, l, mh);
+        }
+        listener.deliver(type, body);
+        return true;
+    }
+
+    private void forward(SharedBuffer frame, MessagingHandler[] l, MessagingHandler except) {
+        frame = FrameCodec.compress(frame, listener.getConfig().getCompressThreshold());
+        try {
+            for (int i = 0; i < l.length; i++) {
+                if (l[i] != except)
+                    l[i].sendFrame(frame, null);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+}
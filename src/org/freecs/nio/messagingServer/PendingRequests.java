@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * PendingRequests holds the requests sent through the connections of one Poller which
+ * are still waiting for their reply. It is only ever touched by that poller's thread, so
+ * neither the map nor the correlation-id counter need any synchronization.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import org.freecs.nio.core.LongHashMap;
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ScheduledTask;
+import org.freecs.nio.core.SharedBuffer;
+
+class PendingRequests {
+    private final Poller poller;
+    private final LongHashMap<Pending> pending = new LongHashMap<Pending>(1024);
+    private long nextId = 1;
+
+    private static class Pending implements Runnable {
+        final PendingRequests owner;
+        final long id;
+        final MessagingHandler mh;
+        final CompletableFuture<ByteBuffer> future;
+        ScheduledTask timeout;
+
+        Pending(PendingRequests owner, long id, MessagingHandler mh, CompletableFuture<ByteBuffer> future) {
+            this.owner = owner;
+            this.id = id;
+            this.mh = mh;
+            this.future = future;
+        }
+
+        /**
+         * The timeout elapsed
+         */
+        public void run() {
+            if (owner.pending.remove(id) != null)
+                future.completeExceptionally(new TimeoutException("No reply within time"));
+        }
+    }
+
+    PendingRequests(Poller poller) {
+        this.poller = poller;
+    }
+
+    /**
+     * Send a request (on the poller's thread)
+     * @param mh the connection to send the request through
+     * @param frame the encoded (uncompressed) REQUEST-frame, it's correlation-id gets filled in here,
+     * then it gets compressed as configured. The frame is released.
+     * @param timeoutMillis the time to wait for the reply
+     * @param future the future to complete with the reply
+     */
+    void send(MessagingHandler mh, SharedBuffer frame, long timeoutMillis, CompletableFuture<ByteBuffer> future) {
+        long id = nextId++;
+        ByteBuffer b = frame.buffer();
+        try {
+            b.putLong(FrameCodec.bodyOffset(b), id);
+        } catch (ProtocolException pe) {
+            frame.release();
+            throw new IllegalArgumentException("Not a REQUEST-frame");
+        }
+        frame = FrameCodec.compress(frame, mh.getCompressThreshold());
+        Pending p = new Pending(this, id, mh, future);
+        pending.put(id, p);
+        try {
+            if (!mh.sendFrame(frame, null)) {
+                pending.remove(id);
+                future.completeExceptionally(new IOException("Request dropped, connection closed or overloaded"));
+                return;
+            }
+        } finally {
+            frame.release();
+        }
+        p.timeout = poller.schedule(p, timeoutMillis);
+    }
+
+    /**
+     * A reply arrived (on the poller's thread)
+     * @param id the correlation-id
+     * @param status FrameCodec.REPLY_OK or REPLY_ERROR
+     * @param msg a view of the reply, only valid during this call
+     */
+    void reply(long id, byte status, ByteBuffer msg) {
+        Pending p = pending.remove(id);
+        if (p == null)
+            return; // timed out already
+        if (p.timeout != null)
+            p.timeout.cancel();
+        if (status == FrameCodec.REPLY_OK) {
+            ByteBuffer copy = ByteBuffer.allocate(msg.remaining());
+            copy.put(msg.duplicate()).flip();
+            p.future.complete(copy);
+        } else {
+            p.future.completeExceptionally(new IOException(FrameCodec.string(msg, msg.position(), msg.remaining())));
+        }
+    }
+
+    /**
+     * Fail all requests sent through a closed connection (on the poller's thread)
+     */
+    void closed(MessagingHandler mh) {
+        if (pending.isEmpty())
+            return;
+        long[] ids = pending.keys();
+        for (int i = 0; i < ids.length; i++) {
+            Pending p = pending.get(ids[i]);
+            if (p.mh != mh)
+                continue;
+            pending.remove(ids[i]);
+            if (p.timeout != null)
+                p.timeout.cancel();
+            p.future.completeExceptionally(new IOException("Connection closed"));
+        }
+    }
+}
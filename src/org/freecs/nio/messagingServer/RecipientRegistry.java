@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * RecipientRegistry holds the connected MessagingHandlers of one MessagingListener.
+ * Handlers are spread over stripes by their hashCode, every stripe being a copy-on-write
+ * array swapped in by compare-and-set. Adding and removing copies one stripe only and
+ * never blocks; senders iterate the current arrays of all stripes without copying or locking.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class RecipientRegistry {
+    private final AtomicReferenceArray<MessagingHandler[]> stripes;
+    private final int mask;
+
+    /**
+     * @param stripeCount the number of stripes (rounded up to a power of two)
+     */
+    RecipientRegistry(int stripeCount) {
+        int n = 1;
+        while (n < stripeCount)
+            n <<= 1;
+        stripes = new AtomicReferenceArray<MessagingHandler[]>(n);
+        for (int i = 0; i < n; i++)
+            stripes.set(i, TopicIndex.NONE);
+        mask = n - 1;
+    }
+
+    /**
+     * Add a handler
+     * @return false if the handler has already been added
+     */
+    boolean add(MessagingHandler mh) {
+        int s = mh.hashCode() & mask;
+        for (;;) {
+            MessagingHandler[] cur = stripes.get(s);
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] == mh)
+                    return false;
+            }
+            MessagingHandler[] next = new MessagingHandler[cur.length + 1];
+            System.arraycopy(cur, 0, next, 0, cur.length);
+            next[cur.length] = mh;
+            if (stripes.compareAndSet(s, cur, next))
+                return true;
+        }
+    }
+
+    /**
+     * Remove a handler
+     * @return false if the handler hasn't been added
+     */
+    boolean remove(MessagingHandler mh) {
+        int s = mh.hashCode() & mask;
+        for (;;) {
+            MessagingHandler[] cur = stripes.get(s);
+            int idx = -1;
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] == mh) {
+                    idx = i;
+                    break;
+                }
+            }
+            if (idx < 0)
+                return false;
+            MessagingHandler[] next = TopicIndex.NONE;
+            if (cur.length > 1) {
+                next = new MessagingHandler[cur.length - 1];
+                System.arraycopy(cur, 0, next, 0, idx);
+                System.arraycopy(cur, idx + 1, next, idx, cur.length - idx - 1);
+            }
+            if (stripes.compareAndSet(s, cur, next))
+                return true;
+        }
+    }
+
+    int stripeCount() {
+        return stripes.length();
+    }
+
+    /**
+     * Returns the current handlers of one stripe. The array must not be modified.
+     */
+    MessagingHandler[] stripe(int s) {
+        return stripes.get(s);
+    }
+
+    int size() {
+        int size = 0;
+        for (int s = 0; s < stripes.length(); s++)
+            size += stripes.get(s).length;
+        return size;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * SendQueue holds the frames waiting to be written to one connection. It is bounded by
+ * bytes and by number of frames; what happens to a frame exceeding the bounds is decided by
+ * the OverflowPolicy. Crossing the high-watermark (and dropping below the low-watermark
+ * again) is reported back, so publishers can be told to back off.
+ *
+ * Replay-frames (regions of the MessageLog) count against the watermarks but never overflow
+ * the queue, they don't take any memory. They are transferred from the file straight to the socket.
+ *
+ * With batching enabled small frames are copied into one contiguous batch-buffer instead of
+ * being queued one by one. The batch gets queued (sealed) once the next frame doesn't fit
+ * anymore or when the owner calls flushBatch, which it does at the end of the batch-window.
+ *
+ * All methods synchronize on the SendQueue; offer is called by any publishing thread,
+ * write by the poller.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.freecs.nio.core.BufferPool;
+import org.freecs.nio.core.OverflowPolicy;
+import org.freecs.nio.core.SharedBuffer;
+
+class SendQueue {
+    // results of offer (the flags may be or'ed to QUEUED)
+    static final int QUEUED = 0;
+    static final int DROPPED = 1;
+    static final int OVERFLOW = 2;
+    static final int CLOSED = 3;
+    static final int STATUS = 3;
+    static final int HIGH_WATERMARK = 4;
+    /** the frame went into the open batch, nothing new to write yet */
+    static final int BATCHED = 8;
+    /** the frame opened a new batch, flushBatch has to be called at the end of the batch-window */
+    static final int BATCH_STARTED = 16;
+    // results of write
+    static final int PENDING = 0;
+    static final int FLUSHED = 1;
+    static final int LOW_WATERMARK = 2;
+
+    private final LinkedList<OutboundFrame> frames = new LinkedList<OutboundFrame>();
+    private final ByteBuffer[] writeArr = new ByteBuffer[64];
+    private final long maxBytes;
+    private final int maxFrames;
+    private final OverflowPolicy policy;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final Map<Object, OutboundFrame> byKey;
+    private long queuedBytes = 0;
+    private long dropped = 0;
+    private boolean aboveHigh = false;
+    private boolean closed = false;
+    private int batchSize = 0;
+    private SharedBuffer batch = null;
+
+    /**
+     * @param maxBytes the maximum number of bytes queued (0 for unbounded)
+     * @param maxFrames the maximum number of frames queued (0 for unbounded)
+     * @param policy what to do with frames exceeding the bounds
+     * @param highWatermark report HIGH_WATERMARK when the queued bytes reach this (0 for never)
+     * @param lowWatermark report LOW_WATERMARK when the queued bytes drop to this after reaching highWatermark
+     */
+    SendQueue(long maxBytes, int maxFrames, OverflowPolicy policy, long highWatermark, long lowWatermark) {
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.policy = policy;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.byKey = policy == OverflowPolicy.CONFLATE ? new HashMap<Object, OutboundFrame>() : null;
+    }
+
+    /**
+     * Enable batching of frames up to the given size
+     * @param bytes the size of the batch-buffer (0 to disable batching)
+     */
+    synchronized void setBatchSize(int bytes) {
+        seal();
+        this.batchSize = bytes;
+    }
+
+    /**
+     * Queue a frame. If it doesn't get queued it's SharedBuffer gets released.
+     * @return QUEUED (possibly or'ed with HIGH_WATERMARK if the queue just crossed it and the
+     * batching-flags), DROPPED, OVERFLOW if the connection should be closed or CLOSED
+     */
+    synchronized int offer(OutboundFrame f) {
+        if (closed) {
+            f.release();
+            return CLOSED;
+        }
+        if (byKey != null && f.key != null) {
+            OutboundFrame queued = byKey.get(f.key);
+            if (queued != null && !queued.started()) {
+                // the newer message replaces the older one in place
+                int grown = f.size - queued.size;
+                if (!fitsBytes(grown)) {
+                    f.release();
+                    dropped++;
+                    return DROPPED;
+                }
+                queuedBytes += grown;
+                queued.replace(f);
+                return crossedHigh() ? QUEUED | HIGH_WATERMARK : QUEUED;
+            }
+        }
+        if (f.segment == null && !fits(f.size)) {
+            switch (policy) {
+            case DISCONNECT:
+                f.release();
+                return OVERFLOW;
+            case DROP_OLDEST:
+                for (Iterator<OutboundFrame> i = frames.iterator(); i.hasNext() && !fits(f.size); ) {
+                    OutboundFrame old = i.next();
+                    if (old.started())
+                        continue;
+                    i.remove();
+                    removed(old);
+                    dropped++;
+                }
+                if (fits(f.size))
+                    break;
+                f.release(); // the frame alone exceeds the bounds
+                dropped++;
+                return DROPPED;
+            default:
+                f.release();
+                dropped++;
+                return DROPPED;
+            }
+        }
+        int result = QUEUED;
+        if (f.segment == null && f.size <= batchSize) {
+            result = append(f);
+        } else {
+            seal(); // keep the order
+            frames.add(f);
+            if (byKey != null && f.key != null)
+                byKey.put(f.key, f);
+        }
+        queuedBytes += f.size;
+        if (crossedHigh())
+            result |= HIGH_WATERMARK;
+        return result;
+    }
+
+    /**
+     * Returns true if the queue just crossed the high-watermark
+     */
+    private boolean crossedHigh() {
+        if (aboveHigh || highWatermark <= 0 || queuedBytes < highWatermark)
+            return false;
+        aboveHigh = true;
+        return true;
+    }
+
+    /**
+     * Copy a frame into the open batch (sealing it first if the frame doesn't fit anymore)
+     */
+    private int append(OutboundFrame f) {
+        int result = BATCHED;
+        if (batch != null && batch.buffer().remaining() < f.size) {
+            seal();
+            result = QUEUED;
+        }
+        if (batch == null) {
+            batch = new SharedBuffer(BufferPool.instance, batchSize);
+            result |= BATCH_STARTED;
+        }
+        ByteBuffer b = batch.buffer();
+        if (f.header != null)
+            b.put(f.header.duplicate());
+        b.put(f.data.duplicate());
+        f.release();
+        return result;
+    }
+
+    /**
+     * Queue the open batch (it's bytes have been counted when they were appended)
+     */
+    private void seal() {
+        if (batch == null)
+            return;
+        ByteBuffer b = batch.buffer();
+        b.flip();
+        frames.add(new OutboundFrame(null, b.duplicate(), batch, null));
+        batch = null;
+    }
+
+    /**
+     * Queue the open batch, called at the end of the batch-window
+     * @return true if there has been an open batch (which has to be written now)
+     */
+    synchronized boolean flushBatch() {
+        if (batch == null)
+            return false;
+        seal();
+        return true;
+    }
+
+    private boolean fits(int size) {
+        return fitsBytes(size)
+                && (maxFrames <= 0 || frames.size() + (batch == null ? 0 : 1) < maxFrames);
+    }
+
+    private boolean fitsBytes(int size) {
+        return maxBytes <= 0 || queuedBytes + size <= maxBytes;
+    }
+
+    private void removed(OutboundFrame f) {
+        queuedBytes -= f.size;
+        if (byKey != null && f.key != null && byKey.get(f.key) == f)
+            byKey.remove(f.key);
+        f.release();
+    }
+
+    /**
+     * Write as much as the channel takes using gathering writes. OP_WRITE gets unset
+     * (while still holding the lock, so a concurrent offer can't get lost) once everything
+     * has been written.
+     * @param ch the connection's SocketChannel (or the TlsChannel wrapping it), both are gathering
+     * @param sk the connection's SelectionKey
+     * @return PENDING or FLUSHED, possibly or'ed with LOW_WATERMARK if the queue just dropped below it
+     */
+    synchronized int write(ByteChannel ch, SelectionKey sk) throws IOException {
+        GatheringByteChannel sc = (GatheringByteChannel) ch;
+        int result = PENDING;
+        while (!frames.isEmpty()) {
+            OutboundFrame head = frames.getFirst();
+            if (head.segment != null) {
+                head.transferTo(sc);
+                if (head.remaining() > 0)
+                    break; // the socket's send-buffer is full
+                removed(frames.removeFirst());
+                continue;
+            }
+            int n = 0;
+            long pending = 0;
+            for (Iterator<OutboundFrame> i = frames.iterator(); i.hasNext() && n < writeArr.length - 1; ) {
+                OutboundFrame f = i.next();
+                if (f.segment != null)
+                    break; // written by transferTo
+                if (f.header != null && f.header.hasRemaining())
+                    writeArr[n++] = f.header;
+                writeArr[n++] = f.data;
+                pending += f.remaining();
+            }
+            long written;
+            try {
+                written = sc.write(writeArr, 0, n);
+            } finally {
+                Arrays.fill(writeArr, 0, n, null);
+            }
+            while (!frames.isEmpty() && frames.getFirst().remaining() == 0) {
+                removed(frames.removeFirst());
+            }
+            if (written < pending)
+                break; // the socket's send-buffer is full
+        }
+        if (frames.isEmpty()) {
+            sk.interestOps(sk.interestOps() & ~SelectionKey.OP_WRITE);
+            result = FLUSHED;
+        }
+        if (aboveHigh && queuedBytes <= lowWatermark) {
+            aboveHigh = false;
+            result |= LOW_WATERMARK;
+        }
+        return result;
+    }
+
+    /**
+     * Release all queued frames and refuse any further ones
+     */
+    synchronized void close() {
+        closed = true;
+        if (batch != null) {
+            batch.release();
+            batch = null;
+        }
+        while (!frames.isEmpty()) {
+            removed(frames.removeFirst());
+        }
+    }
+
+    /**
+     * Returns true if neither a frame nor an open batch is waiting
+     */
+    synchronized boolean isEmpty() {
+        return frames.isEmpty() && batch == null;
+    }
+
+    /**
+     * Returns true if the queue hasn't crossed the high-watermark (or has dropped below the low-watermark again)
+     */
+    synchronized boolean isWritable() {
+        return !aboveHigh;
+    }
+
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    synchronized int getQueuedFrames() {
+        return frames.size();
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -15,26 +15,32 @@
  */
 
 /**
- * A implementation to test the messaging-service
+ * A implementation to test the messaging-service. Nodes given with -connectTo form a mesh
+ * with this node (see PeerManager), so several nodes on localhost connecting to each other
+ * exchange every message sent or published by any of them.
  */
 package org.freecs.nio.messagingServer;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
-import java.nio.channels.SelectionKey;
+import java.net.SocketAddress;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.freecs.nio.core.HandlerWatchdog;
+import org.freecs.nio.core.MultithreadedPoller;
 import org.freecs.nio.core.Poller;
-import org.freecs.nio.interfaces.IPoller;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
 
 public class Server {
 
-    static InetSocketAddress connectTo = null;
-    static int port = 1976;
+    static List<SocketAddress> connectTo = new ArrayList<SocketAddress>();
+    static long nodeId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    static MessagingListener listener = null;
+    static PeerManager peers = null;
     
     /**
      * @param args
@@ -42,39 +48,52 @@ public class Server {
     public static void main(String[] args) {
         if (args.length < 2) {
             System.out.println("Arguments:");
-            System.out.println("-connectTo=ip:port (an optional address to connect to");
+            System.out.println("-connectTo=ip:port|unix:/path[,...] (optional nodes to keep connected to)");
+            System.out.println("-nodeId=n (the id of this node within the mesh, random by default)");
             System.out.println("-port=port (the port to listen on)");
+            System.out.println("-config=file and/or -key=value for any other ServerConfig-setting (e.g. -bind=127.0.0.1:1976)");
         }
-        for (int i = 0; i < args.length; i++) {
-            if (args[i].startsWith("-connectTo=")) {
-                String[] parts = args[i].substring(11).split(":");
-                connectTo = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
-            } else if (args[i].startsWith("-port=")) {
-                port = Integer.parseInt(args[i].substring(6));
-            } else {
-                System.out.println("Unknown argument " + args[i]);
-                System.exit(1);
+        ServerConfig.Builder b = ServerConfig.builder(1976).pollerThreads(1);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].startsWith("-connectTo=")) {
+                    String[] addrs = args[i].substring(11).split(",");
+                    for (int j = 0; j < addrs.length; j++) {
+                        connectTo.add(ServerConfig.parseAddress(addrs[j].trim()));
+                    }
+                } else if (args[i].startsWith("-nodeId=")) {
+                    nodeId = Long.parseLong(args[i].substring(8));
+                } else {
+                    b.arg(args[i]);
+                }
             }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
         }
         try {
-            IPoller p = new Poller();
+            ServerConfig cfg = b.build();
+            MultithreadedPoller p = new MultithreadedPoller(cfg);
             IMessageReceiver mr = new TestCallback();
-            for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements(); ) {
-                NetworkInterface ni = e.nextElement();
-                for (Enumeration<InetAddress> ee = ni.getInetAddresses(); ee.hasMoreElements(); ) {
-                    ServerSocketChannel ssc = ServerSocketChannel.open();
-                    ssc.configureBlocking(false);
-                    ssc.socket().bind(new InetSocketAddress(ee.nextElement(), port));
-                    p.addListeningHandler(new MessagingListener(p, mr), ssc);
-                }
+            listener = new MessagingListener(p, mr, cfg);
+            if (cfg.getLogDirectory() != null)
+                listener.setMessageLog(new MessageLog(cfg));
+            listener.setTlsContext(TlsContext.load(cfg));
+            for (Iterator<ServerSocketChannel> i = cfg.openServerChannels().iterator(); i.hasNext(); ) {
+                p.addListeningHandler(listener, i.next());
             }
             p.startPoller();
-            if (connectTo != null) {
-                SocketChannel sc = SocketChannel.open();
-                sc.configureBlocking(false);
-                MessagingHandler mh = new MessagingHandler(10240, mr, SelectionKey.OP_CONNECT);
-                p.addHandler(mh, sc);
-                sc.connect(connectTo);
+            HandlerWatchdog hw = new HandlerWatchdog(100);
+            p.watch(hw);
+            hw.start();
+            Poller pp = new Poller();
+            pp.startPoller();
+            peers = new PeerManager(listener, pp, nodeId);
+            for (Iterator<SocketAddress> i = connectTo.iterator(); i.hasNext(); ) {
+                peers.addPeer(i.next());
             }
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -83,9 +102,11 @@ public class Server {
         } catch (Exception e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+            System.exit(1);
         }
-        while(true) {
-            MessagingListener.sendMessage("Random message " + Math.random());
+        for (int n = 0; ; n++) {
+            listener.sendMessage("Random message " + Math.random() + " from node " + nodeId);
+            listener.publish("random/" + (n % 3), "Random topic-message " + n + " from node " + nodeId);
             try {
                 Thread.sleep(1000 + ((long) Math.random() * 1000));
             } catch (InterruptedException e) {
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * SharedMemoryRing is a single-producer/single-consumer ring-buffer within a memory-mapped
+ * file, so the producer and the consumer may live in different processes of the same host.
+ *
+ * The file starts with a header: the magic number, the capacity of the data-area, a closed-flag and
+ * the session (shared by the two rings of a transport) on the first cache-line, the producer's write-position and the consumer's read-position on one
+ * cache-line each, so the two sides don't invalidate each other's line on every update. Positions
+ * only grow, the offset within the data-area is the position modulo the capacity (a power of two).
+ *
+ * A record is the message's length as int followed by the message, padded to 8 bytes. A record not
+ * fitting before the end of the data-area is preceded by a padding-marker and written at the start.
+ * The producer publishes records by storing the write-position with release-semantics, the consumer
+ * frees them by storing the read-position the same way; each side reads the other's position with
+ * acquire-semantics, so the records' bytes are visible once the position is.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class SharedMemoryRing {
+    private static final int MAGIC = 0x4e494f52; // NIOR
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CLOSED_OFFSET = 8;
+    private static final int SESSION_OFFSET = 16;
+    private static final int WRITE_OFFSET = 64;
+    private static final int READ_OFFSET = 128;
+    static final int HEADER_SIZE = 192;
+    private static final int PADDING = -1;
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final long session;
+    private final MappedByteBuffer map;
+    private final ByteBuffer data;
+    private final ByteBuffer view;
+    private final int capacity;
+    private final int mask;
+    private long writePos;      // producer: the next record's position
+    private long readPosCache;  // producer: the consumer's read-position as seen last
+    private long readPos;       // consumer: the next record's position
+
+    private SharedMemoryRing(File file, MappedByteBuffer map) throws IOException {
+        map.order(ByteOrder.nativeOrder());
+        if (map.getInt(0) != MAGIC)
+            throw new IOException("Not a ring-buffer");
+        this.file = file;
+        this.session = map.getLong(SESSION_OFFSET);
+        this.map = map;
+        this.capacity = map.getInt(CAPACITY_OFFSET);
+        this.mask = capacity - 1;
+        this.data = map.slice(HEADER_SIZE, capacity).order(ByteOrder.nativeOrder());
+        this.view = data.asReadOnlyBuffer();
+        this.writePos = (long) LONG.getAcquire(map, WRITE_OFFSET);
+        this.readPos = (long) LONG.getAcquire(map, READ_OFFSET);
+        this.readPosCache = readPos;
+    }
+
+    /**
+     * Create an empty ring. It's written to a temporary file first which then replaces file,
+     * so a peer opening file never sees a half-initialized header.
+     * @param capacity the size of the data-area, rounded up to a power of two
+     * @param session the session of the transport the ring belongs to (not 0)
+     */
+    static SharedMemoryRing create(File file, int capacity, long session) throws IOException {
+        capacity = Integer.highestOneBit(Math.max(capacity - 1, 64)) << 1;
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        MappedByteBuffer map;
+        try {
+            raf.setLength(0); // a left-over gets zeroed
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        } finally {
+            raf.close();
+        }
+        map.order(ByteOrder.nativeOrder());
+        map.putInt(CAPACITY_OFFSET, capacity);
+        map.putLong(SESSION_OFFSET, session);
+        map.putInt(0, MAGIC);
+        map.force();
+        if (!tmp.renameTo(file))
+            throw new IOException("Unable to create " + file);
+        return new SharedMemoryRing(file, map);
+    }
+
+    /**
+     * Open a ring created by the peer
+     */
+    static SharedMemoryRing open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return new SharedMemoryRing(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the session of the ring at file without mapping it, 0 if there is no ring or it
+     * has been closed already
+     */
+    static long sessionOf(File file) {
+        ByteBuffer header = ByteBuffer.allocate(SESSION_OFFSET + 8).order(ByteOrder.nativeOrder());
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.getChannel().read(header, 0);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return 0; // not there (yet)
+        }
+        if (header.position() < header.capacity() || header.getInt(0) != MAGIC || header.getInt(CLOSED_OFFSET) != 0)
+            return 0;
+        return header.getLong(SESSION_OFFSET);
+    }
+
+    long session() {
+        return session;
+    }
+
+    /**
+     * Returns true if file has been replaced by another ring (or removed) since this one got mapped
+     */
+    boolean isReplaced() {
+        return sessionOf(file) != session && !isClosed();
+    }
+
+    /**
+     * Returns the size of the largest message fitting. A record wrapping around the end
+     * of the ring costs the padding up to the end too, half of the ring keeps padding
+     * and record within the capacity wherever the write-index is.
+     */
+    int maxMessageSize() {
+        return capacity / 2 - 4;
+    }
+
+    /**
+     * Append a message (producer only)
+     * @param msg the message (the bytes between position and limit, which stay untouched)
+     * @return false if there isn't enough room right now
+     */
+    boolean offer(ByteBuffer msg) {
+        int len = msg.remaining();
+        int recLen = (len + 4 + 7) & ~7;
+        int idx = (int) (writePos & mask);
+        int skip = capacity - idx < recLen ? capacity - idx : 0;
+        long end = writePos + skip + recLen;
+        if (end - readPosCache > capacity) {
+            readPosCache = (long) LONG.getAcquire(map, READ_OFFSET);
+            if (end - readPosCache > capacity)
+                return false;
+        }
+        if (skip > 0) {
+            data.putInt(idx, PADDING);
+            idx = 0;
+        }
+        data.putInt(idx, len);
+        data.put(idx + 4, msg, msg.position(), len);
+        writePos = end;
+        LONG.setRelease(map, WRITE_OFFSET, end);
+        return true;
+    }
+
+    /**
+     * Hand the published messages to imr (consumer only). The room they take is given back
+     * to the producer after the last one has been handed over.
+     * @param imr the callback getting a read-only view of each message within the ring
+     * @param max the number of messages handed over at most
+     * @return the number of messages handed over
+     */
+    int poll(IBinaryMessageReceiver imr, int max) {
+        long end = (long) LONG.getAcquire(map, WRITE_OFFSET);
+        int n = 0;
+        long pos = readPos;
+        while (pos < end && n < max) {
+            int idx = (int) (pos & mask);
+            int len = data.getInt(idx);
+            if (len == PADDING) {
+                pos += capacity - idx;
+                continue;
+            }
+            view.clear();
+            view.position(idx + 4).limit(idx + 4 + len);
+            imr.receive(view);
+            pos += (len + 4 + 7) & ~7;
+            n++;
+        }
+        if (pos != readPos) {
+            readPos = pos;
+            LONG.setRelease(map, READ_OFFSET, pos);
+        }
+        return n;
+    }
+
+    /**
+     * Returns true if the consumer has taken all published messages
+     */
+    boolean isEmpty() {
+        return (long) LONG.getAcquire(map, READ_OFFSET) == (long) LONG.getAcquire(map, WRITE_OFFSET);
+    }
+
+    /**
+     * Tell the consumer no more messages will follow
+     */
+    void close() {
+        INT.setRelease(map, CLOSED_OFFSET, 1);
+    }
+
+    boolean isClosed() {
+        return (int) INT.getAcquire(map, CLOSED_OFFSET) != 0;
+    }
+}
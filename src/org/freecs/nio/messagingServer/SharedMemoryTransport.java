@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * SharedMemoryTransport connects two messaging-peers on the same host through shared memory
+ * instead of a socket: each direction is a SharedMemoryRing within a memory-mapped file of a
+ * directory both peers know. One peer creates the rings (ab.ring written by it, ba.ring read by it),
+ * the other attaches to them. Sending a message copies it into the ring, no system-call is involved.
+ *
+ * Both rings carry the session of the transport created them. Rings left over from an earlier
+ * transport are removed by create before the new ones get written; attach only takes two rings
+ * of the same session that aren't closed yet. A reader finding the rings it maps replaced (it's
+ * peer created a new transport meanwhile) closes the transport instead of polling orphans.
+ *
+ * Arriving messages are handed to the receiver by the transport's own thread. Since a peer in
+ * another process can't wake it, it polls: it spins for a while after the last message, then
+ * yields, then parks for parkNanos between polls. A busy link so costs one core while idle ones
+ * sleep, setIdleStrategy trades latency against cpu for links that are idle in between.
+ *
+ * The receivers are the ones of MessagingHandler; messages are plain messages only (no topics,
+ * requests or compression). Closing either side ends the other side's thread once it has
+ * received everything sent before.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+public class SharedMemoryTransport implements Runnable {
+    static final String CREATOR_RING = "ab.ring";
+    static final String ATTACHER_RING = "ba.ring";
+    private static final int BATCH = 64;
+    // nanoseconds between checks whether the rings have been replaced while idle
+    private static final long CHECK_INTERVAL = 100000000L;
+
+    private final SharedMemoryRing out;
+    private final SharedMemoryRing in;
+    private final IBinaryMessageReceiver callback;
+    private final Thread reader;
+    private volatile int spins = 10000;
+    private volatile int yields = 100;
+    private volatile long parkNanos = 50000;
+    private volatile boolean closed = false;
+
+    private SharedMemoryTransport(SharedMemoryRing out, SharedMemoryRing in, IBinaryMessageReceiver imr, String name) {
+        this.out = out;
+        this.in = in;
+        this.callback = imr;
+        this.reader = new Thread(this, "shm-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Create the rings within dir (replacing those of an earlier transport) for the peer to attach to
+     * @param dir the directory shared with the peer
+     * @param capacity the size of each ring (rounded up to a power of two)
+     * @param imr the callback called for every arrived message
+     */
+    public static SharedMemoryTransport createText(File dir, int capacity, IMessageReceiver imr) throws IOException {
+        return create(dir, capacity, new StringMessageReceiver(imr));
+    }
+
+    /**
+     * Create the rings within dir (replacing those of an earlier transport) for the peer to attach to
+     * @param dir the directory shared with the peer
+     * @param capacity the size of each ring (rounded up to a power of two)
+     * @param imr the callback called for every arrived message with a read-only view of the ring
+     */
+    public static SharedMemoryTransport create(File dir, int capacity, IBinaryMessageReceiver imr) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create directory " + dir);
+        File inFile = new File(dir, ATTACHER_RING), outFile = new File(dir, CREATOR_RING);
+        // an attacher must not take the rings of an earlier transport for the new ones
+        if ((outFile.exists() && !outFile.delete()) || (inFile.exists() && !inFile.delete()))
+            throw new IOException("Unable to remove the rings of an earlier transport within " + dir);
+        long session;
+        do {
+            session = ThreadLocalRandom.current().nextLong();
+        } while (session == 0);
+        SharedMemoryRing in = SharedMemoryRing.create(inFile, capacity, session);
+        SharedMemoryRing out = SharedMemoryRing.create(outFile, capacity, session);
+        return new SharedMemoryTransport(out, in, imr, dir.getName());
+    }
+
+    /**
+     * Attach to the rings the peer created within dir
+     * @param dir the directory shared with the peer
+     * @param imr the callback called for every arrived message
+     * @param timeoutMillis the time to wait for the peer to create the rings
+     */
+    public static SharedMemoryTransport attachText(File dir, IMessageReceiver imr, long timeoutMillis) throws IOException {
+        return attach(dir, new StringMessageReceiver(imr), timeoutMillis);
+    }
+
+    /**
+     * Attach to the rings the peer created within dir, waiting while there are none or only
+     * closed ones or ones of different sessions (left over from earlier transports)
+     * @param dir the directory shared with the peer
+     * @param imr the callback called for every arrived message with a read-only view of the ring
+     * @param timeoutMillis the time to wait for the peer to create the rings
+     */
+    public static SharedMemoryTransport attach(File dir, IBinaryMessageReceiver imr, long timeoutMillis) throws IOException {
+        File outFile = new File(dir, ATTACHER_RING), inFile = new File(dir, CREATOR_RING);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            // the creator renames ab.ring into place last
+            long session = SharedMemoryRing.sessionOf(inFile);
+            if (session != 0 && SharedMemoryRing.sessionOf(outFile) == session) {
+                SharedMemoryRing out = SharedMemoryRing.open(outFile), in = SharedMemoryRing.open(inFile);
+                if (out.session() == session && in.session() == session)
+                    return new SharedMemoryTransport(out, in, imr, dir.getName());
+                // replaced in between, look again
+            }
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("No open rings of one session within " + dir);
+            LockSupport.parkNanos(1000000);
+        }
+    }
+
+    /**
+     * Set how the reader waits for messages after the last one arrived
+     * @param spins the number of polls busy-spinning
+     * @param yields the number of polls yielding the cpu after that
+     * @param parkNanos the time to park between the polls after that
+     */
+    public void setIdleStrategy(int spins, int yields, long parkNanos) {
+        this.spins = spins;
+        this.yields = yields;
+        this.parkNanos = parkNanos;
+    }
+
+    /**
+     * Send a message to the peer
+     * @param bytes The message to write out
+     * @return false if the transport is closed
+     */
+    public boolean sendMessage(byte[] bytes) {
+        return sendMessage(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Send a message to the peer, waiting (spinning, then parking) while the ring is full.
+     * The message is copied into the ring, msg's position and limit stay untouched.
+     * Messages may take half of the ring's capacity at most (minus 4 bytes).
+     * @param msg The message to write out
+     * @return false if the transport is closed
+     */
+    public boolean sendMessage(ByteBuffer msg) {
+        if (msg.remaining() > out.maxMessageSize())
+            throw new IllegalArgumentException("Message of " + msg.remaining() + " bytes doesn't fit into the ring");
+        synchronized (out) { // single producer
+            int idle = 0;
+            while (!out.offer(msg)) {
+                if (closed || out.isClosed())
+                    return false;
+                idle(idle++);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Poll the inbound ring until either side has been closed, the rings have been replaced
+     * or the callback failed
+     */
+    public void run() {
+        int idle = 0;
+        long nextCheck = System.nanoTime() + CHECK_INTERVAL;
+        try {
+            while (!closed) {
+                if (in.poll(callback, BATCH) > 0) {
+                    idle = 0;
+                } else if (in.isClosed() && in.isEmpty()) {
+                    break;
+                } else if (idle > spins + yields && System.nanoTime() - nextCheck > 0) {
+                    if (in.isReplaced() || out.isReplaced()) {
+                        System.out.println(reader.getName() + ": the rings have been replaced, closing the transport");
+                        break;
+                    }
+                    nextCheck = System.nanoTime() + CHECK_INTERVAL;
+                } else {
+                    idle(idle++);
+                }
+            }
+        } finally {
+            close(); // a peer waiting for room must not wait forever
+        }
+    }
+
+    private void idle(int n) {
+        if (n < spins)
+            Thread.onSpinWait();
+        else if (n < spins + yields)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(parkNanos);
+    }
+
+    /**
+     * Close the transport: the peer receives what has been sent so far and then stops too
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        synchronized (out) {
+            out.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
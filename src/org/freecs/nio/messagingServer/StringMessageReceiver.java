@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Adapter decoding binary messages as UTF-8 for an IMessageReceiver
+ */
+package org.freecs.nio.messagingServer;
+
+import java.nio.ByteBuffer;
+
+class StringMessageReceiver implements IBinaryMessageReceiver {
+    private final IMessageReceiver imr;
+
+    StringMessageReceiver(IMessageReceiver imr) {
+        this.imr = imr;
+    }
+
+    public void receive(ByteBuffer msg) {
+        byte[] bytes = new byte[msg.remaining()];
+        msg.get(bytes);
+        imr.receive(new String(bytes, MessagingHandler.characterset));
+    }
+}
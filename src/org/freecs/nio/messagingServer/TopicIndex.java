@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * TopicIndex maps topic-patterns to the MessagingHandlers subscribed to them.
+ * Topics are '/' separated levels, patterns may contain the wildcards '+' (exactly one level)
+ * and '#' (any number of levels, only as last level), e.g. "chat/+/messages" or "chat/#".
+ *
+ * The index is a trie of concurrent maps, every node holding a copy-on-write array of
+ * it's subscribers. Matching a topic visits one node per level (plus the wildcard-nodes)
+ * and never takes a lock; only subscribe and unsubscribe synchronize on the node they change.
+ * Nodes left without subscribers and children are removed from their parent by unsubscribe,
+ * so short-lived topics don't stay behind. A removed node is marked as such and gets no more
+ * children or subscribers, subscribe starts over from the root when it runs into one.
+ */
+package org.freecs.nio.messagingServer;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class TopicIndex {
+    static final MessagingHandler[] NONE = new MessagingHandler[0];
+
+    private final Node root = new Node();
+
+    /**
+     * Subscribe mh to all topics matching pattern
+     * @param pattern the topic-pattern
+     * @param mh the subscriber
+     * @return false if mh has already been subscribed to pattern
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    boolean subscribe(String pattern, MessagingHandler mh) {
+        validate(pattern);
+        for (;;) {
+            Node n = root;
+            int from = 0;
+            for (;;) {
+                int end = levelEnd(pattern, from);
+                n = n.child(pattern.substring(from, end));
+                if (n == null || end == pattern.length())
+                    break;
+                from = end + 1;
+            }
+            if (n == null)
+                continue; // pruned meanwhile
+            synchronized (n) {
+                if (!n.removed)
+                    return n.add(mh);
+            }
+        }
+    }
+
+    /**
+     * Remove the subscription of mh to pattern
+     * @param pattern the topic-pattern
+     * @param mh the subscriber
+     * @return false if mh hasn't been subscribed to pattern
+     */
+    boolean unsubscribe(String pattern, MessagingHandler mh) {
+        return unsubscribe(root, pattern, 0, mh);
+    }
+
+    /**
+     * Remove the subscription below n, pruning the nodes left empty as the recursion unwinds
+     */
+    private boolean unsubscribe(Node n, String pattern, int from, MessagingHandler mh) {
+        int end = levelEnd(pattern, from);
+        String level = pattern.substring(from, end);
+        Node child = n.children.get(level);
+        if (child == null)
+            return false;
+        boolean removed = end == pattern.length() ? child.remove(mh) : unsubscribe(child, pattern, end + 1, mh);
+        if (removed)
+            child.prune(n, level);
+        return removed;
+    }
+
+    /**
+     * Find all subscribers of a topic
+     * @param topic the topic (without wildcards)
+     * @return the subscribers, each one contained once. The array must not be modified.
+     */
+    MessagingHandler[] match(String topic) {
+        Collector c = new Collector();
+        match(root, topic, 0, c);
+        return c.result();
+    }
+
+    private void match(Node n, String topic, int from, Collector c) {
+        for (;;) {
+            Node multi = n.children.get("#");
+            if (multi != null)
+                c.add(multi.subscribers);
+            int end = levelEnd(topic, from);
+            boolean last = end == topic.length();
+            Node single = n.children.get("+");
+            if (single != null) {
+                if (last)
+                    matchLast(single, c);
+                else
+                    match(single, topic, end + 1, c);
+            }
+            Node exact = n.children.get(topic.substring(from, end));
+            if (exact == null)
+                return;
+            if (last) {
+                matchLast(exact, c);
+                return;
+            }
+            n = exact;
+            from = end + 1;
+        }
+    }
+
+    /**
+     * Collect the subscribers of the node matching the topic's last level
+     * (and of it's '#'-child, as "a/#" matches "a" as well)
+     */
+    private void matchLast(Node n, Collector c) {
+        c.add(n.subscribers);
+        Node multi = n.children.get("#");
+        if (multi != null)
+            c.add(multi.subscribers);
+    }
+
+    private static int levelEnd(String topic, int from) {
+        int end = topic.indexOf('/', from);
+        return end < 0 ? topic.length() : end;
+    }
+
+    private static void validate(String pattern) {
+        if (pattern.length() == 0)
+            throw new IllegalArgumentException("Empty topic-pattern");
+        int from = 0;
+        for (;;) {
+            int end = levelEnd(pattern, from);
+            String level = pattern.substring(from, end);
+            if (level.length() > 1 && (level.indexOf('+') >= 0 || level.indexOf('#') >= 0))
+                throw new IllegalArgumentException("Wildcards must occupy a whole level: " + pattern);
+            if ("#".equals(level) && end != pattern.length())
+                throw new IllegalArgumentException("'#' must be the last level: " + pattern);
+            if (end == pattern.length())
+                return;
+            from = end + 1;
+        }
+    }
+
+    private static class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+        volatile MessagingHandler[] subscribers = NONE;
+        boolean removed = false; // guarded by the node's lock
+
+        /**
+         * Returns the child for level, creating it if there is none
+         * @return the child or null if this node has been removed
+         */
+        Node child(String level) {
+            Node child = children.get(level);
+            if (child != null)
+                return child;
+            synchronized (this) {
+                if (removed)
+                    return null;
+                child = children.get(level);
+                if (child == null) {
+                    child = new Node();
+                    children.put(level, child);
+                }
+                return child;
+            }
+        }
+
+        /**
+         * Remove this node from parent if it has neither subscribers nor children
+         */
+        synchronized void prune(Node parent, String level) {
+            if (removed || subscribers.length > 0 || !children.isEmpty())
+                return;
+            removed = true;
+            parent.children.remove(level, this);
+        }
+
+        synchronized boolean add(MessagingHandler mh) {
+            MessagingHandler[] cur = subscribers;
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] == mh)
+                    return false;
+            }
+            MessagingHandler[] next = new MessagingHandler[cur.length + 1];
+            System.arraycopy(cur, 0, next, 0, cur.length);
+            next[cur.length] = mh;
+            subscribers = next;
+            return true;
+        }
+
+        synchronized boolean remove(MessagingHandler mh) {
+            MessagingHandler[] cur = subscribers;
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] != mh)
+                    continue;
+                if (cur.length == 1) {
+                    subscribers = NONE;
+                    return true;
+                }
+                MessagingHandler[] next = new MessagingHandler[cur.length - 1];
+                System.arraycopy(cur, 0, next, 0, i);
+                System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+                subscribers = next;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gathers the subscriber-arrays of all matching nodes. The common case of a single
+     * matching node returns that node's snapshot as it is, only several nodes need de-duplication.
+     */
+    private static class Collector {
+        private MessagingHandler[] first = NONE;
+        private Map<MessagingHandler, Boolean> merged = null;
+
+        void add(MessagingHandler[] subs) {
+            if (subs.length == 0)
+                return;
+            if (first.length == 0 && merged == null) {
+                first = subs;
+                return;
+            }
+            if (merged == null) {
+                merged = new IdentityHashMap<MessagingHandler, Boolean>();
+                for (int i = 0; i < first.length; i++)
+                    merged.put(first[i], Boolean.TRUE);
+            }
+            for (int i = 0; i < subs.length; i++)
+                merged.put(subs[i], Boolean.TRUE);
+        }
+
+        MessagingHandler[] result() {
+            if (merged == null)
+                return first;
+            return merged.keySet().toArray(NONE);
+        }
+    }
+}
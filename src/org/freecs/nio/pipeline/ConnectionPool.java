@@ -0,0 +1,470 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * ConnectionPool sends requests to any number of endpoints (tcp or unix-domain addresses)
+ * over kept-alive connections, so a request usually goes out on a warm socket instead of
+ * paying for the connect (and the TLS-handshake) first. Every connection is a Pipeline made
+ * of the stages an ICodecFactory creates, e.g. a HttpCodec for HTTP/1.1-endpoints or a
+ * LengthFieldCodec for request/reply-protocols. Responses have to arrive in the order the
+ * requests were sent, as HTTP/1.1 does.
+ *
+ * Per endpoint there are at most poolConnections connections with at most poolInFlight
+ * requests each (1 unless the endpoint handles pipelining) and at most poolPending requests
+ * waiting for a connection; more requests fail right away. A request takes an idle connection,
+ * else a new connection is opened, else it's pipelined onto the least busy connection, else it
+ * waits for a connection to become available.
+ *
+ * Connects time out after connectTimeout milliseconds. Once all connects to an endpoint
+ * failed, it's requests fail right away for reconnectDelay milliseconds, doubled for every
+ * further failure up to maxReconnectDelay. A timer sweeping the connections every once in a
+ * while evicts the ones whose oldest request waits longer than requestTimeout for the response,
+ * and the ones idle for longer than keepAliveTimeout. A request on a connection closed before
+ * it's response arrived fails, it isn't retried (it may have been processed).
+ *
+ * All state is kept by the pool's poller, which all connections get registered with.
+ * Requests may be sent from any thread, the IResponseHandlers are called by the poller.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ScheduledTask;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
+
+public class ConnectionPool {
+    private final Poller poller;
+    private final ICodecFactory codecs;
+    private final int bufferSize;
+    private final int maxBufferSize;
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final int maxPending;
+    private final long connectTimeout;
+    private final long requestTimeout;
+    private final long idleTimeout;
+    private final long reconnectDelay;
+    private final long maxReconnectDelay;
+    private final HashMap<SocketAddress, Endpoint> endpoints = new HashMap<SocketAddress, Endpoint>();
+    private final Runnable sweep = new Runnable() {
+        public void run() {
+            sweep();
+        }
+    };
+    private ScheduledTask sweeper = null;
+    private boolean closed = false;
+    private volatile TlsContext tls = null;
+    // counters written by the poller only
+    private volatile long connects = 0;
+    private volatile long connectFailures = 0;
+    private volatile long reuses = 0;
+    private volatile long evictions = 0;
+    private volatile long rejections = 0;
+
+    /**
+     * @param poller the poller all connections get registered with (and the pool's state is kept by)
+     * @param codecs the factory creating the stages of every connection
+     * @param cfg the ServerConfig providing the pool's limits (poolConnections, poolInFlight,
+     * poolPending), timeouts (connectTimeout, requestTimeout, keepAliveTimeout, reconnectDelay,
+     * maxReconnectDelay) and buffer-sizes (bufferSize, maxFrameSize)
+     */
+    public ConnectionPool(Poller poller, ICodecFactory codecs, ServerConfig cfg) {
+        this.poller = poller;
+        this.codecs = codecs;
+        this.bufferSize = cfg.getBufferSize();
+        this.maxBufferSize = cfg.getMaxFrameSize();
+        this.maxConnections = Math.max(1, cfg.getPoolConnections());
+        this.maxInFlight = Math.max(1, cfg.getPoolInFlight());
+        this.maxPending = cfg.getPoolPending();
+        this.connectTimeout = cfg.getConnectTimeout();
+        this.requestTimeout = cfg.getRequestTimeout();
+        this.idleTimeout = cfg.getKeepAliveTimeout();
+        this.reconnectDelay = cfg.getReconnectDelay();
+        this.maxReconnectDelay = cfg.getMaxReconnectDelay();
+    }
+
+    /**
+     * Speak TLS on all connections opened from now on
+     * @param tls the TlsContext (or null for plaintext)
+     */
+    public void setTlsContext(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Send a request to endpoint
+     * @param endpoint the address of the endpoint
+     * @param msg the request
+     * @param handler the handler getting the response (or the failure)
+     */
+    public void request(SocketAddress endpoint, byte[] msg, IResponseHandler handler) {
+        request(endpoint, ByteBuffer.wrap(msg), handler);
+    }
+
+    /**
+     * Send a request to endpoint without copying it (unless a stage transforms it), msg's position
+     * and limit stay untouched. The content must not be modified until the handler got called.
+     * @param endpoint the address of the endpoint
+     * @param msg the request (the bytes between position and limit)
+     * @param handler the handler getting the response (or the failure)
+     */
+    public void request(SocketAddress endpoint, ByteBuffer msg, IResponseHandler handler) {
+        poller.execute(new Request(endpoint, msg.duplicate(), handler));
+    }
+
+    /**
+     * Close all connections, failing the requests not answered yet. Requests sent afterwards fail.
+     */
+    public void close() {
+        poller.execute(new Runnable() {
+            public void run() {
+                if (closed)
+                    return;
+                closed = true;
+                if (sweeper != null)
+                    sweeper.cancel();
+                IOException cause = new IOException("Connection pool closed");
+                for (Iterator<Endpoint> i = endpoints.values().iterator(); i.hasNext(); ) {
+                    Endpoint ep = i.next();
+                    failAll(ep.pending, cause);
+                    evict(ep, cause);
+                }
+                endpoints.clear();
+            }
+        });
+    }
+
+    /**
+     * Hand a request to a connection of it's endpoint or let it wait for one
+     */
+    void submit(Request r) {
+        if (closed) {
+            fail(r, new IOException("Connection pool closed"));
+            return;
+        }
+        if (r.endpoint instanceof InetSocketAddress && ((InetSocketAddress) r.endpoint).isUnresolved()) {
+            fail(r, new UnknownHostException(((InetSocketAddress) r.endpoint).getHostString()));
+            return;
+        }
+        Endpoint ep = endpoints.get(r.endpoint);
+        if (ep == null) {
+            ep = new Endpoint(r.endpoint);
+            endpoints.put(r.endpoint, ep);
+        }
+        long now = System.nanoTime();
+        if (ep.downUntil - now > 0) {
+            rejections++;
+            fail(r, new ConnectException("Endpoint " + ep.address + " is down after " + ep.failures + " failed connects"));
+            return;
+        }
+        PooledConnection c = ep.idle();
+        if (c == null && ep.connections.size() >= maxConnections)
+            c = ep.leastBusy(maxInFlight);
+        if (c != null) {
+            send(c, r);
+            return;
+        }
+        if (ep.pending.size() >= maxPending) {
+            rejections++;
+            fail(r, new IOException("More than " + maxPending + " requests pending for " + ep.address));
+            return;
+        }
+        r.sent = now;
+        ep.pending.add(r);
+        if (ep.connections.size() < maxConnections && ep.connecting < ep.pending.size())
+            connect(ep);
+        if (sweeper == null)
+            sweeper = poller.schedule(sweep, sweepInterval());
+    }
+
+    private void send(PooledConnection c, Request r) {
+        r.sent = System.nanoTime();
+        if (c.used)
+            reuses++;
+        c.used = true;
+        c.inFlight.add(r);
+        c.pipeline.send(r.msg); // a failing connection gets closed, failing r with the requests in flight
+    }
+
+    /**
+     * Open a new connection to ep
+     */
+    private void connect(Endpoint ep) {
+        PooledConnection c = new PooledConnection(this, ep);
+        c.pipeline = new Pipeline(bufferSize, maxBufferSize, c, codecs.create());
+        ep.connections.add(c);
+        ep.connecting++;
+        connects++;
+        try {
+            c.pipeline.connect(poller, ep.address, tls);
+        } catch (IOException e) {
+            c.cause = e;
+            closed(c);
+            return;
+        }
+        c.connectTimer = poller.schedule(c.connectTimeout, connectTimeout);
+    }
+
+    void connectTimedOut(PooledConnection c) {
+        if (c.connected || c.pipeline.isClosed())
+            return;
+        c.cause = new SocketTimeoutException("Connect to " + c.endpoint.address + " timed out after " + connectTimeout + "ms");
+        c.pipeline.close();
+    }
+
+    /**
+     * A connection is established: hand it the requests waiting
+     */
+    void connected(PooledConnection c) {
+        c.connected = true;
+        c.connectTimer.cancel();
+        c.endpoint.connecting--;
+        c.endpoint.failures = 0;
+        c.lastUsed = System.nanoTime();
+        drain(c);
+    }
+
+    /**
+     * A response arrived: it belongs to the oldest request in flight
+     */
+    void received(PooledConnection c, ByteBuffer msg) {
+        Request r = c.inFlight.poll();
+        if (r == null) {
+            c.cause = new ProtocolException("Unsolicited response from " + c.endpoint.address);
+            c.pipeline.close();
+            return;
+        }
+        c.lastUsed = System.nanoTime();
+        try {
+            r.handler.response(msg);
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+        }
+        drain(c);
+    }
+
+    /**
+     * A connection is gone: fail what it had in flight, or everything waiting for the endpoint if
+     * it was the last attempt to connect, backing off from connecting for a while
+     */
+    void closed(PooledConnection c) {
+        Endpoint ep = c.endpoint;
+        ep.connections.remove(c);
+        if (c.connectTimer != null)
+            c.connectTimer.cancel();
+        if (!c.connected) {
+            ep.connecting--;
+            ep.failures++;
+            connectFailures++;
+            if (ep.connections.isEmpty()) {
+                long delay = Math.min(reconnectDelay << Math.min(ep.failures - 1, 20), maxReconnectDelay);
+                ep.downUntil = System.nanoTime() + delay * 1000000L;
+                IOException cause = c.cause != null ? c.cause : c.pipeline.getFailure();
+                failAll(ep.pending, cause != null ? cause : new ConnectException("Connect to " + ep.address + " failed"));
+            }
+            return;
+        }
+        failAll(c.inFlight, c.cause != null ? c.cause : new IOException("Connection to " + ep.address + " closed"));
+        if (!closed && ep.connections.size() < maxConnections && ep.connecting < ep.pending.size())
+            connect(ep);
+    }
+
+    /**
+     * Send the requests waiting for c's endpoint as far as c takes them
+     */
+    private void drain(PooledConnection c) {
+        ArrayDeque<Request> pending = c.endpoint.pending;
+        while (!pending.isEmpty() && c.inFlight.size() < maxInFlight && !c.pipeline.isClosed()) {
+            send(c, pending.poll());
+        }
+    }
+
+    /**
+     * Evict the connections waiting too long for a response or being idle for too long, fail
+     * the requests waiting too long for a connection and forget endpoints not used anymore
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Iterator<Endpoint> i = endpoints.values().iterator(); i.hasNext(); ) {
+            Endpoint ep = i.next();
+            for (int j = ep.connections.size() - 1; j >= 0; j--) {
+                PooledConnection c = ep.connections.get(j);
+                if (!c.connected)
+                    continue;
+                Request oldest = c.inFlight.peek();
+                if (oldest != null && now - oldest.sent > requestTimeout * 1000000L) {
+                    evictions++;
+                    c.cause = new SocketTimeoutException("No response from " + ep.address + " within " + requestTimeout + "ms");
+                    c.pipeline.close();
+                } else if (oldest == null && now - c.lastUsed > idleTimeout * 1000000L) {
+                    c.pipeline.close();
+                }
+            }
+            for (Request r = ep.pending.peek(); r != null && now - r.sent > requestTimeout * 1000000L; r = ep.pending.peek()) {
+                ep.pending.poll();
+                fail(r, new SocketTimeoutException("No connection to " + ep.address + " within " + requestTimeout + "ms"));
+            }
+            if (ep.connections.isEmpty() && ep.pending.isEmpty() && ep.downUntil - now <= 0)
+                i.remove();
+        }
+        sweeper = endpoints.isEmpty() ? null : poller.schedule(sweep, sweepInterval());
+    }
+
+    private long sweepInterval() {
+        return Math.max(10, Math.min(requestTimeout, idleTimeout) / 4);
+    }
+
+    /**
+     * Close all connections of ep
+     */
+    private void evict(Endpoint ep, IOException cause) {
+        for (int j = ep.connections.size() - 1; j >= 0; j--) {
+            PooledConnection c = ep.connections.get(j);
+            c.cause = cause;
+            c.pipeline.close();
+        }
+    }
+
+    private static void failAll(ArrayDeque<Request> requests, IOException cause) {
+        for (Request r = requests.poll(); r != null; r = requests.poll()) {
+            fail(r, cause);
+        }
+    }
+
+    private static void fail(Request r, IOException cause) {
+        try {
+            r.handler.failed(cause);
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the number of connections opened so far
+     */
+    public long getConnects() {
+        return connects;
+    }
+
+    /**
+     * Returns the number of connects failed or timed out so far
+     */
+    public long getConnectFailures() {
+        return connectFailures;
+    }
+
+    /**
+     * Returns the number of requests sent on a connection used before
+     */
+    public long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * Returns the number of connections evicted because a response timed out
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of requests failed right away (endpoint backing off or too many pending)
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    public String toString() {
+        return "connects=" + connects + " connectFailures=" + connectFailures + " reuses=" + reuses
+                + " evictions=" + evictions + " rejections=" + rejections;
+    }
+
+    /**
+     * A request on it's way to the poller and, later on, waiting for a connection or it's response
+     */
+    class Request implements Runnable {
+        final SocketAddress endpoint;
+        final ByteBuffer msg;
+        final IResponseHandler handler;
+        long sent = 0;
+
+        Request(SocketAddress endpoint, ByteBuffer msg, IResponseHandler handler) {
+            this.endpoint = endpoint;
+            this.msg = msg;
+            this.handler = handler;
+        }
+
+        public void run() {
+            submit(this);
+        }
+    }
+
+    /**
+     * The connections of one endpoint and the requests waiting for them
+     */
+    static class Endpoint {
+        final SocketAddress address;
+        final List<PooledConnection> connections = new ArrayList<PooledConnection>();
+        final ArrayDeque<Request> pending = new ArrayDeque<Request>();
+        int connecting = 0;
+        int failures = 0;
+        long downUntil = 0;
+
+        Endpoint(SocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Returns a connected connection without requests in flight or null if there is none
+         */
+        PooledConnection idle() {
+            for (int i = 0; i < connections.size(); i++) {
+                PooledConnection c = connections.get(i);
+                if (c.connected && c.inFlight.isEmpty())
+                    return c;
+            }
+            return null;
+        }
+
+        /**
+         * Returns the connected connection with the fewest requests in flight (less than max)
+         * or null if all of them are at max
+         */
+        PooledConnection leastBusy(int max) {
+            PooledConnection least = null;
+            for (int i = 0; i < connections.size(); i++) {
+                PooledConnection c = connections.get(i);
+                if (c.connected && c.inFlight.size() < max && (least == null || c.inFlight.size() < least.inFlight.size()))
+                    least = c;
+            }
+            return least;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * DeflateCodec compresses messages of at least threshold bytes. It transforms whole messages,
+ * so it has to be stacked behind a framing stage (e.g. a LengthFieldCodec). Every message gets a
+ * 4 byte header holding it's original length, the highest bit set if the rest is deflated;
+ * messages not getting smaller are kept as they are. Compressed messages are inflated into
+ * (and deflated into) pooled buffers, the others pass without being copied.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.freecs.nio.core.BufferPool;
+
+public class DeflateCodec implements ICodec {
+    private static final int DEFLATED = 0x80000000;
+
+    private final int threshold;
+    private final int maxLength;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private final MessageParts parts = new MessageParts();
+
+    /**
+     * @param threshold the size of the smallest message getting compressed
+     * @param maxLength the length of the longest message accepted (once inflated)
+     */
+    public DeflateCodec(int threshold, int maxLength) {
+        this.threshold = threshold;
+        this.maxLength = maxLength;
+    }
+
+    public void decode(PipelineContext ctx, ByteBuffer in) throws IOException {
+        if (in.remaining() < 4)
+            throw new ProtocolException("Message without header");
+        int pos = in.position();
+        int header = in.getInt(pos);
+        int len = header & ~DEFLATED;
+        if (len > maxLength)
+            throw new ProtocolException("Message of " + len + " bytes exceeds the maximum of " + maxLength);
+        if ((header & DEFLATED) == 0) {
+            if (in.remaining() - 4 != len)
+                throw new ProtocolException("Message of " + (in.remaining() - 4) + " bytes announced as " + len);
+            ctx.fireRead(in, pos + 4, len);
+            return;
+        }
+        ByteBuffer out = BufferPool.instance.acquire(len);
+        try {
+            out.clear().limit(len);
+            in.position(pos + 4);
+            inflater.reset();
+            inflater.setInput(in);
+            while (out.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+            }
+            if (out.hasRemaining() || !inflater.finished())
+                throw new ProtocolException("Message inflated to " + out.position() + " bytes announced as " + len);
+            ctx.fireRead(out, 0, len);
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Malformed deflated message: " + e.getMessage());
+        } finally {
+            BufferPool.instance.release(out);
+        }
+    }
+
+    public void encode(PipelineContext ctx, ByteBuffer part, ByteBuffer pooled, boolean last) throws IOException {
+        parts.add(part, pooled);
+        if (!last)
+            return;
+        if (parts.length() > maxLength) {
+            parts.release();
+            throw new ProtocolException("Message of " + parts.length() + " bytes exceeds the maximum of " + maxLength);
+        }
+        int len = (int) parts.length();
+        if (len >= threshold) {
+            ByteBuffer out = deflate(len);
+            if (out != null) {
+                parts.release();
+                ctx.fireWrite(out, out, true);
+                return;
+            }
+        }
+        ByteBuffer header = BufferPool.instance.acquire(4);
+        header.clear();
+        header.putInt(len).flip();
+        ctx.fireWrite(header, header, false);
+        parts.fireWrite(ctx, true);
+    }
+
+    /**
+     * Deflate the collected parts (len bytes) into a pooled buffer, having the header in front
+     * @return the buffer or null if the deflated message isn't smaller
+     */
+    private ByteBuffer deflate(int len) {
+        ByteBuffer out = BufferPool.instance.acquire(4 + len);
+        out.clear().limit(4 + len);
+        out.position(4);
+        deflater.reset();
+        for (int i = 0; i < parts.count() && out.hasRemaining(); i++) {
+            deflater.setInput(parts.part(i).duplicate());
+            while (!deflater.needsInput() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+        }
+        deflater.finish();
+        while (out.hasRemaining() && !deflater.finished()) {
+            deflater.deflate(out);
+        }
+        if (!deflater.finished()) {
+            BufferPool.instance.release(out);
+            return null;
+        }
+        out.putInt(0, len | DEFLATED).flip();
+        return out;
+    }
+
+    public void close() {
+        parts.release();
+        deflater.end();
+        inflater.end();
+    }
+}
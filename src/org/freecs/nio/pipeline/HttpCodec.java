@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * HttpCodec frames HTTP/1.x messages: the header up to the blank line plus the body announced
+ * by Content-Length (chunked bodies aren't supported). Every complete message, pipelined ones
+ * included, is passed on as one view, to be parsed by the receiver. Encoding passes the
+ * formatted responses on as they are.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class HttpCodec implements ICodec {
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+
+    /**
+     * @param maxHeaderSize the size of the largest header accepted
+     * @param maxBodySize the size of the largest body accepted
+     */
+    public HttpCodec(int maxHeaderSize, int maxBodySize) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+    }
+
+    public void decode(PipelineContext ctx, ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            int pos = in.position();
+            int headerEnd = headerEnd(in, pos);
+            if (headerEnd < 0) {
+                if (in.remaining() > maxHeaderSize)
+                    throw new ProtocolException("Header exceeds the maximum of " + maxHeaderSize + " bytes");
+                ctx.requireCapacity(in.remaining() + 1);
+                return;
+            }
+            int bodyLen = contentLength(in, pos, headerEnd);
+            if (bodyLen < 0 || bodyLen > maxBodySize)
+                throw new ProtocolException("Invalid Content-Length " + bodyLen);
+            int len = headerEnd - pos + bodyLen;
+            if (in.remaining() < len) {
+                ctx.requireCapacity(len);
+                return;
+            }
+            in.position(pos + len);
+            ctx.fireRead(in, pos, len);
+        }
+    }
+
+    /**
+     * Returns the index after the blank line ending the header starting at pos, -1 if it's incomplete
+     */
+    private static int headerEnd(ByteBuffer in, int pos) {
+        for (int i = pos + 3; i < in.limit(); i++) {
+            if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the Content-Length header-field within in[pos..end), 0 if there is none
+     */
+    private static int contentLength(ByteBuffer in, int pos, int end) {
+        for (int i = pos; i < end - CONTENT_LENGTH.length; i++) {
+            if (in.get(i) != '\n')
+                continue;
+            int j = 0;
+            while (j < CONTENT_LENGTH.length && (in.get(i + 1 + j) | 0x20) == CONTENT_LENGTH[j])
+                j++;
+            if (j < CONTENT_LENGTH.length)
+                continue;
+            long value = 0;
+            for (int k = i + 1 + j; k < end; k++) {
+                byte b = in.get(k);
+                if (b >= '0' && b <= '9')
+                    value = value * 10 + b - '0';
+                else if (b != ' ' && b != '\t')
+                    break;
+                if (value > Integer.MAX_VALUE)
+                    return -1;
+            }
+            return (int) value;
+        }
+        return 0;
+    }
+
+    public void encode(PipelineContext ctx, ByteBuffer part, ByteBuffer pooled, boolean last) throws IOException {
+        ctx.fireWrite(part, pooled, last);
+    }
+
+    public void close() {
+        return; // nothing held
+    }
+}
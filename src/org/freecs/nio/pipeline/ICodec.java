@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * ICodec is one stage of a Pipeline. Arriving data passes the stages from the first to the
+ * last (decode), outgoing messages from the last to the first (encode). Every stage hands it's
+ * output to the next one through it's PipelineContext, so stages can be stacked freely,
+ * e.g. a DeflateCodec behind a LengthFieldCodec.
+ *
+ * Stages are called by the poller's thread for decoding and under the pipeline's lock for
+ * encoding, so a stage's state needs no further locking.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ICodec {
+    /**
+     * Decode what arrived and pass every complete message on with ctx.fireRead.
+     * The first stage gets the connection's read-buffer and has to consume (advance the position
+     * over) what it passed on, the rest is kept for the next read; a message not fitting into the
+     * buffer is announced with ctx.requireCapacity. Later stages get whole messages.
+     * @param ctx this stage's context
+     * @param in the bytes between position and limit, only valid during this call
+     * @throws IOException if the data is malformed (closes the connection)
+     */
+    void decode(PipelineContext ctx, ByteBuffer in) throws IOException;
+
+    /**
+     * Encode a part of an outgoing message and pass the result on with ctx.fireWrite. A message
+     * may consist of several parts (e.g. a header and a body), the last one is flagged; stages
+     * needing the whole message (e.g. to prefix it's length) collect the parts in a MessageParts.
+     * @param ctx this stage's context
+     * @param part the bytes between position and limit, which must stay untouched
+     * until they have been written if they're passed on as they are
+     * @param pooled the BufferPool-buffer backing part, to be released once it's not needed anymore
+     * (passed on along with part if part itself is passed on), null if part isn't pooled
+     * @param last true for the message's last part
+     * @throws IOException if the message can't be encoded
+     */
+    void encode(PipelineContext ctx, ByteBuffer part, ByteBuffer pooled, boolean last) throws IOException;
+
+    /**
+     * Give back whatever the stage holds, the connection has been closed
+     */
+    void close();
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * ICodecFactory creates the stages of every connection a ConnectionPool opens. Stages hold
+ * per-connection state, so each connection needs it's own instances.
+ */
+package org.freecs.nio.pipeline;
+
+public interface ICodecFactory {
+    /**
+     * Returns the stages of a new connection, the first one decoding the bytes read
+     */
+    ICodec[] create();
+}
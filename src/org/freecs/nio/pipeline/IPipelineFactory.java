@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * IPipelineFactory creates the Pipeline of every connection a PipelineListener accepts.
+ * Stages keep per-connection state, so every connection needs stages of it's own.
+ */
+package org.freecs.nio.pipeline;
+
+public interface IPipelineFactory {
+    /**
+     * Returns a new Pipeline for an accepted connection
+     */
+    Pipeline create();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * IPipelineReceiver is the application-end of a Pipeline, getting the messages the last
+ * stage decoded. All callbacks are called by the poller's thread.
+ */
+package org.freecs.nio.pipeline;
+
+import java.nio.ByteBuffer;
+
+public interface IPipelineReceiver {
+    /**
+     * Triggered once the connection is established (an accepted TLS-connection may still be
+     * handshaking, messages sent meanwhile are held back until it's done)
+     * @param p the connection, which may be kept to send messages from any thread
+     */
+    void connected(Pipeline p);
+
+    /**
+     * Triggered for every decoded message
+     * @param p the connection the message arrived at
+     * @param msg a read-only view of the message (the bytes between position and limit),
+     * valid only during this call
+     */
+    void received(Pipeline p, ByteBuffer msg);
+
+    /**
+     * Triggered once the connection has been closed (p.getFailure tells why if connecting failed)
+     * @param p the connection
+     */
+    void closed(Pipeline p);
+}
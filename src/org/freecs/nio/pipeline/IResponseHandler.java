@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * IResponseHandler gets the outcome of a request sent through a ConnectionPool: either the
+ * response or the reason there won't be one. Exactly one of the methods gets called, by the
+ * pool's poller-thread.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface IResponseHandler {
+    /**
+     * Triggered once the response has arrived
+     * @param msg a read-only view of the decoded response (the bytes between position and limit),
+     * valid only during this call
+     */
+    void response(ByteBuffer msg);
+
+    /**
+     * Triggered if the request failed: the endpoint couldn't be connected (or is backing off
+     * after failed connects), too many requests are pending, the response timed out or the
+     * connection got lost before the response arrived
+     * @param cause the reason
+     */
+    void failed(IOException cause);
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LengthFieldCodec frames messages by a 4 byte big-endian length-prefix. Decoding passes
+ * every complete message on as view of the buffer it arrived in, encoding queues a pooled
+ * header in front of the message's parts, so neither direction copies the message.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.freecs.nio.core.BufferPool;
+
+public class LengthFieldCodec implements ICodec {
+    private final int maxLength;
+    private final MessageParts parts = new MessageParts();
+
+    /**
+     * @param maxLength the length of the longest message accepted
+     */
+    public LengthFieldCodec(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public void decode(PipelineContext ctx, ByteBuffer in) throws IOException {
+        while (in.remaining() >= 4) {
+            int pos = in.position();
+            int len = in.getInt(pos);
+            if (len < 0 || len > maxLength)
+                throw new ProtocolException("Message of " + len + " bytes exceeds the maximum of " + maxLength);
+            if (in.remaining() < 4 + len) {
+                ctx.requireCapacity(4 + len);
+                return;
+            }
+            in.position(pos + 4 + len);
+            ctx.fireRead(in, pos + 4, len);
+        }
+    }
+
+    public void encode(PipelineContext ctx, ByteBuffer part, ByteBuffer pooled, boolean last) throws IOException {
+        parts.add(part, pooled);
+        if (!last)
+            return;
+        if (parts.length() > maxLength) {
+            parts.release();
+            throw new ProtocolException("Message of " + parts.length() + " bytes exceeds the maximum of " + maxLength);
+        }
+        ByteBuffer header = BufferPool.instance.acquire(4);
+        header.clear();
+        header.putInt((int) parts.length()).flip();
+        ctx.fireWrite(header, header, false);
+        parts.fireWrite(ctx, true);
+    }
+
+    public void close() {
+        parts.release();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * LineCodec frames messages as lines ending with LF (a CR in front of it is dropped).
+ * Decoded lines don't contain the line-break, encoding appends CRLF to every message.
+ * It keeps track of the partial line scanned already, so it has to be the first stage.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class LineCodec implements ICodec {
+    private static final ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { '\r', '\n' }).asReadOnlyBuffer();
+
+    private final int maxLength;
+    private int scanned = 0;
+
+    /**
+     * @param maxLength the length of the longest line accepted
+     */
+    public LineCodec(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public void decode(PipelineContext ctx, ByteBuffer in) throws IOException {
+        int start = in.position();
+        // the bytes scanned by the last call didn't hold a line-break
+        for (int i = start + scanned; i < in.limit(); i++) {
+            if (in.get(i) != '\n')
+                continue;
+            int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+            in.position(i + 1);
+            ctx.fireRead(in, start, end - start);
+            start = i + 1;
+        }
+        int partial = in.limit() - start;
+        if (partial > maxLength)
+            throw new ProtocolException("Line exceeds the maximum of " + maxLength + " bytes");
+        scanned = partial;
+        if (partial > 0)
+            ctx.requireCapacity(partial + 1);
+    }
+
+    public void encode(PipelineContext ctx, ByteBuffer part, ByteBuffer pooled, boolean last) throws IOException {
+        ctx.fireWrite(part, pooled, false);
+        if (last)
+            ctx.fireWrite(CRLF.duplicate(), null, true);
+    }
+
+    public void close() {
+        return; // nothing held
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * MessageParts collects the parts of an outgoing message for a stage which needs the whole
+ * message before it can pass it on, e.g. to prefix it with it's length. The arrays are
+ * reused from message to message, so collecting doesn't allocate.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.freecs.nio.core.BufferPool;
+
+public class MessageParts {
+    private ByteBuffer[] parts = new ByteBuffer[4];
+    private ByteBuffer[] pooled = new ByteBuffer[4];
+    private int cnt = 0;
+    private long length = 0;
+
+    /**
+     * Add a part (it's position and limit stay untouched)
+     * @param part the bytes between position and limit
+     * @param pooled the BufferPool-buffer backing part (or null)
+     */
+    public void add(ByteBuffer part, ByteBuffer pooled) {
+        if (cnt == parts.length) {
+            ByteBuffer[] p = new ByteBuffer[cnt * 2];
+            System.arraycopy(parts, 0, p, 0, cnt);
+            parts = p;
+            p = new ByteBuffer[cnt * 2];
+            System.arraycopy(this.pooled, 0, p, 0, cnt);
+            this.pooled = p;
+        }
+        parts[cnt] = part;
+        this.pooled[cnt++] = pooled;
+        length += part.remaining();
+    }
+
+    /**
+     * Returns the number of bytes of all parts
+     */
+    public long length() {
+        return length;
+    }
+
+    public int count() {
+        return cnt;
+    }
+
+    public ByteBuffer part(int idx) {
+        return parts[idx];
+    }
+
+    /**
+     * Pass all parts on to the previous stage, the last one flagged as last if last is set
+     */
+    public void fireWrite(PipelineContext ctx, boolean last) throws IOException {
+        int n = cnt;
+        cnt = 0;
+        length = 0;
+        for (int i = 0; i < n; i++) {
+            ByteBuffer part = parts[i], p = pooled[i];
+            parts[i] = null;
+            pooled[i] = null;
+            ctx.fireWrite(part, p, last && i == n - 1);
+        }
+    }
+
+    /**
+     * Give back the pooled parts, they aren't passed on (e.g. they've been transformed into another buffer)
+     */
+    public void release() {
+        for (int i = 0; i < cnt; i++) {
+            if (pooled[i] != null)
+                BufferPool.instance.release(pooled[i]);
+            parts[i] = null;
+            pooled[i] = null;
+        }
+        cnt = 0;
+        length = 0;
+    }
+}
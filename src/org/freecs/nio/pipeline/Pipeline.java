@@ -0,0 +1,397 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Pipeline is a connection whose protocol is made of ICodec-stages, so a new protocol only
+ * has to implement it's framing and gets the buffer-management, write-queue and interest-set
+ * handling of this class (and TLS by wrapping it with a TlsHandler, see TlsContext) for free.
+ *
+ * Reading happens into a pooled read-buffer, which grows while a message bigger than it
+ * arrives (up to maxBufferSize) and shrinks back afterwards. Decoded messages are passed on
+ * as views of it, so they aren't copied unless a stage transforms them.
+ *
+ * Encoded messages are queued as they are (views of the message sent, headers taken from the
+ * BufferPool) and written with gathering writes once the socket is writable, so a header and it's
+ * body, or many small messages, go out with one system-call. Pooled buffers are given back once
+ * they have been written. Messages may be sent from any thread; stages encode under the pipeline's
+ * lock. Decoding, the receiver's callbacks and closing the connection happen on the poller's thread.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.freecs.nio.core.BufferPool;
+import org.freecs.nio.core.Poller;
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
+import org.freecs.nio.interfaces.IPoller;
+import org.freecs.nio.interfaces.ITransportHandler;
+
+public class Pipeline implements ITransportHandler {
+    private final ICodec[] codecs;
+    private final PipelineContext[] contexts;
+    private final IPipelineReceiver receiver;
+    private final int bufferSize;
+    private final int maxBufferSize;
+    private ByteBuffer buff;
+    private ByteBuffer view = null;
+    private int required = 0;
+    private ByteBuffer[] pending = new ByteBuffer[16];
+    private ByteBuffer[] pooled = new ByteBuffer[16];
+    private int pendingCnt = 0;
+    private SelectionKey sk = null;
+    private ByteChannel channel = null;
+    private Poller poller = null;
+    private int ops = SelectionKey.OP_READ;
+    private volatile boolean closed = false;
+    private IOException failure = null;
+    private final Runnable cleanup = new Runnable() {
+        public void run() {
+            cleanup();
+        }
+    };
+
+    /**
+     * @param bufferSize the size of the read-buffer
+     * @param maxBufferSize the size the read-buffer may grow to for big messages
+     * @param receiver the callback getting the decoded messages
+     * @param codecs the stages, the first one decoding the bytes read
+     */
+    public Pipeline(int bufferSize, int maxBufferSize, IPipelineReceiver receiver, ICodec... codecs) {
+        this.bufferSize = bufferSize;
+        this.maxBufferSize = Math.max(bufferSize, maxBufferSize);
+        this.receiver = receiver;
+        this.codecs = codecs;
+        this.contexts = new PipelineContext[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            contexts[i] = new PipelineContext(this, i);
+        }
+    }
+
+    /**
+     * Connect to addr and register with poller once connected
+     * @param poller the poller to register with
+     * @param addr the address to connect to (tcp or unix-domain)
+     * @param tls the TlsContext to speak TLS with (or null)
+     */
+    public void connect(IPoller poller, SocketAddress addr, TlsContext tls) throws IOException {
+        SocketChannel sc = ServerConfig.openChannel(addr);
+        ops = SelectionKey.OP_CONNECT;
+        try {
+            sc.connect(addr);
+            poller.addHandler(tls != null ? tls.client(this, addr) : this, sc);
+        } catch (IOException e) {
+            sc.close();
+            throw e;
+        }
+    }
+
+    public void accept(SocketChannel sc) { return; } // nothing to accept (it's an already established connection)
+
+    /**
+     * Finish connecting and tell the receiver. A refused (or otherwise failed) connect closes
+     * the Pipeline, getFailure tells the receiver why.
+     */
+    public void connect() {
+        try {
+            ((SocketChannel) sk.channel()).finishConnect();
+        } catch (IOException e) {
+            failure = e;
+            this.cleanup();
+            return;
+        }
+        synchronized (this) {
+            ops = SelectionKey.OP_READ;
+            sk.interestOps(pendingCnt > 0 ? ops | SelectionKey.OP_WRITE : ops);
+        }
+        receiver.connected(this);
+    }
+
+    /**
+     * Send a message to the peer, encoded by the stages from the last to the first
+     * @param bytes the message
+     * @return false if the connection is closed
+     */
+    public boolean send(byte[] bytes) {
+        return send(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Send a message to the peer without copying it (unless a stage transforms it), msg's position
+     * and limit stay untouched. The content must not be modified until it has been written out.
+     * @param msg the message (the bytes between position and limit)
+     * @return false if the connection is closed
+     */
+    public boolean send(ByteBuffer msg) {
+        try {
+            encode(codecs.length - 1, msg.duplicate(), null, true);
+            return !closed;
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Encode a part by stage idx, queue it below the first stage
+     */
+    synchronized void encode(int idx, ByteBuffer msg, ByteBuffer pooled, boolean last) throws IOException {
+        if (closed) {
+            if (pooled != null)
+                BufferPool.instance.release(pooled);
+            return;
+        }
+        if (idx >= 0) {
+            codecs[idx].encode(contexts[idx], msg, pooled, last);
+            return;
+        }
+        if (pendingCnt == pending.length) {
+            ByteBuffer[] p = new ByteBuffer[pending.length * 2];
+            System.arraycopy(pending, 0, p, 0, pendingCnt);
+            pending = p;
+            p = new ByteBuffer[pending.length];
+            System.arraycopy(this.pooled, 0, p, 0, pendingCnt);
+            this.pooled = p;
+        }
+        pending[pendingCnt] = msg;
+        this.pooled[pendingCnt] = pooled;
+        if (pendingCnt++ == 0)
+            requestWrite();
+    }
+
+    /**
+     * Set OP_WRITE, waking the selector if called by another thread. The interest-set is
+     * changed bit by bit since a TlsHandler changes it too.
+     */
+    private void requestWrite() {
+        SelectionKey sk = this.sk;
+        if (sk == null || ops == SelectionKey.OP_CONNECT)
+            return;
+        try {
+            sk.interestOpsOr(SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            return; // closed meanwhile
+        }
+        if (Poller.current() != poller)
+            sk.selector().wakeup();
+    }
+
+    /**
+     * Decode msg by stage idx, hand it to the receiver after the last stage
+     */
+    void decode(int idx, ByteBuffer msg) throws IOException {
+        if (idx < codecs.length)
+            codecs[idx].decode(contexts[idx], msg);
+        else
+            receiver.received(this, msg);
+    }
+
+    void requireCapacity(int bytes) throws ProtocolException {
+        if (bytes > maxBufferSize)
+            throw new ProtocolException("Message of " + bytes + " bytes exceeds the maximum of " + maxBufferSize);
+        required = Math.max(required, bytes);
+    }
+
+    /**
+     * Read what arrived and let the stages decode it
+     */
+    public void read() {
+        try {
+            int n = channel.read(buff);
+            if (n < 0) {
+                this.cleanup();
+                return;
+            }
+            if (buff.position() == 0)
+                return;
+            buff.flip();
+            if (codecs.length > 0) {
+                codecs[0].decode(contexts[0], buff);
+            } else {
+                view.clear();
+                view.position(buff.position()).limit(buff.limit());
+                buff.position(buff.limit());
+                receiver.received(this, view);
+            }
+        } catch (ProtocolException pe) {
+            System.out.println("closing pipeline: " + pe.getMessage());
+            this.cleanup();
+            return;
+        } catch (IOException e) {
+            this.cleanup();
+            return;
+        }
+        if (closed)
+            return;
+        buff.compact();
+        if (!buff.hasRemaining() && required <= buff.capacity()) {
+            // the first stage didn't say how much it needs, make room anyway
+            if (buff.capacity() >= maxBufferSize) {
+                System.out.println("closing pipeline: read-buffer of " + maxBufferSize + " bytes full");
+                this.cleanup();
+                return;
+            }
+            resize(Math.min(buff.capacity() * 2, maxBufferSize));
+        } else if (required > buff.capacity()) {
+            resize(required);
+        } else if (buff.capacity() > bufferSize && buff.position() <= bufferSize) {
+            resize(bufferSize); // the big message is done
+        }
+        required = 0;
+    }
+
+    /**
+     * Move the content of buff (ready for appending) into a pooled buffer of size bytes
+     */
+    private void resize(int size) {
+        ByteBuffer b = BufferPool.instance.acquire(size);
+        b.clear();
+        buff.flip();
+        b.put(buff);
+        BufferPool.instance.release(buff);
+        buff = b;
+        view = buff.asReadOnlyBuffer();
+    }
+
+    /**
+     * Write as much of the queue as the socket takes with one gathering write,
+     * unset OP_WRITE once it's empty
+     */
+    public synchronized void write() {
+        if (closed)
+            return;
+        try {
+            if (pendingCnt > 0)
+                ((GatheringByteChannel) channel).write(pending, 0, pendingCnt);
+        } catch (IOException e) {
+            this.close();
+            return;
+        }
+        int done = 0;
+        while (done < pendingCnt && !pending[done].hasRemaining()) {
+            if (pooled[done] != null)
+                BufferPool.instance.release(pooled[done]);
+            done++;
+        }
+        if (done > 0) {
+            System.arraycopy(pending, done, pending, 0, pendingCnt - done);
+            System.arraycopy(pooled, done, pooled, 0, pendingCnt - done);
+            for (int i = pendingCnt - done; i < pendingCnt; i++) {
+                pending[i] = null;
+                pooled[i] = null;
+            }
+            pendingCnt -= done;
+        }
+        if (pendingCnt == 0)
+            sk.interestOpsAnd(~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Close the connection from any thread (it's closed by the poller's thread)
+     */
+    public void close() {
+        Poller p = poller;
+        if (p != null)
+            p.execute(cleanup);
+        else
+            this.cleanup();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the reason connecting failed (or null if it didn't)
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Close the channel, give back all buffers and tell the stages and the receiver
+     */
+    public void cleanup() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            for (int i = 0; i < pendingCnt; i++) {
+                if (pooled[i] != null)
+                    BufferPool.instance.release(pooled[i]);
+                pending[i] = null;
+                pooled[i] = null;
+            }
+            pendingCnt = 0;
+            for (int i = 0; i < codecs.length; i++) {
+                codecs[i].close();
+            }
+        }
+        if (sk != null)
+            sk.cancel();
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (buff != null) {
+            BufferPool.instance.release(buff);
+            buff = null;
+        }
+        receiver.closed(this);
+    }
+
+    /**
+     * Registered with the poller: an accepted connection is established right away
+     */
+    public void setSelectionKey(SelectionKey sk) {
+        if (channel == null)
+            channel = (SocketChannel) sk.channel();
+        this.poller = Poller.current();
+        this.sk = sk;
+        buff = BufferPool.instance.acquire(bufferSize);
+        buff.clear();
+        view = buff.asReadOnlyBuffer();
+        if (ops == SelectionKey.OP_CONNECT)
+            return;
+        synchronized (this) {
+            if (pendingCnt > 0)
+                requestWrite();
+        }
+        receiver.connected(this);
+    }
+
+    /**
+     * Read and write through channel instead of the SelectionKey's SocketChannel (see TlsHandler)
+     */
+    public void setChannel(ByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public int getInterestSet() {
+        return ops;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PipelineContext connects one stage of a Pipeline to it's neighbours: decoded messages
+ * are passed on to the next stage (or the IPipelineReceiver), encoded ones to the previous
+ * stage (or the connection's write-queue).
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class PipelineContext {
+    private final Pipeline pipeline;
+    private final int index;
+    private ByteBuffer viewSrc = null;
+    private ByteBuffer view = null;
+
+    PipelineContext(Pipeline pipeline, int index) {
+        this.pipeline = pipeline;
+        this.index = index;
+    }
+
+    /**
+     * Returns the connection this stage belongs to
+     */
+    public Pipeline pipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Pass a decoded message on to the next stage
+     * @param msg the message (the bytes between position and limit), valid until this method returns
+     */
+    public void fireRead(ByteBuffer msg) throws IOException {
+        pipeline.decode(index + 1, msg);
+    }
+
+    /**
+     * Pass a region of src on to the next stage without copying it, through a read-only view
+     * which is reused as long as src stays the same buffer
+     * @param src the buffer holding the message
+     * @param offset the index of the message's first byte
+     * @param length the length of the message
+     */
+    public void fireRead(ByteBuffer src, int offset, int length) throws IOException {
+        if (src != viewSrc) {
+            viewSrc = src;
+            view = src.asReadOnlyBuffer();
+        }
+        view.clear();
+        view.position(offset).limit(offset + length);
+        pipeline.decode(index + 1, view);
+    }
+
+    /**
+     * Pass a part of an encoded message on to the previous stage
+     * @param part the bytes between position and limit, which must stay untouched until written
+     * @param pooled the BufferPool-buffer backing part, released once it has been written (or null)
+     * @param last true for the message's last part
+     */
+    public void fireWrite(ByteBuffer part, ByteBuffer pooled, boolean last) throws IOException {
+        pipeline.encode(index - 1, part, pooled, last);
+    }
+
+    /**
+     * Announce that the message arriving needs a read-buffer of at least bytes (first stage only)
+     * @throws ProtocolException if that's more than the pipeline's maximum buffer-size
+     */
+    public void requireCapacity(int bytes) throws ProtocolException {
+        pipeline.requireCapacity(bytes);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PipelineListener is responsible for registering SocketChannels by wrapping them inside of
+ * the Pipeline a IPipelineFactory creates and registering it with a IPoller (wrapped by a
+ * TlsHandler if the listener has a TlsContext)
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.freecs.nio.core.ServerConfig;
+import org.freecs.nio.core.TlsContext;
+import org.freecs.nio.interfaces.IOHandler;
+import org.freecs.nio.interfaces.IPoller;
+
+public class PipelineListener implements IOHandler {
+    private final IPoller poller;
+    private final IPipelineFactory factory;
+    private final ServerConfig cfg;
+    private SelectionKey sk = null;
+    private volatile TlsContext tls = null;
+
+    /**
+     * @param poller the IPoller new connections get registered with
+     * @param factory the factory creating every connection's Pipeline
+     * @param cfg the ServerConfig providing the socket-options for new connections
+     */
+    public PipelineListener(IPoller poller, IPipelineFactory factory, ServerConfig cfg) {
+        this.poller = poller;
+        this.factory = factory;
+        this.cfg = cfg;
+    }
+
+    /**
+     * Wrap the given SocketChannel within a new Pipeline and add it to the IPoller
+     */
+    public void accept(SocketChannel sc) {
+        try {
+            cfg.configure(sc);
+            Pipeline p = factory.create();
+            TlsContext tls = this.tls;
+            poller.addHandler(tls != null ? tls.server(p) : p, sc);
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                sc.close(); // never registered, nobody else would close it
+            } catch (IOException ce) {
+                // ignore.. it's gone anyway
+            }
+        }
+    }
+
+    /**
+     * Speak TLS on all connections accepted from now on
+     * @param tls the TlsContext (or null for plaintext)
+     */
+    public void setTlsContext(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    public void connect() { return; } // connect is only used by clients wanting to connect to a server
+    public void read() { return; } // listeners don't read
+    public void write() { return; } // listeners don't write
+
+    /**
+     * Cancel the SelectionKey, and close the Channel
+     */
+    public void cleanup() {
+        sk.cancel();
+        try {
+            sk.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setSelectionKey(SelectionKey sk) {
+        this.sk = sk;
+    }
+
+    public int getInterestSet() {
+        return SelectionKey.OP_ACCEPT;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Manfred Andres
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * PooledConnection is one connection of a ConnectionPool: the receiver of it's Pipeline, which
+ * keeps the requests sent and not answered yet in the order they were sent. Responses arrive
+ * in that order too, so the first one waiting gets the next response. Everything happens on
+ * the pool's poller-thread.
+ */
+package org.freecs.nio.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import org.freecs.nio.core.ScheduledTask;
+
+class PooledConnection implements IPipelineReceiver {
+    final ConnectionPool pool;
+    final ConnectionPool.Endpoint endpoint;
+    final ArrayDeque<ConnectionPool.Request> inFlight = new ArrayDeque<ConnectionPool.Request>();
+    final Runnable connectTimeout = new Runnable() {
+        public void run() {
+            pool.connectTimedOut(PooledConnection.this);
+        }
+    };
+    Pipeline pipeline = null;
+    ScheduledTask connectTimer = null;
+    boolean connected = false;
+    boolean used = false;
+    long lastUsed = 0;
+    // the reason this connection gets closed by the pool (failing the requests in flight)
+    IOException cause = null;
+
+    PooledConnection(ConnectionPool pool, ConnectionPool.Endpoint endpoint) {
+        this.pool = pool;
+        this.endpoint = endpoint;
+    }
+
+    public void connected(Pipeline p) {
+        pool.connected(this);
+    }
+
+    public void received(Pipeline p, ByteBuffer msg) {
+        pool.received(this, msg);
+    }
+
+    public void closed(Pipeline p) {
+        pool.closed(this);
+    }
+}